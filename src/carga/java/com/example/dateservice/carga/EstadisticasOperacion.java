@@ -0,0 +1,68 @@
+package com.example.dateservice.carga;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencias y resultados de un tipo de operación durante la carga.
+ */
+class EstadisticasOperacion {
+
+    private final String nombre;
+    private final Histogram latencias = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+    private final LongAdder exitosas = new LongAdder();
+    private final LongAdder errores = new LongAdder();
+    private final Map<String, LongAdder> rechazos = new ConcurrentHashMap<>();
+
+    EstadisticasOperacion(String nombre) {
+        this.nombre = nombre;
+    }
+
+    void registrar(long nanos, int estado, String cuerpo) {
+        latencias.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), latencias.getHighestTrackableValue()));
+        if (estado / 100 == 2) {
+            exitosas.increment();
+        } else if (estado == 400) {
+            rechazos.computeIfAbsent(motivo(cuerpo), m -> new LongAdder()).increment();
+        } else {
+            errores.increment();
+        }
+    }
+
+    void registrarError(long nanos) {
+        latencias.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), latencias.getHighestTrackableValue()));
+        errores.increment();
+    }
+
+    long total() {
+        return latencias.getTotalCount();
+    }
+
+    void imprimir(PrintStream salida, double segundos) {
+        long total = total();
+        salida.printf("%-24s %9d ops %9.1f ops/s | ok %8d  rechazos %8d  errores %6d | p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms%n",
+                nombre, total, total / segundos,
+                exitosas.sum(), rechazos.values().stream().mapToLong(LongAdder::sum).sum(), errores.sum(),
+                ms(latencias.getValueAtPercentile(50)), ms(latencias.getValueAtPercentile(90)),
+                ms(latencias.getValueAtPercentile(99)), ms(latencias.getValueAtPercentile(99.9)),
+                ms(latencias.getMaxValue()));
+        rechazos.forEach((motivo, cantidad) -> salida.printf("%28s %8d  %s%n", "", cantidad.sum(), motivo));
+    }
+
+    private static String motivo(String cuerpo) {
+        // "Error al agendar cita: Ya existe una cita agendada en este horario." -> el mensaje del servicio
+        int separador = cuerpo.indexOf(": ");
+        String mensaje = separador >= 0 ? cuerpo.substring(separador + 2) : cuerpo;
+        return mensaje.length() > 80 ? mensaje.substring(0, 80) : mensaje;
+    }
+
+    private static double ms(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.dateservice.carga;
+
+import com.example.dateservice.DatesServiceApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Date;
+import java.sql.Time;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Stream;
+
+/**
+ * Levanta el servicio completo sobre H2, siembra la agenda y la ataca por HTTP
+ * desde muchos clientes concurrentes. Al terminar imprime rendimiento y
+ * percentiles de latencia por operación y verifica que la base no tenga citas
+ * solapadas ni disponibilidades sobre citas; si las hay, termina con código 1.
+ *
+ * Parámetros (como --carga.x=valor):
+ * <ul>
+ *   <li>psicologos, dias: tamaño de la agenda sembrada (una cita y una disponibilidad por día)</li>
+ *   <li>clientes, segundos: concurrencia y duración de la carga</li>
+ *   <li>psicologos-calientes, proporcion-caliente: cuántas peticiones caen sobre pocos psicólogos, para forzar conflictos</li>
+ * </ul>
+ * Cualquier otra propiedad de Spring (por ejemplo del pool de conexiones) también se puede pasar.
+ */
+public class GeneradorCarga {
+
+    private static final LocalDate PRIMER_DIA = LocalDate.of(2030, 1, 1);
+    private static final int FILAS_POR_LOTE = 5000;
+
+    private static final String[] PROPIEDADES = {
+            "--server.port=0",
+            "--spring.cloud.config.enabled=false",
+            "--eureka.client.enabled=false",
+            "--spring.datasource.url=jdbc:h2:mem:carga;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000",
+            "--spring.datasource.username=sa",
+            "--spring.datasource.password=",
+            "--spring.datasource.driver-class-name=org.h2.Driver",
+            "--spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+            "--spring.jpa.hibernate.ddl-auto=create-drop",
+            "--spring.jpa.show-sql=false",
+            "--logging.level.root=WARN"
+    };
+
+    private final JdbcTemplate jdbcTemplate;
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final String base;
+
+    private final int psicologos;
+    private final int dias;
+    private final int clientes;
+    private final int segundos;
+    private final int psicologosCalientes;
+    private final double proporcionCaliente;
+
+    private final EstadisticasOperacion agendar = new EstadisticasOperacion("agendar");
+    private final EstadisticasOperacion modificar = new EstadisticasOperacion("modificar");
+    private final EstadisticasOperacion cancelar = new EstadisticasOperacion("cancelar");
+    private final EstadisticasOperacion listarCitas = new EstadisticasOperacion("listar citas");
+    private final EstadisticasOperacion listarDisponibilidades = new EstadisticasOperacion("listar disponibilidades");
+
+    private long[] idsCitas;
+    private AtomicIntegerArray canceladas;
+
+    private GeneradorCarga(ConfigurableApplicationContext contexto) {
+        Environment entorno = contexto.getEnvironment();
+        this.jdbcTemplate = contexto.getBean(JdbcTemplate.class);
+        this.base = "http://localhost:" + entorno.getProperty("local.server.port") + "/api/dates";
+        this.psicologos = entorno.getProperty("carga.psicologos", Integer.class, 1000);
+        this.dias = entorno.getProperty("carga.dias", Integer.class, 60);
+        this.clientes = entorno.getProperty("carga.clientes", Integer.class, 32);
+        this.segundos = entorno.getProperty("carga.segundos", Integer.class, 60);
+        this.psicologosCalientes = Math.min(psicologos, entorno.getProperty("carga.psicologos-calientes", Integer.class, 20));
+        this.proporcionCaliente = entorno.getProperty("carga.proporcion-caliente", Double.class, 0.5);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] argumentos = Stream.concat(Stream.of(PROPIEDADES), Stream.of(args)).toArray(String[]::new);
+        ConfigurableApplicationContext contexto = SpringApplication.run(DatesServiceApplication.class, argumentos);
+
+        boolean correcto;
+        PrintStream salida = System.out;
+        try {
+            GeneradorCarga generador = new GeneradorCarga(contexto);
+            generador.sembrar(salida);
+
+            // El servicio escribe cada operación con System.out; se descarta durante la carga
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            double duracion;
+            try {
+                duracion = generador.ejecutar(salida);
+            } finally {
+                System.setOut(salida);
+            }
+
+            generador.imprimir(salida, duracion);
+            correcto = new VerificadorInvariantes(generador.jdbcTemplate).verificar(salida);
+        } finally {
+            contexto.close();
+        }
+
+        System.exit(correcto ? 0 : 1);
+    }
+
+    /**
+     * Cada día de cada psicólogo queda con una cita de 08:00 a 09:00 y disponibilidad de 09:00 a 18:00.
+     */
+    private void sembrar(PrintStream salida) {
+        long inicio = System.nanoTime();
+        List<Object[]> disponibilidades = new ArrayList<>(FILAS_POR_LOTE);
+        List<Object[]> citas = new ArrayList<>(FILAS_POR_LOTE);
+        for (long psicologo = 1; psicologo <= psicologos; psicologo++) {
+            for (int dia = 0; dia < dias; dia++) {
+                Date fecha = Date.valueOf(PRIMER_DIA.plusDays(dia));
+                disponibilidades.add(new Object[]{psicologo, fecha, Time.valueOf(LocalTime.of(9, 0)), Time.valueOf(LocalTime.of(18, 0))});
+                citas.add(new Object[]{psicologo, psicologo, fecha, Time.valueOf(LocalTime.of(8, 0)), Time.valueOf(LocalTime.of(9, 0))});
+                if (citas.size() == FILAS_POR_LOTE) {
+                    insertar(disponibilidades, citas);
+                }
+            }
+        }
+        insertar(disponibilidades, citas);
+
+        idsCitas = jdbcTemplate.queryForList("SELECT id FROM dates ORDER BY id_psicologo, fecha", Long.class)
+                .stream()
+                .mapToLong(Long::longValue)
+                .toArray();
+        canceladas = new AtomicIntegerArray(idsCitas.length);
+        salida.printf("Sembradas %d citas y %d disponibilidades en %.1f s%n", idsCitas.length, idsCitas.length,
+                (System.nanoTime() - inicio) / 1e9);
+    }
+
+    private void insertar(List<Object[]> disponibilidades, List<Object[]> citas) {
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO availability (id_psicologo, fecha, hora_inicio, hora_fin) VALUES (?, ?, ?, ?)",
+                disponibilidades);
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO dates (id_psicologo, id_cliente, fecha, hora_inicio, hora_fin) VALUES (?, ?, ?, ?, ?)",
+                citas);
+        disponibilidades.clear();
+        citas.clear();
+    }
+
+    private double ejecutar(PrintStream salida) throws InterruptedException {
+        salida.printf("Carga: %d clientes durante %d s contra %s%n", clientes, segundos, base);
+        long inicio = System.nanoTime();
+        long limite = inicio + TimeUnit.SECONDS.toNanos(segundos);
+
+        ExecutorService hilos = Executors.newFixedThreadPool(clientes);
+        for (int i = 0; i < clientes; i++) {
+            SplittableRandom azar = new SplittableRandom(i);
+            hilos.execute(() -> {
+                while (System.nanoTime() < limite) {
+                    operar(azar);
+                }
+            });
+        }
+        hilos.shutdown();
+        hilos.awaitTermination(segundos + 60L, TimeUnit.SECONDS);
+        return (System.nanoTime() - inicio) / 1e9;
+    }
+
+    private void operar(SplittableRandom azar) {
+        int tirada = azar.nextInt(100);
+        if (tirada < 40) {
+            long psicologo = elegirPsicologo(azar);
+            LocalTime horaInicio = elegirHora(azar);
+            enviar(agendar, HttpRequest.newBuilder(URI.create(base + "/agendar"))
+                    .POST(json(cita(psicologo, psicologo, elegirDia(azar), horaInicio, horaInicio.plusMinutes(elegirDuracion(azar))))));
+        } else if (tirada < 55) {
+            int indice = azar.nextInt(idsCitas.length);
+            if (canceladas.get(indice) == 1) {
+                return;
+            }
+            long psicologo = 1 + indice / dias;
+            LocalTime horaInicio = elegirHora(azar);
+            enviar(modificar, HttpRequest.newBuilder(URI.create(base + "/modificar/" + idsCitas[indice]))
+                    .PUT(json(cita(psicologo, psicologo, PRIMER_DIA.plusDays(indice % dias), horaInicio, horaInicio.plusMinutes(elegirDuracion(azar))))));
+        } else if (tirada < 60) {
+            int indice = azar.nextInt(idsCitas.length);
+            if (!canceladas.compareAndSet(indice, 0, 1)) {
+                return;
+            }
+            enviar(cancelar, HttpRequest.newBuilder(URI.create(base + "/cancelar/" + idsCitas[indice])).DELETE());
+        } else if (tirada < 80) {
+            enviar(listarCitas, HttpRequest.newBuilder(URI.create(base + "/citas?idPsicologo=" + elegirPsicologo(azar) + "&fecha=" + elegirDia(azar))).GET());
+        } else {
+            enviar(listarDisponibilidades, HttpRequest.newBuilder(URI.create(base + "/disponibilidades?idPsicologo=" + elegirPsicologo(azar) + "&fecha=" + elegirDia(azar))).GET());
+        }
+    }
+
+    private void enviar(EstadisticasOperacion estadisticas, HttpRequest.Builder peticion) {
+        long inicio = System.nanoTime();
+        try {
+            HttpResponse<String> respuesta = http.send(peticion.header("Content-Type", "application/json").timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.ofString());
+            estadisticas.registrar(System.nanoTime() - inicio, respuesta.statusCode(), respuesta.body());
+        } catch (Exception e) {
+            estadisticas.registrarError(System.nanoTime() - inicio);
+        }
+    }
+
+    private long elegirPsicologo(SplittableRandom azar) {
+        if (azar.nextDouble() < proporcionCaliente) {
+            return 1 + azar.nextInt(psicologosCalientes);
+        }
+        return 1 + azar.nextInt(psicologos);
+    }
+
+    private LocalDate elegirDia(SplittableRandom azar) {
+        return PRIMER_DIA.plusDays(azar.nextInt(dias));
+    }
+
+    private static LocalTime elegirHora(SplittableRandom azar) {
+        // Franjas de media hora entre las 09:00 y las 17:00
+        return LocalTime.of(9, 0).plusMinutes(30L * azar.nextInt(17));
+    }
+
+    private static int elegirDuracion(SplittableRandom azar) {
+        return azar.nextBoolean() ? 30 : 60;
+    }
+
+    private static String cita(long psicologo, long cliente, LocalDate fecha, LocalTime horaInicio, LocalTime horaFin) {
+        return String.format("{\"idPsicologo\":%d,\"idCliente\":%d,\"fecha\":\"%s\",\"horaInicio\":\"%s\",\"horaFin\":\"%s\"}",
+                psicologo, cliente, fecha, horaInicio, horaFin);
+    }
+
+    private static HttpRequest.BodyPublisher json(String cuerpo) {
+        return HttpRequest.BodyPublishers.ofString(cuerpo);
+    }
+
+    private void imprimir(PrintStream salida, double duracion) {
+        salida.println();
+        salida.printf("Resultados (%.1f s)%n", duracion);
+        long total = 0;
+        for (EstadisticasOperacion estadisticas : List.of(agendar, modificar, cancelar, listarCitas, listarDisponibilidades)) {
+            estadisticas.imprimir(salida, duracion);
+            total += estadisticas.total();
+        }
+        salida.printf("%-24s %9d ops %9.1f ops/s%n", "total", total, total / duracion);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.dateservice.carga;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.PrintStream;
+
+/**
+ * Comprueba sobre la base, después de la carga, que la agenda quedó consistente.
+ */
+class VerificadorInvariantes {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    VerificadorInvariantes(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Devuelve true si no se encontró ninguna violación.
+     */
+    boolean verificar(PrintStream salida) {
+        long citasSolapadas = contar(
+                "SELECT COUNT(*) FROM dates a JOIN dates b " +
+                        "ON a.id_psicologo = b.id_psicologo AND a.fecha = b.fecha AND a.id < b.id " +
+                        "AND a.hora_inicio < b.hora_fin AND b.hora_inicio < a.hora_fin");
+        long disponibilidadesSobreCitas = contar(
+                "SELECT COUNT(*) FROM availability d JOIN dates c " +
+                        "ON d.id_psicologo = c.id_psicologo AND d.fecha = c.fecha " +
+                        "AND d.hora_inicio < c.hora_fin AND c.hora_inicio < d.hora_fin");
+        long disponibilidadesSolapadas = contar(
+                "SELECT COUNT(*) FROM availability a JOIN availability b " +
+                        "ON a.id_psicologo = b.id_psicologo AND a.fecha = b.fecha AND a.id < b.id " +
+                        "AND a.hora_inicio < b.hora_fin AND b.hora_inicio < a.hora_fin");
+
+        salida.println();
+        salida.println("Invariantes");
+        salida.printf("  citas solapadas del mismo psicólogo:        %d%n", citasSolapadas);
+        salida.printf("  disponibilidades que se solapan con citas:  %d%n", disponibilidadesSobreCitas);
+        salida.printf("  disponibilidades solapadas entre sí:        %d%n", disponibilidadesSolapadas);
+        return citasSolapadas == 0 && disponibilidadesSobreCitas == 0 && disponibilidadesSolapadas == 0;
+    }
+
+    private long contar(String sql) {
+        Long cantidad = jdbcTemplate.queryForObject(sql, Long.class);
+        return cantidad == null ? 0 : cantidad;
+    }
+}
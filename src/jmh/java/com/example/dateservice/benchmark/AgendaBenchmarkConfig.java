@@ -0,0 +1,58 @@
+package com.example.dateservice.benchmark;
+
+import com.example.dateservice.agenda.BloqueoAgenda;
+import com.example.dateservice.agenda.CacheAgenda;
+import com.example.dateservice.agenda.IndiceAgenda;
+import com.example.dateservice.agenda.VersionesAgenda;
+import com.example.dateservice.config.LectorPrimaria;
+import com.example.dateservice.config.RestriccionesSolapamiento;
+import com.example.dateservice.service.DateService;
+import com.example.dateservice.service.ReglaDisponibilidadService;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.UserDetailsServiceAutoConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import java.util.Arrays;
+
+/**
+ * Contexto mínimo para los benchmarks: solo la capa de servicio y JPA sobre H2
+ * en memoria, sin web, seguridad, Eureka ni servidor de configuración.
+ *
+ * No se instala el trigger de H2 que emula las restricciones de exclusión: recorre
+ * la tabla en cada fila y taparía el costo de la lógica que se quiere medir.
+ */
+@SpringBootConfiguration
+@EnableAutoConfiguration(exclude = {SecurityAutoConfiguration.class, UserDetailsServiceAutoConfiguration.class})
+@EntityScan("com.example.dateservice.entity")
+@EnableJpaRepositories("com.example.dateservice.repository")
+@Import({DateService.class, ReglaDisponibilidadService.class, IndiceAgenda.class, VersionesAgenda.class, BloqueoAgenda.class, CacheAgenda.class, LectorPrimaria.class,
+        RestriccionesSolapamiento.class})
+public class AgendaBenchmarkConfig {
+
+    static final String[] PROPIEDADES = {
+            "--spring.main.web-application-type=none",
+            "--spring.main.banner-mode=off",
+            "--spring.cloud.config.enabled=false",
+            "--eureka.client.enabled=false",
+            "--spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+            "--spring.datasource.username=sa",
+            "--spring.datasource.password=",
+            "--spring.datasource.driver-class-name=org.h2.Driver",
+            "--spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+            "--spring.jpa.hibernate.ddl-auto=create-drop",
+            "--spring.jpa.show-sql=false",
+            "--logging.level.root=WARN"
+    };
+
+    static String[] propiedades(boolean cacheSegundoNivel) {
+        String[] propiedades = Arrays.copyOf(PROPIEDADES, PROPIEDADES.length + 2);
+        propiedades[PROPIEDADES.length] = "--spring.jpa.properties.hibernate.cache.use_second_level_cache=" + cacheSegundoNivel;
+        // Los aciertos y fallos por región se imprimen al terminar cada prueba
+        propiedades[PROPIEDADES.length + 1] = "--spring.jpa.properties.hibernate.generate_statistics=true";
+        return propiedades;
+    }
+}
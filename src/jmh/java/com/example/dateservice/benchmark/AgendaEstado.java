@@ -0,0 +1,139 @@
+package com.example.dateservice.benchmark;
+
+import com.example.dateservice.repository.DateRepository;
+import com.example.dateservice.repository.DisponibilidadRepository;
+import com.example.dateservice.service.DateService;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.Time;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Levanta el contexto sobre H2 y siembra la agenda una vez por benchmark.
+ *
+ * Cada día de cada psicólogo queda como en producción después de agendar una
+ * cita de 10:00 a 11:00 sobre una disponibilidad de 08:00 a 18:00: disponibilidades
+ * de 08:00 a 10:00 y de 11:00 a 18:00 más la cita.
+ */
+@State(Scope.Benchmark)
+public class AgendaEstado {
+
+    static final LocalDate PRIMER_DIA = LocalDate.of(2030, 1, 1);
+
+    @Param({"200"})
+    int psicologos;
+
+    @Param({"90"})
+    int dias;
+
+    /**
+     * Activa la caché de segundo nivel de entidades de Hibernate.
+     */
+    @Param({"true", "false"})
+    boolean cacheSegundoNivel;
+
+    DateService dateService;
+    DateRepository dateRepository;
+    DisponibilidadRepository disponibilidadRepository;
+    long[] idsCitas;
+    long[] idsDisponibilidades;
+
+    private ConfigurableApplicationContext contexto;
+    private TransactionTemplate transacciones;
+    private PrintStream salidaOriginal;
+
+    @Setup(Level.Trial)
+    public void iniciar() {
+        contexto = SpringApplication.run(AgendaBenchmarkConfig.class, AgendaBenchmarkConfig.propiedades(cacheSegundoNivel));
+        dateService = contexto.getBean(DateService.class);
+        dateRepository = contexto.getBean(DateRepository.class);
+        disponibilidadRepository = contexto.getBean(DisponibilidadRepository.class);
+        transacciones = new TransactionTemplate(contexto.getBean(PlatformTransactionManager.class));
+        sembrar(contexto.getBean(JdbcTemplate.class));
+
+        // El servicio escribe cada operación con System.out; se descarta para no inundar la salida de JMH
+        salidaOriginal = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        System.setOut(salidaOriginal);
+        Statistics estadisticas = contexto.getBean(EntityManagerFactory.class)
+                .unwrap(SessionFactory.class)
+                .getStatistics();
+        System.out.printf("Caché de segundo nivel: %d aciertos, %d fallos, %d guardadas%n",
+                estadisticas.getSecondLevelCacheHitCount(), estadisticas.getSecondLevelCacheMissCount(),
+                estadisticas.getSecondLevelCachePutCount());
+        contexto.close();
+    }
+
+    /**
+     * Ejecuta la operación en una transacción que se deshace al final, para que
+     * todas las invocaciones partan de la misma agenda sembrada. Un rechazo del
+     * servicio se devuelve como resultado en lugar de propagarse.
+     */
+    Object enTransaccionRevertida(Supplier<?> operacion) {
+        return transacciones.execute(estado -> {
+            estado.setRollbackOnly();
+            try {
+                return operacion.get();
+            } catch (RuntimeException e) {
+                return e;
+            }
+        });
+    }
+
+    private void sembrar(JdbcTemplate jdbcTemplate) {
+        List<Object[]> disponibilidades = new ArrayList<>();
+        List<Object[]> citas = new ArrayList<>();
+        for (long psicologo = 1; psicologo <= psicologos; psicologo++) {
+            for (int dia = 0; dia < dias; dia++) {
+                Date fecha = Date.valueOf(PRIMER_DIA.plusDays(dia));
+                disponibilidades.add(new Object[]{psicologo, fecha, hora(8), hora(10)});
+                disponibilidades.add(new Object[]{psicologo, fecha, hora(11), hora(18)});
+                citas.add(new Object[]{psicologo, 1000 + psicologo, fecha, hora(10), hora(11)});
+            }
+        }
+
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO availability (id_psicologo, fecha, hora_inicio, hora_fin) VALUES (?, ?, ?, ?)",
+                disponibilidades);
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO dates (id_psicologo, id_cliente, fecha, hora_inicio, hora_fin) VALUES (?, ?, ?, ?, ?)",
+                citas);
+
+        idsCitas = jdbcTemplate.queryForList("SELECT id FROM dates ORDER BY id_psicologo, fecha", Long.class)
+                .stream()
+                .mapToLong(Long::longValue)
+                .toArray();
+        idsDisponibilidades = jdbcTemplate.queryForList("SELECT id FROM availability ORDER BY id", Long.class)
+                .stream()
+                .mapToLong(Long::longValue)
+                .toArray();
+    }
+
+    private static Time hora(int hora) {
+        return Time.valueOf(LocalTime.of(hora, 0));
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.dateservice.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lecturas por id con y sin la caché de segundo nivel de Hibernate
+ * ({@code cacheSegundoNivel} de {@link AgendaEstado}).
+ *
+ * Cada lectura abre su propia transacción y su propio contexto de persistencia,
+ * así que solo la caché de segundo nivel evita ir a la base. Los aciertos y
+ * fallos se imprimen al cerrar cada trial.
+ *
+ * El grupo {@code mixto} mide lo mismo con escrituras concurrentes: tres hilos leen
+ * citas por id mientras otro cancela citas al azar (en transacciones que se deshacen).
+ * Cada cancelación solo bloquea la entrada de su cita, así que la caché debe seguir
+ * acertando en el resto.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheSegundoNivelBenchmark {
+
+    /**
+     * Cita y disponibilidad elegidas al azar en cada invocación.
+     */
+    @State(Scope.Thread)
+    public static class Seleccion {
+        private final SplittableRandom azar = new SplittableRandom(42);
+
+        long idCita;
+        long idDisponibilidad;
+
+        @Setup(Level.Invocation)
+        public void elegir(AgendaEstado agenda) {
+            idCita = agenda.idsCitas[azar.nextInt(agenda.idsCitas.length)];
+            idDisponibilidad = agenda.idsDisponibilidades[azar.nextInt(agenda.idsDisponibilidades.length)];
+        }
+    }
+
+    @Benchmark
+    public Object leerCitaPorId(AgendaEstado agenda, Seleccion s) {
+        return agenda.enTransaccionRevertida(() -> agenda.dateRepository.findById(s.idCita));
+    }
+
+    @Benchmark
+    public Object leerDisponibilidadPorId(AgendaEstado agenda, Seleccion s) {
+        return agenda.enTransaccionRevertida(() -> agenda.disponibilidadRepository.findById(s.idDisponibilidad));
+    }
+
+    @Benchmark
+    @Group("mixto")
+    @GroupThreads(3)
+    public Object leerCitaConEscrituras(AgendaEstado agenda, Seleccion s) {
+        return agenda.enTransaccionRevertida(() -> agenda.dateRepository.findById(s.idCita));
+    }
+
+    @Benchmark
+    @Group("mixto")
+    @GroupThreads(1)
+    public Object cancelarCita(AgendaEstado agenda, Seleccion s) {
+        return agenda.enTransaccionRevertida(() -> {
+            agenda.dateService.cancelarCita(s.idCita);
+            return s.idCita;
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.dateservice.benchmark;
+
+import com.example.dateservice.dto.DisponibilidadVista;
+import com.example.dateservice.entity.Date;
+import com.example.dateservice.entity.Disponibilidad;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks de las operaciones de agenda de {@code DateService}.
+ *
+ * Las escrituras se deshacen al terminar cada invocación, así que el índice de
+ * agenda no publica el día y cada invocación lo carga de la base: se mide el
+ * camino completo de un día que no estaba en memoria.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DateServiceBenchmark {
+
+    /**
+     * Psicólogo y día elegidos al azar en cada invocación.
+     */
+    @State(Scope.Thread)
+    public static class Seleccion {
+        private final SplittableRandom azar = new SplittableRandom(42);
+
+        long idPsicologo;
+        int dia;
+        LocalDate fecha;
+
+        @Setup(Level.Invocation)
+        public void elegir(AgendaEstado agenda) {
+            idPsicologo = 1 + azar.nextInt(agenda.psicologos);
+            dia = azar.nextInt(agenda.dias);
+            fecha = AgendaEstado.PRIMER_DIA.plusDays(dia);
+        }
+
+        long idCita(AgendaEstado agenda) {
+            return agenda.idsCitas[(int) (idPsicologo - 1) * agenda.dias + dia];
+        }
+    }
+
+    @Benchmark
+    public Object agendarCitaEnMedio(AgendaEstado agenda, Seleccion s) {
+        return agendar(agenda, s, 13, 14);
+    }
+
+    @Benchmark
+    public Object agendarCitaAlInicio(AgendaEstado agenda, Seleccion s) {
+        return agendar(agenda, s, 11, 12);
+    }
+
+    @Benchmark
+    public Object agendarCitaAlFinal(AgendaEstado agenda, Seleccion s) {
+        return agendar(agenda, s, 17, 18);
+    }
+
+    @Benchmark
+    public Object modificarCitaAOtraFranja(AgendaEstado agenda, Seleccion s) {
+        // Libera 10:00-11:00 (se une con las franjas vecinas) y toma 14:00-15:00
+        Date nueva = new Date(s.idPsicologo, 1000 + s.idPsicologo, s.fecha, LocalTime.of(14, 0), LocalTime.of(15, 0));
+        return agenda.enTransaccionRevertida(() -> agenda.dateService.modificarCita(s.idCita(agenda), nueva));
+    }
+
+    @Benchmark
+    public Object agregarDisponibilidadSolapada(AgendaEstado agenda, Seleccion s) {
+        // Se rechaza: se solapa con 08:00-10:00 y 11:00-18:00
+        Disponibilidad nueva = new Disponibilidad(s.idPsicologo, s.fecha, LocalTime.of(9, 0), LocalTime.of(12, 0));
+        return agenda.enTransaccionRevertida(() -> agenda.dateService.addDisponibilidad(nueva));
+    }
+
+    @Benchmark
+    public Object agregarDisponibilidadLibre(AgendaEstado agenda, Seleccion s) {
+        Disponibilidad nueva = new Disponibilidad(s.idPsicologo, s.fecha, LocalTime.of(19, 0), LocalTime.of(20, 0));
+        return agenda.enTransaccionRevertida(() -> agenda.dateService.addDisponibilidad(nueva));
+    }
+
+    @Benchmark
+    public List<DisponibilidadVista> filtrarDisponibilidadesPorMes(AgendaEstado agenda, Seleccion s) {
+        return agenda.dateService.filtrarDisponibilidades(s.idPsicologo, null, s.fecha.getMonthValue(), s.fecha.getYear());
+    }
+
+    private Object agendar(AgendaEstado agenda, Seleccion s, int horaInicio, int horaFin) {
+        Date cita = new Date(s.idPsicologo, 2000L, s.fecha, LocalTime.of(horaInicio, 0), LocalTime.of(horaFin, 0));
+        return agenda.enTransaccionRevertida(() -> {
+            agenda.dateService.addDate(cita);
+            return cita;
+        });
+    }
+}
@@ -2,9 +2,11 @@ package com.example.dateservice;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 @SpringBootApplication
+@EnableScheduling
 public class DatesServiceApplication {
     public static void main(String[] args) {
         SpringApplication.run(DatesServiceApplication.class, args);
@@ -0,0 +1,141 @@
+package com.example.dateservice.agenda;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tarea periódica que mueve las citas pasadas de {@code dates} a {@code dates_archive},
+ * para que la tabla de citas solo tenga la agenda vigente y los últimos días.
+ *
+ * Cada lote copia y borra como mucho {@code tamano-lote} citas en su propia
+ * transacción, tomando el cerrojo de sus días; cada ejecución procesa como mucho
+ * {@code max-lotes} lotes. Las disponibilidades pasadas no se archivan: las borra
+ * {@link CompactacionAgenda}.
+ *
+ * El borrado en lote por JPQL vacía la región de citas de la caché de segundo nivel
+ * al confirmar cada lote; siendo una tarea periódica se acepta.
+ */
+@Component
+public class ArchivoAgenda {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private IndiceAgenda indiceAgenda;
+
+    @Autowired
+    private BloqueoAgenda bloqueoAgenda;
+
+    @Value("${agenda.archivo.habilitado:true}")
+    private boolean habilitado;
+
+    // Días pasados que se mantienen en la tabla de citas antes de archivarlos
+    @Value("${agenda.archivo.dias-retencion:30}")
+    private int diasRetencion;
+
+    @Value("${agenda.archivo.tamano-lote:500}")
+    private int tamanoLote;
+
+    @Value("${agenda.archivo.max-lotes:50}")
+    private int maxLotes;
+
+    private TransactionTemplate transacciones;
+
+    private final AtomicLong citasArchivadas = new AtomicLong();
+
+    @PostConstruct
+    void iniciar() {
+        transacciones = new TransactionTemplate(transactionManager);
+    }
+
+    @Scheduled(initialDelayString = "${agenda.archivo.espera-inicial-ms:600000}",
+            fixedDelayString = "${agenda.archivo.intervalo-ms:3600000}")
+    public void ejecutarProgramada() {
+        if (!habilitado) {
+            return;
+        }
+        try {
+            archivar();
+        } catch (RuntimeException e) {
+            System.out.println("Error al archivar citas pasadas: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Archiva las citas anteriores al período de retención y devuelve cuántas movió.
+     */
+    public synchronized long archivar() {
+        LocalDate limite = LocalDate.now().minusDays(diasRetencion);
+        long movidas = 0;
+        for (int lote = 0; lote < maxLotes; lote++) {
+            int archivadas = transacciones.execute(estado -> archivarLote(limite));
+            citasArchivadas.addAndGet(archivadas);
+            movidas += archivadas;
+            if (archivadas < tamanoLote) {
+                break;
+            }
+        }
+
+        if (movidas > 0) {
+            System.out.println("Citas archivadas: " + movidas);
+        }
+        return movidas;
+    }
+
+    public long citasArchivadas() {
+        return citasArchivadas.get();
+    }
+
+    private int archivarLote(LocalDate limite) {
+        List<Object[]> filas = entityManager.createQuery(
+                        "SELECT c.id, c.idPsicologo, c.fecha FROM Date c WHERE c.fecha < :limite ORDER BY c.id",
+                        Object[].class
+                )
+                .setParameter("limite", limite)
+                .setMaxResults(tamanoLote)
+                .getResultList();
+        if (filas.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = new ArrayList<>(filas.size());
+        Set<ClaveDia> claves = new LinkedHashSet<>();
+        for (Object[] fila : filas) {
+            ids.add((Long) fila[0]);
+            claves.add(new ClaveDia((Long) fila[1], (LocalDate) fila[2]));
+        }
+
+        bloqueoAgenda.bloquear(claves.toArray(ClaveDia[]::new));
+        claves.forEach(indiceAgenda::invalidar);
+
+        // Se copian y borran por ID: si otra transacción canceló alguna entre la lectura y el cerrojo, no se copia
+        entityManager.createQuery(
+                        "INSERT INTO CitaArchivada (id, idPsicologo, idCliente, fecha, horaInicio, horaFin) " +
+                                "SELECT c.id, c.idPsicologo, c.idCliente, c.fecha, c.horaInicio, c.horaFin " +
+                                "FROM Date c WHERE c.id IN :ids"
+                )
+                .setParameter("ids", ids)
+                .executeUpdate();
+        return entityManager.createQuery("DELETE FROM Date c WHERE c.id IN :ids")
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.dateservice.agenda;
+
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializa las escrituras sobre la agenda de un mismo psicólogo y día sin
+ * bloquear al resto: cada (idPsicologo, fecha) cae en uno de N cerrojos del JVM y,
+ * en PostgreSQL, además toma un advisory lock de transacción para cubrir varias
+ * instancias del servicio.
+ *
+ * Los cerrojos se toman dentro de la transacción y se sueltan al terminarla,
+ * después de que el índice de agenda haya publicado los cambios.
+ *
+ * Los advisory locks se piden con {@code pg_try_advisory_xact_lock}, todos los días
+ * nuevos en una sola sentencia, y los que otra instancia tiene se reintentan hasta
+ * {@code agenda.bloqueo.espera-ms}. Así no se toca el {@code lock_timeout} de la
+ * transacción, que sigue valiendo para el resto de sus sentencias. Cada transacción
+ * recuerda los días que ya bloqueó en la base y no los vuelve a pedir.
+ */
+@Component
+public class BloqueoAgenda {
+
+    // Pausa máxima entre reintentos de los advisory locks que tiene otra instancia
+    private static final long PAUSA_MAXIMA_MS = 50;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${agenda.bloqueo.franjas:1024}")
+    private int franjas;
+
+    @Value("${agenda.bloqueo.espera-ms:5000}")
+    private long esperaMs;
+
+    @Value("${agenda.bloqueo.advisory:true}")
+    private boolean advisory;
+
+    private ReentrantLock[] cerrojos;
+    private volatile Boolean postgres;
+
+    @PostConstruct
+    void iniciar() {
+        cerrojos = new ReentrantLock[franjas];
+        for (int i = 0; i < franjas; i++) {
+            cerrojos[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Bloquea las agendas indicadas hasta que termine la transacción actual.
+     * Los cerrojos se toman siempre en el mismo orden para evitar interbloqueos.
+     */
+    public void bloquear(ClaveDia... claves) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("El bloqueo de agenda requiere una transacción activa");
+        }
+
+        CerrojosTransaccion tomados = cerrojosTransaccion();
+        TreeSet<Integer> posiciones = new TreeSet<>();
+        for (ClaveDia clave : claves) {
+            posiciones.add(posicion(clave));
+        }
+
+        for (int posicion : posiciones) {
+            if (tomados.posiciones.contains(posicion)) {
+                continue;
+            }
+            try {
+                if (!cerrojos[posicion].tryLock(esperaMs, TimeUnit.MILLISECONDS)) {
+                    throw new AgendaException(CodigoError.AGENDA_OCUPADA, "La agenda del psicólogo está ocupada, intente nuevamente.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AgendaException(CodigoError.AGENDA_OCUPADA, "La agenda del psicólogo está ocupada, intente nuevamente.");
+            }
+            tomados.posiciones.add(posicion);
+        }
+
+        if (advisory && esPostgres()) {
+            bloquearEnBase(tomados, claves);
+        }
+    }
+
+    /**
+     * Cantidad de cerrojos tomados en este momento.
+     */
+    public int cerrojosOcupados() {
+        int ocupados = 0;
+        for (ReentrantLock cerrojo : cerrojos) {
+            if (cerrojo.isLocked()) {
+                ocupados++;
+            }
+        }
+        return ocupados;
+    }
+
+    private void bloquearEnBase(CerrojosTransaccion tomados, ClaveDia... claves) {
+        // Variante de dos enteros: (psicólogo, día desde la época); se libera sola al terminar la transacción
+        TreeSet<Long> pendientes = new TreeSet<>();
+        for (ClaveDia clave : claves) {
+            long llave = ((long) (int) (clave.idPsicologo() ^ (clave.idPsicologo() >>> 32)) << 32)
+                    | (clave.fecha().toEpochDay() & 0xFFFFFFFFL);
+            if (!tomados.advisory.contains(llave)) {
+                pendientes.add(llave);
+            }
+        }
+
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(esperaMs);
+        long pausa = 1;
+        while (!pendientes.isEmpty()) {
+            List<Long> ocupadas = intentarEnBase(pendientes);
+            for (long llave : pendientes) {
+                if (!ocupadas.contains(llave)) {
+                    tomados.advisory.add(llave);
+                }
+            }
+            pendientes.retainAll(ocupadas);
+            if (pendientes.isEmpty()) {
+                return;
+            }
+
+            // El intento no espera en la base: retener unos mientras se reintentan otros no puede interbloquear
+            if (System.nanoTime() - limite > 0) {
+                throw new AgendaException(CodigoError.AGENDA_OCUPADA, "La agenda del psicólogo está ocupada, intente nuevamente.");
+            }
+            try {
+                Thread.sleep(pausa);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AgendaException(CodigoError.AGENDA_OCUPADA, "La agenda del psicólogo está ocupada, intente nuevamente.");
+            }
+            pausa = Math.min(pausa * 2, PAUSA_MAXIMA_MS);
+        }
+    }
+
+    /**
+     * Intenta tomar los advisory locks en una sola sentencia y devuelve los que tiene otra transacción.
+     */
+    private List<Long> intentarEnBase(Set<Long> llaves) {
+        StringBuilder sql = new StringBuilder("SELECT k.p, k.f FROM (VALUES ");
+        List<Object> parametros = new ArrayList<>(llaves.size() * 2);
+        for (long llave : llaves) {
+            if (!parametros.isEmpty()) {
+                sql.append(", ");
+            }
+            sql.append("(CAST(? AS integer), CAST(? AS integer))");
+            parametros.add((int) (llave >> 32));
+            parametros.add((int) llave);
+        }
+        sql.append(") AS k(p, f) WHERE NOT pg_try_advisory_xact_lock(k.p, k.f)");
+        return jdbcTemplate.query(sql.toString(),
+                (rs, fila) -> ((long) rs.getInt(1) << 32) | (rs.getInt(2) & 0xFFFFFFFFL),
+                parametros.toArray());
+    }
+
+    private int posicion(ClaveDia clave) {
+        return Math.floorMod(clave.hashCode() * 0x9E3779B9, cerrojos.length);
+    }
+
+    private boolean esPostgres() {
+        if (postgres == null) {
+            postgres = "PostgreSQL".equals(jdbcTemplate.execute(
+                    (ConnectionCallback<String>) c -> c.getMetaData().getDatabaseProductName()));
+        }
+        return postgres;
+    }
+
+    private CerrojosTransaccion cerrojosTransaccion() {
+        CerrojosTransaccion tomados = (CerrojosTransaccion) TransactionSynchronizationManager.getResource(this);
+        if (tomados == null) {
+            tomados = new CerrojosTransaccion();
+            TransactionSynchronizationManager.bindResource(this, tomados);
+            TransactionSynchronizationManager.registerSynchronization(tomados);
+        }
+        return tomados;
+    }
+
+    private final class CerrojosTransaccion implements TransactionSynchronization {
+        private final List<Integer> posiciones = new ArrayList<>();
+        private final Set<Long> advisory = new HashSet<>();
+
+        @Override
+        public int getOrder() {
+            // Después del índice de agenda, para que el siguiente escritor vea los cambios publicados
+            return Ordered.LOWEST_PRECEDENCE;
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(BloqueoAgenda.this);
+            for (int i = posiciones.size() - 1; i >= 0; i--) {
+                cerrojos[posiciones.get(i)].unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.dateservice.agenda;
+
+import com.example.dateservice.config.LectorPrimaria;
+import com.example.dateservice.dto.CitaVista;
+import com.example.dateservice.dto.DisponibilidadVista;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Caché de las citas y disponibilidades de cada psicólogo por día, para las
+ * lecturas del calendario.
+ *
+ * Cada entrada guarda las versiones de {@link VersionesAgenda} con las que se
+ * leyó (la del día y la de las reglas del psicólogo); si alguna cambió, porque
+ * cualquier instancia confirmó una escritura, la entrada se ignora y se vuelve a
+ * leer. Comprobarlo cuesta una lectura de una fila en lugar de leer el día entero.
+ * Además el índice avisa después de cada commit de esta instancia para sacar la
+ * entrada de inmediato, y los cambios de reglas sacan las del psicólogo con
+ * {@link #invalidarPsicologo(Long)}.
+ *
+ * Solo se usa fuera de transacciones de escritura: dentro de una, la lectura
+ * puede ver escrituras que todavía no están confirmadas.
+ */
+@Component
+public class CacheAgenda {
+
+    @Autowired
+    private IndiceAgenda indiceAgenda;
+
+    @Autowired
+    private VersionesAgenda versionesAgenda;
+
+    @Autowired
+    private LectorPrimaria lectorPrimaria;
+
+    @Value("${agenda.cache.max-dias:10000}")
+    private long maxDias;
+
+    @Value("${agenda.cache.expiracion-segundos:300}")
+    private long expiracionSegundos;
+
+    private Cache<ClaveDia, Entrada<CitaVista>> citas;
+    private Cache<ClaveDia, Entrada<DisponibilidadVista>> disponibilidades;
+
+    @PostConstruct
+    void iniciar() {
+        citas = construir();
+        disponibilidades = construir();
+        indiceAgenda.alCambiar(this::invalidar);
+    }
+
+    public List<CitaVista> citas(ClaveDia clave, Supplier<List<CitaVista>> carga) {
+        return leer(citas, clave, carga);
+    }
+
+    public List<DisponibilidadVista> disponibilidades(ClaveDia clave, Supplier<List<DisponibilidadVista>> carga) {
+        return leer(disponibilidades, clave, carga);
+    }
+
+    public void invalidar(ClaveDia clave) {
+        citas.invalidate(clave);
+        disponibilidades.invalidate(clave);
+    }
+
+    public void invalidarPsicologo(Long idPsicologo) {
+        citas.asMap().keySet().removeIf(clave -> clave.idPsicologo().equals(idPsicologo));
+        disponibilidades.asMap().keySet().removeIf(clave -> clave.idPsicologo().equals(idPsicologo));
+    }
+
+    /**
+     * Etiqueta (ETag) del contenido del día: cambia con cada escritura confirmada sobre
+     * él, con los cambios de reglas del psicólogo y cuando el día pasa (las reglas
+     * recurrentes dejan de expandirse). Sale de las versiones guardadas en la base, así
+     * que todas las instancias dan la misma etiqueta para el mismo contenido.
+     */
+    public String etiqueta(ClaveDia clave) {
+        VersionesAgenda.Version version = versionesAgenda.leer(clave);
+        boolean pasado = clave.fecha().isBefore(LocalDate.now());
+        return "\"" + Long.toUnsignedString(version.dia(), 36)
+                + "-" + Long.toUnsignedString(version.reglas(), 36)
+                + (pasado ? "-p" : "") + "\"";
+    }
+
+    public Cache<ClaveDia, ?> cacheCitas() {
+        return citas;
+    }
+
+    public Cache<ClaveDia, ?> cacheDisponibilidades() {
+        return disponibilidades;
+    }
+
+    private <T> List<T> leer(Cache<ClaveDia, Entrada<T>> cache, ClaveDia clave, Supplier<List<T>> carga) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()
+                && !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return carga.get();
+        }
+
+        // La versión se lee antes que la base: si alguien confirma entre medias, la entrada nace vieja
+        VersionesAgenda.Version version = versionesAgenda.leer(clave);
+        Entrada<T> entrada = cache.getIfPresent(clave);
+        if (entrada != null && entrada.version().equals(version)) {
+            return entrada.filas();
+        }
+
+        // Con réplica, una foto atrasada quedaría guardada (y con ETag) bajo la versión nueva
+        List<T> filas = List.copyOf(lectorPrimaria.leer(carga));
+        cache.put(clave, new Entrada<>(version, filas));
+        return filas;
+    }
+
+    private <T> Cache<ClaveDia, Entrada<T>> construir() {
+        return Caffeine.newBuilder()
+                .maximumSize(maxDias)
+                .expireAfterWrite(Duration.ofSeconds(expiracionSegundos))
+                .recordStats()
+                .build();
+    }
+
+    private record Entrada<T>(VersionesAgenda.Version version, List<T> filas) {
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.dateservice.agenda;
+
+import com.example.dateservice.entity.Date;
+import com.example.dateservice.entity.Disponibilidad;
+
+import java.time.LocalDate;
+
+/**
+ * Identifica la agenda de un psicólogo en un día concreto.
+ */
+public record ClaveDia(Long idPsicologo, LocalDate fecha) {
+
+    public static ClaveDia de(Date cita) {
+        return new ClaveDia(cita.getIdPsicologo(), cita.getFecha());
+    }
+
+    public static ClaveDia de(Disponibilidad disponibilidad) {
+        return new ClaveDia(disponibilidad.getIdPsicologo(), disponibilidad.getFecha());
+    }
+}
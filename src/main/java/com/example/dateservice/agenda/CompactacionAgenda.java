@@ -0,0 +1,255 @@
+package com.example.dateservice.agenda;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tarea periódica que mantiene compacta la tabla de disponibilidades:
+ * une las franjas contiguas o solapadas del mismo psicólogo y día, y borra las
+ * disponibilidades de días que ya pasaron.
+ *
+ * Recorre los días de forma incremental (cada ejecución procesa como mucho
+ * {@code max-lotes} lotes y la siguiente sigue donde quedó) y confirma cada lote
+ * en su propia transacción, tomando el cerrojo de cada día como cualquier otra
+ * escritura de agenda.
+ *
+ * Borra y actualiza por JPQL en lote, lo que vacía la región de disponibilidades de la
+ * caché de segundo nivel al confirmar cada lote; siendo una tarea periódica se acepta.
+ */
+@Component
+public class CompactacionAgenda {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private IndiceAgenda indiceAgenda;
+
+    @Autowired
+    private BloqueoAgenda bloqueoAgenda;
+
+    @Value("${agenda.compactacion.habilitada:true}")
+    private boolean habilitada;
+
+    @Value("${agenda.compactacion.tamano-lote:200}")
+    private int tamanoLote;
+
+    @Value("${agenda.compactacion.max-lotes:50}")
+    private int maxLotes;
+
+    @Value("${agenda.compactacion.borrar-pasadas:true}")
+    private boolean borrarPasadas;
+
+    private TransactionTemplate transacciones;
+
+    // Último día revisado; la siguiente ejecución sigue desde aquí
+    private ClaveDia cursor;
+
+    private final AtomicLong filasUnidas = new AtomicLong();
+    private final AtomicLong filasPasadasBorradas = new AtomicLong();
+    private final AtomicLong ejecuciones = new AtomicLong();
+    private final AtomicLong nanosEjecutando = new AtomicLong();
+
+    @PostConstruct
+    void iniciar() {
+        transacciones = new TransactionTemplate(transactionManager);
+    }
+
+    @Scheduled(initialDelayString = "${agenda.compactacion.espera-inicial-ms:300000}",
+            fixedDelayString = "${agenda.compactacion.intervalo-ms:3600000}")
+    public void ejecutarProgramada() {
+        if (!habilitada) {
+            return;
+        }
+        try {
+            compactar();
+        } catch (RuntimeException e) {
+            System.out.println("Error en la compactación de disponibilidades: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ejecuta una pasada de compactación y devuelve cuántas filas eliminó en total.
+     */
+    public synchronized long compactar() {
+        long inicio = System.nanoTime();
+        long eliminadas = 0;
+        LocalDate hoy = LocalDate.now();
+        try {
+            if (borrarPasadas) {
+                for (int lote = 0; lote < maxLotes; lote++) {
+                    int borradas = transacciones.execute(estado -> borrarLotePasado(hoy));
+                    filasPasadasBorradas.addAndGet(borradas);
+                    eliminadas += borradas;
+                    if (borradas < tamanoLote) {
+                        break;
+                    }
+                }
+                // Las marcas de días materializados por reglas recurrentes ya no se consultan para días pasados
+                transacciones.execute(estado -> entityManager.createQuery("DELETE FROM DiaMaterializado m WHERE m.fecha < :hoy")
+                        .setParameter("hoy", hoy)
+                        .executeUpdate());
+            }
+
+            for (int lote = 0; lote < maxLotes; lote++) {
+                List<ClaveDia> dias = diasFragmentados(hoy);
+                if (dias.isEmpty()) {
+                    // Se llegó al final; la próxima ejecución empieza de nuevo
+                    cursor = null;
+                    break;
+                }
+                int unidas = transacciones.execute(estado -> unir(dias));
+                filasUnidas.addAndGet(unidas);
+                eliminadas += unidas;
+                cursor = dias.get(dias.size() - 1);
+            }
+        } finally {
+            ejecuciones.incrementAndGet();
+            nanosEjecutando.addAndGet(System.nanoTime() - inicio);
+        }
+
+        if (eliminadas > 0) {
+            System.out.println("Compactación de disponibilidades: " + eliminadas + " filas eliminadas");
+        }
+        return eliminadas;
+    }
+
+    public long filasUnidas() {
+        return filasUnidas.get();
+    }
+
+    public long filasPasadasBorradas() {
+        return filasPasadasBorradas.get();
+    }
+
+    public long ejecuciones() {
+        return ejecuciones.get();
+    }
+
+    public double segundosEjecutando() {
+        return nanosEjecutando.get() / 1e9;
+    }
+
+    private int borrarLotePasado(LocalDate hoy) {
+        List<Object[]> filas = entityManager.createQuery(
+                        "SELECT d.id, d.idPsicologo, d.fecha FROM Disponibilidad d WHERE d.fecha < :hoy ORDER BY d.id",
+                        Object[].class
+                )
+                .setParameter("hoy", hoy)
+                .setMaxResults(tamanoLote)
+                .getResultList();
+        if (filas.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = new ArrayList<>(filas.size());
+        Set<ClaveDia> claves = new LinkedHashSet<>();
+        for (Object[] fila : filas) {
+            ids.add((Long) fila[0]);
+            claves.add(new ClaveDia((Long) fila[1], (LocalDate) fila[2]));
+        }
+
+        bloqueoAgenda.bloquear(claves.toArray(ClaveDia[]::new));
+        claves.forEach(indiceAgenda::invalidar);
+        return entityManager.createQuery("DELETE FROM Disponibilidad d WHERE d.id IN :ids")
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
+
+    /**
+     * Siguiente lote de días (desde hoy) con más de una disponibilidad, en orden de psicólogo y fecha.
+     */
+    private List<ClaveDia> diasFragmentados(LocalDate hoy) {
+        String desdeCursor = cursor == null ? "" :
+                " AND (d.idPsicologo > :idPsicologo OR (d.idPsicologo = :idPsicologo AND d.fecha > :fecha))";
+        TypedQuery<ClaveDia> consulta = entityManager.createQuery(
+                        "SELECT new com.example.dateservice.agenda.ClaveDia(d.idPsicologo, d.fecha) " +
+                                "FROM Disponibilidad d WHERE d.fecha >= :hoy" + desdeCursor +
+                                " GROUP BY d.idPsicologo, d.fecha HAVING COUNT(d) > 1 " +
+                                "ORDER BY d.idPsicologo, d.fecha",
+                        ClaveDia.class
+                )
+                .setParameter("hoy", hoy)
+                .setMaxResults(tamanoLote);
+        if (cursor != null) {
+            consulta.setParameter("idPsicologo", cursor.idPsicologo())
+                    .setParameter("fecha", cursor.fecha());
+        }
+        return consulta.getResultList();
+    }
+
+    private int unir(List<ClaveDia> dias) {
+        // Todos los días del lote de una vez, en el orden fijo del bloqueo, para no cruzarse con otras escrituras
+        bloqueoAgenda.bloquear(dias.toArray(ClaveDia[]::new));
+        int eliminadas = 0;
+        for (ClaveDia clave : dias) {
+            eliminadas += unirDia(clave);
+        }
+        return eliminadas;
+    }
+
+    private int unirDia(ClaveDia clave) {
+        // Se lee de la base, no del índice: la compactación también corrige filas que no pasaron por el servicio
+        List<Intervalo> franjas = entityManager.createQuery(
+                        "SELECT new com.example.dateservice.agenda.Intervalo(d.id, d.horaInicio, d.horaFin) " +
+                                "FROM Disponibilidad d WHERE d.idPsicologo = :idPsicologo AND d.fecha = :fecha " +
+                                "ORDER BY d.horaInicio",
+                        Intervalo.class
+                )
+                .setParameter("idPsicologo", clave.idPsicologo())
+                .setParameter("fecha", clave.fecha())
+                .getResultList();
+
+        int eliminadas = 0;
+        int i = 0;
+        while (i < franjas.size()) {
+            Intervalo primera = franjas.get(i);
+            LocalTime fin = primera.fin();
+            List<Long> absorbidas = new ArrayList<>();
+            int j = i + 1;
+            while (j < franjas.size() && !franjas.get(j).inicio().isAfter(fin)) {
+                absorbidas.add(franjas.get(j).id());
+                if (franjas.get(j).fin().isAfter(fin)) {
+                    fin = franjas.get(j).fin();
+                }
+                j++;
+            }
+
+            if (!absorbidas.isEmpty()) {
+                // Primero se borran las absorbidas: la restricción de exclusión no permite el solapamiento ni un instante
+                eliminadas += entityManager.createQuery("DELETE FROM Disponibilidad d WHERE d.id IN :ids")
+                        .setParameter("ids", absorbidas)
+                        .executeUpdate();
+                entityManager.createQuery("UPDATE Disponibilidad d SET d.horaFin = :horaFin WHERE d.id = :id")
+                        .setParameter("horaFin", fin)
+                        .setParameter("id", primera.id())
+                        .executeUpdate();
+            }
+            i = j;
+        }
+
+        if (eliminadas > 0) {
+            indiceAgenda.invalidar(clave);
+        }
+        return eliminadas;
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.dateservice.agenda;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Foto inmutable de las citas y disponibilidades de un psicólogo en un día.
+ *
+ * Cada lista se guarda ordenada por hora de inicio junto con la posición del
+ * intervalo de mayor hora de fin en cada prefijo, de modo que las preguntas de
+ * solapamiento y cobertura se responden con una búsqueda binaria (O(log n)).
+ * Las modificaciones devuelven una foto nueva.
+ */
+public final class DiaAgenda {
+
+    public static final DiaAgenda VACIO = new DiaAgenda(ListaIntervalos.VACIA, ListaIntervalos.VACIA);
+
+    private final ListaIntervalos citas;
+    private final ListaIntervalos disponibilidades;
+
+    private DiaAgenda(ListaIntervalos citas, ListaIntervalos disponibilidades) {
+        this.citas = citas;
+        this.disponibilidades = disponibilidades;
+    }
+
+    public static DiaAgenda de(List<Intervalo> citas, List<Intervalo> disponibilidades) {
+        return new DiaAgenda(ListaIntervalos.de(citas), ListaIntervalos.de(disponibilidades));
+    }
+
+    // Consultas sobre citas
+
+    public Intervalo citaQueSolapa(LocalTime inicio, LocalTime fin) {
+        return citas.primeroQueSolapa(inicio, fin);
+    }
+
+    public List<Intervalo> citas() {
+        return citas.comoLista();
+    }
+
+    // Consultas sobre disponibilidades
+
+    public Intervalo disponibilidadQueSolapa(LocalTime inicio, LocalTime fin) {
+        return disponibilidades.primeroQueSolapa(inicio, fin);
+    }
+
+    public Intervalo disponibilidadQueCubre(LocalTime inicio, LocalTime fin) {
+        return disponibilidades.primeroQueCubre(inicio, fin);
+    }
+
+    public Intervalo disponibilidadQueTerminaEn(LocalTime hora) {
+        return disponibilidades.terminaEn(hora);
+    }
+
+    public Intervalo disponibilidadQueEmpiezaEn(LocalTime hora) {
+        return disponibilidades.empiezaEn(hora);
+    }
+
+    public List<Intervalo> disponibilidades() {
+        return disponibilidades.comoLista();
+    }
+
+    // Modificaciones
+
+    public DiaAgenda conCita(Intervalo cita) {
+        return new DiaAgenda(citas.con(cita), disponibilidades);
+    }
+
+    public DiaAgenda sinCita(Long id) {
+        return new DiaAgenda(citas.sin(id), disponibilidades);
+    }
+
+    public DiaAgenda conDisponibilidad(Intervalo disponibilidad) {
+        return new DiaAgenda(citas, disponibilidades.con(disponibilidad));
+    }
+
+    public DiaAgenda sinDisponibilidad(Long id) {
+        return new DiaAgenda(citas, disponibilidades.sin(id));
+    }
+
+    @Override
+    public String toString() {
+        return "DiaAgenda{citas=" + citas.comoLista() + ", disponibilidades=" + disponibilidades.comoLista() + '}';
+    }
+
+    /**
+     * Arreglo ordenado por inicio con el índice del máximo fin de cada prefijo.
+     */
+    private static final class ListaIntervalos {
+
+        private static final Comparator<Intervalo> ORDEN =
+                Comparator.comparing(Intervalo::inicio).thenComparing(Intervalo::fin);
+
+        static final ListaIntervalos VACIA = new ListaIntervalos(new Intervalo[0]);
+
+        private final Intervalo[] intervalos;
+        private final int[] maxFin;
+
+        private ListaIntervalos(Intervalo[] ordenados) {
+            this.intervalos = ordenados;
+            this.maxFin = new int[ordenados.length];
+            for (int i = 0; i < ordenados.length; i++) {
+                maxFin[i] = (i == 0 || ordenados[i].fin().isAfter(ordenados[maxFin[i - 1]].fin()))
+                        ? i
+                        : maxFin[i - 1];
+            }
+        }
+
+        static ListaIntervalos de(List<Intervalo> intervalos) {
+            if (intervalos.isEmpty()) {
+                return VACIA;
+            }
+            Intervalo[] ordenados = intervalos.toArray(new Intervalo[0]);
+            Arrays.sort(ordenados, ORDEN);
+            return new ListaIntervalos(ordenados);
+        }
+
+        Intervalo primeroQueSolapa(LocalTime inicio, LocalTime fin) {
+            // Solo pueden solapar los que empiezan antes de 'fin'; basta mirar el de mayor fin entre ellos
+            int ultimo = ultimoConInicioAntesDe(fin, false);
+            if (ultimo < 0) {
+                return null;
+            }
+            Intervalo candidato = intervalos[maxFin[ultimo]];
+            return candidato.fin().isAfter(inicio) ? candidato : null;
+        }
+
+        Intervalo primeroQueCubre(LocalTime inicio, LocalTime fin) {
+            int ultimo = ultimoConInicioAntesDe(inicio, true);
+            if (ultimo < 0) {
+                return null;
+            }
+            Intervalo candidato = intervalos[maxFin[ultimo]];
+            return candidato.fin().isBefore(fin) ? null : candidato;
+        }
+
+        Intervalo terminaEn(LocalTime hora) {
+            for (int i = ultimoConInicioAntesDe(hora, false); i >= 0; i--) {
+                if (intervalos[maxFin[i]].fin().isBefore(hora)) {
+                    return null;
+                }
+                if (intervalos[i].fin().equals(hora)) {
+                    return intervalos[i];
+                }
+            }
+            return null;
+        }
+
+        Intervalo empiezaEn(LocalTime hora) {
+            int siguiente = ultimoConInicioAntesDe(hora, false) + 1;
+            if (siguiente < intervalos.length && intervalos[siguiente].inicio().equals(hora)) {
+                return intervalos[siguiente];
+            }
+            return null;
+        }
+
+        ListaIntervalos con(Intervalo nuevo) {
+            Intervalo[] copia = Arrays.copyOf(intervalos, intervalos.length + 1);
+            int pos = intervalos.length;
+            while (pos > 0 && ORDEN.compare(copia[pos - 1], nuevo) > 0) {
+                copia[pos] = copia[pos - 1];
+                pos--;
+            }
+            copia[pos] = nuevo;
+            return new ListaIntervalos(copia);
+        }
+
+        ListaIntervalos sin(Long id) {
+            List<Intervalo> restantes = new ArrayList<>(intervalos.length);
+            for (Intervalo intervalo : intervalos) {
+                if (!intervalo.id().equals(id)) {
+                    restantes.add(intervalo);
+                }
+            }
+            if (restantes.size() == intervalos.length) {
+                return this;
+            }
+            return new ListaIntervalos(restantes.toArray(new Intervalo[0]));
+        }
+
+        List<Intervalo> comoLista() {
+            return List.of(intervalos);
+        }
+
+        /**
+         * Posición del último intervalo cuyo inicio es anterior (o igual, si inclusivo) a la hora dada; -1 si no hay.
+         */
+        private int ultimoConInicioAntesDe(LocalTime hora, boolean inclusivo) {
+            int bajo = 0;
+            int alto = intervalos.length - 1;
+            int resultado = -1;
+            while (bajo <= alto) {
+                int medio = (bajo + alto) >>> 1;
+                int cmp = intervalos[medio].inicio().compareTo(hora);
+                if (cmp < 0 || (inclusivo && cmp == 0)) {
+                    resultado = medio;
+                    bajo = medio + 1;
+                } else {
+                    alto = medio - 1;
+                }
+            }
+            return resultado;
+        }
+    }
+}
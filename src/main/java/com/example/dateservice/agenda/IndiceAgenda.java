@@ -0,0 +1,262 @@
+package com.example.dateservice.agenda;
+
+import com.example.dateservice.config.LectorPrimaria;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Índice en memoria de la agenda de cada psicólogo por día, para resolver las
+ * comprobaciones de solapamiento y cobertura sin consultar la base de datos.
+ *
+ * Cada día se carga de la base la primera vez que se pide y queda guardado con la
+ * versión que tenía en {@link VersionesAgenda}. Antes de usarlo se compara esa
+ * versión con la de la base (una lectura por día y transacción): si otra instancia
+ * confirmó una escritura sobre el día, se vuelve a cargar. Los días menos usados
+ * salen del índice al superar {@code agenda.indice.max-dias}.
+ *
+ * Dentro de una transacción se trabaja sobre una vista propia que refleja las
+ * escrituras de esa transacción. Al confirmar, la transacción cambia la versión de
+ * los días que escribió y publica sus vistas con la versión nueva. Si se deshace,
+ * el índice compartido no cambia.
+ */
+@Component
+public class IndiceAgenda {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private VersionesAgenda versionesAgenda;
+
+    @Autowired
+    private LectorPrimaria lectorPrimaria;
+
+    @Value("${agenda.indice.max-dias:20000}")
+    private int maxDias;
+
+    private Cache<ClaveDia, Cargado> dias;
+    private final List<Consumer<ClaveDia>> oyentes = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    void iniciar() {
+        dias = Caffeine.newBuilder()
+                .maximumSize(maxDias)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Devuelve la agenda del día, cargándola de la base si no está en el índice.
+     */
+    public DiaAgenda obtener(ClaveDia clave) {
+        CambiosTransaccion cambios = cambiosTransaccion();
+        if (cambios != null) {
+            Vista vista = cambios.vistas.get(clave);
+            if (vista != null) {
+                return vista.dia;
+            }
+        }
+
+        // La versión se lee antes que las filas: si alguien confirma entre medias, la foto nace vieja y se recarga
+        long version = versionesAgenda.leer(clave).dia();
+        Cargado cargado = (cambios != null && cambios.invalidadas.contains(clave)) ? null : dias.getIfPresent(clave);
+        DiaAgenda dia;
+        if (cargado != null && cargado.version() == version) {
+            dia = cargado.dia();
+        } else {
+            // El índice decide las escrituras: nunca se carga de la réplica
+            dia = lectorPrimaria.leer(() -> cargar(clave));
+            if (cambios == null) {
+                dias.put(clave, new Cargado(dia, version));
+            }
+        }
+
+        if (cambios != null) {
+            cambios.vistas.put(clave, new Vista(dia, version));
+        }
+        return dia;
+    }
+
+    /**
+     * Aplica un cambio a la vista de la transacción actual; se publica al confirmar.
+     */
+    public void registrar(ClaveDia clave, UnaryOperator<DiaAgenda> cambio) {
+        CambiosTransaccion cambios = cambiosTransaccionObligatoria();
+        obtener(clave);
+        Vista vista = cambios.vistas.get(clave);
+        vista.dia = cambio.apply(vista.dia);
+        vista.modificada = true;
+    }
+
+    /**
+     * Marca el día para que se vuelva a cargar de la base cuando la transacción confirme.
+     * Se usa en las escrituras que no calculan el cambio exacto sobre el índice.
+     */
+    public void invalidar(ClaveDia clave) {
+        CambiosTransaccion cambios = cambiosTransaccionObligatoria();
+        cambios.vistas.remove(clave);
+        cambios.invalidadas.add(clave);
+    }
+
+    /**
+     * Saca el día del índice compartido de inmediato, sin esperar a la transacción.
+     * Se usa cuando la base rechaza una escritura que el índice daba por válida.
+     */
+    public void descartar(ClaveDia clave) {
+        dias.invalidate(clave);
+        avisar(clave);
+    }
+
+    /**
+     * Registra una acción que se ejecuta cada vez que esta instancia confirma una
+     * escritura sobre un día o lo descarta.
+     */
+    public void alCambiar(Consumer<ClaveDia> oyente) {
+        oyentes.add(oyente);
+    }
+
+    /**
+     * Cantidad de días cargados en el índice compartido.
+     */
+    public int diasCargados() {
+        return (int) dias.estimatedSize();
+    }
+
+    public Cache<ClaveDia, ?> cacheDias() {
+        return dias;
+    }
+
+    private DiaAgenda cargar(ClaveDia clave) {
+        List<Intervalo> citas = entityManager.createQuery(
+                        "SELECT new com.example.dateservice.agenda.Intervalo(c.id, c.horaInicio, c.horaFin) " +
+                                "FROM Date c WHERE c.idPsicologo = :idPsicologo AND c.fecha = :fecha",
+                        Intervalo.class
+                )
+                .setParameter("idPsicologo", clave.idPsicologo())
+                .setParameter("fecha", clave.fecha())
+                .getResultList();
+
+        List<Intervalo> disponibilidades = entityManager.createQuery(
+                        "SELECT new com.example.dateservice.agenda.Intervalo(d.id, d.horaInicio, d.horaFin) " +
+                                "FROM Disponibilidad d WHERE d.idPsicologo = :idPsicologo AND d.fecha = :fecha",
+                        Intervalo.class
+                )
+                .setParameter("idPsicologo", clave.idPsicologo())
+                .setParameter("fecha", clave.fecha())
+                .getResultList();
+
+        return DiaAgenda.de(citas, disponibilidades);
+    }
+
+    private void confirmar(CambiosTransaccion cambios) {
+        for (ClaveDia clave : cambios.invalidadas) {
+            dias.invalidate(clave);
+            avisar(clave);
+        }
+
+        cambios.vistas.forEach((clave, vista) -> {
+            if (cambios.invalidadas.contains(clave)) {
+                return;
+            }
+            if (!vista.modificada) {
+                dias.put(clave, new Cargado(vista.dia, vista.version));
+                return;
+            }
+            // La versión nueva se escribió en la misma transacción, con el cerrojo del día tomado
+            dias.put(clave, new Cargado(vista.dia, cambios.versionesNuevas.get(clave)));
+            avisar(clave);
+        });
+    }
+
+    private void avisar(ClaveDia clave) {
+        for (Consumer<ClaveDia> oyente : oyentes) {
+            oyente.accept(clave);
+        }
+    }
+
+    private CambiosTransaccion cambiosTransaccion() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        CambiosTransaccion cambios = (CambiosTransaccion) TransactionSynchronizationManager.getResource(this);
+        if (cambios == null) {
+            cambios = new CambiosTransaccion();
+            TransactionSynchronizationManager.bindResource(this, cambios);
+            TransactionSynchronizationManager.registerSynchronization(cambios);
+        }
+        return cambios;
+    }
+
+    private CambiosTransaccion cambiosTransaccionObligatoria() {
+        CambiosTransaccion cambios = cambiosTransaccion();
+        if (cambios == null) {
+            throw new IllegalStateException("Las escrituras sobre la agenda requieren una transacción activa");
+        }
+        return cambios;
+    }
+
+    private record Cargado(DiaAgenda dia, long version) {
+    }
+
+    private static final class Vista {
+        private DiaAgenda dia;
+        private final long version;
+        private boolean modificada;
+
+        private Vista(DiaAgenda dia, long version) {
+            this.dia = dia;
+            this.version = version;
+        }
+    }
+
+    private final class CambiosTransaccion implements TransactionSynchronization {
+        private final Map<ClaveDia, Vista> vistas = new HashMap<>();
+        private final Set<ClaveDia> invalidadas = new HashSet<>();
+        private Map<ClaveDia, Long> versionesNuevas = Map.of();
+
+        @Override
+        public int getOrder() {
+            // Antes que cualquier cerrojo de agenda se suelte
+            return Ordered.HIGHEST_PRECEDENCE;
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            Set<ClaveDia> escritas = new HashSet<>(invalidadas);
+            vistas.forEach((clave, vista) -> {
+                if (vista.modificada) {
+                    escritas.add(clave);
+                }
+            });
+            if (!escritas.isEmpty()) {
+                versionesNuevas = versionesAgenda.cambiar(escritas);
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(IndiceAgenda.this);
+            if (status == STATUS_COMMITTED) {
+                confirmar(this);
+            }
+        }
+    }
+}
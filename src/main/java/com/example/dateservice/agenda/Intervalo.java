@@ -0,0 +1,28 @@
+package com.example.dateservice.agenda;
+
+import com.example.dateservice.entity.Date;
+import com.example.dateservice.entity.Disponibilidad;
+
+import java.time.LocalTime;
+
+/**
+ * Franja horaria [inicio, fin) de una cita o disponibilidad, junto con el ID de su fila.
+ */
+public record Intervalo(Long id, LocalTime inicio, LocalTime fin) {
+
+    public static Intervalo de(Date cita) {
+        return new Intervalo(cita.getId(), cita.getHoraInicio(), cita.getHoraFin());
+    }
+
+    public static Intervalo de(Disponibilidad disponibilidad) {
+        return new Intervalo(disponibilidad.getId(), disponibilidad.getHoraInicio(), disponibilidad.getHoraFin());
+    }
+
+    public boolean solapa(LocalTime otroInicio, LocalTime otroFin) {
+        return inicio.isBefore(otroFin) && fin.isAfter(otroInicio);
+    }
+
+    public boolean cubre(LocalTime otroInicio, LocalTime otroFin) {
+        return !inicio.isAfter(otroInicio) && !fin.isBefore(otroFin);
+    }
+}
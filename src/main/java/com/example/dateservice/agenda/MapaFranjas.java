@@ -0,0 +1,150 @@
+package com.example.dateservice.agenda;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mapa de bits de la agenda de un día en franjas fijas de {@value #MINUTOS_POR_FRANJA} minutos.
+ *
+ * El bit i representa la franja que empieza en el minuto i * {@value #MINUTOS_POR_FRANJA}
+ * y está encendido si ese tramo está dentro de una disponibilidad y no lo ocupa ninguna cita.
+ * Un día entero cabe en {@value #PALABRAS} palabras de 64 bits.
+ */
+public final class MapaFranjas {
+
+    public static final int MINUTOS_POR_FRANJA = 5;
+    public static final int MINUTOS_POR_DIA = 24 * 60;
+    public static final int FRANJAS_POR_DIA = MINUTOS_POR_DIA / MINUTOS_POR_FRANJA;
+    static final int PALABRAS = (FRANJAS_POR_DIA + 63) / 64;
+
+    private final long[] bits;
+
+    private MapaFranjas(long[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * Construye el mapa a partir de las disponibilidades del día menos sus citas.
+     * Las disponibilidades se recortan hacia dentro y las citas se amplían hacia fuera
+     * cuando no caen en el borde de una franja.
+     */
+    public static MapaFranjas de(DiaAgenda dia) {
+        long[] bits = new long[PALABRAS];
+        for (Intervalo disponibilidad : dia.disponibilidades()) {
+            encender(bits, franjaPorArriba(disponibilidad.inicio()), franjaPorAbajo(disponibilidad.fin()));
+        }
+        for (Intervalo cita : dia.citas()) {
+            apagar(bits, franjaPorAbajo(cita.inicio()), franjaPorArriba(cita.fin()));
+        }
+        return new MapaFranjas(bits);
+    }
+
+    /**
+     * Devuelve los huecos libres de la duración indicada; cada hueco empieza
+     * {@code pasoMinutos} después del anterior mientras siga habiendo tiempo libre.
+     * Ambos valores deben estar entre 1 y {@value #MINUTOS_POR_DIA}: fuera de ese rango
+     * el redondeo a franjas desborda.
+     */
+    public List<Intervalo> huecosLibres(int duracionMinutos, int pasoMinutos) {
+        if (duracionMinutos <= 0 || duracionMinutos > MINUTOS_POR_DIA || pasoMinutos <= 0 || pasoMinutos > MINUTOS_POR_DIA) {
+            throw new IllegalArgumentException("La duración y el paso deben estar entre 1 y " + MINUTOS_POR_DIA + " minutos.");
+        }
+        int largo = redondearArriba(duracionMinutos);
+        int paso = redondearArriba(pasoMinutos);
+
+        // Bit i encendido => las franjas [i, i + cubiertas) están todas libres
+        long[] inicios = bits.clone();
+        int cubiertas = 1;
+        while (cubiertas < largo) {
+            int desplazamiento = Math.min(cubiertas, largo - cubiertas);
+            long[] desplazado = desplazarHaciaAbajo(inicios, desplazamiento);
+            for (int i = 0; i < PALABRAS; i++) {
+                inicios[i] &= desplazado[i];
+            }
+            cubiertas += desplazamiento;
+        }
+
+        List<Intervalo> huecos = new ArrayList<>();
+        for (int i = siguienteEncendido(inicios, 0); i >= 0; i = siguienteEncendido(inicios, i + paso)) {
+            int minutoInicio = i * MINUTOS_POR_FRANJA;
+            int minutoFin = minutoInicio + duracionMinutos;
+            if (minutoFin >= MINUTOS_POR_DIA) {
+                break;
+            }
+            huecos.add(new Intervalo(null, LocalTime.of(minutoInicio / 60, minutoInicio % 60),
+                    LocalTime.of(minutoFin / 60, minutoFin % 60)));
+        }
+        return huecos;
+    }
+
+    private static int franjaPorAbajo(LocalTime hora) {
+        return (hora.getHour() * 60 + hora.getMinute()) / MINUTOS_POR_FRANJA;
+    }
+
+    private static int franjaPorArriba(LocalTime hora) {
+        int minutos = hora.getHour() * 60 + hora.getMinute() + (hora.getSecond() > 0 || hora.getNano() > 0 ? 1 : 0);
+        return Math.min(FRANJAS_POR_DIA, redondearArriba(minutos));
+    }
+
+    private static int redondearArriba(int minutos) {
+        return (minutos + MINUTOS_POR_FRANJA - 1) / MINUTOS_POR_FRANJA;
+    }
+
+    /**
+     * Enciende las franjas [desde, hasta) palabra a palabra.
+     */
+    private static void encender(long[] bits, int desde, int hasta) {
+        for (int i = desde; i < hasta; ) {
+            int palabra = i >>> 6;
+            int finPalabra = Math.min(hasta, (palabra + 1) << 6);
+            bits[palabra] |= mascara(i & 63, finPalabra - i);
+            i = finPalabra;
+        }
+    }
+
+    private static void apagar(long[] bits, int desde, int hasta) {
+        for (int i = desde; i < hasta; ) {
+            int palabra = i >>> 6;
+            int finPalabra = Math.min(hasta, (palabra + 1) << 6);
+            bits[palabra] &= ~mascara(i & 63, finPalabra - i);
+            i = finPalabra;
+        }
+    }
+
+    private static long mascara(int desde, int cantidad) {
+        return cantidad == 64 ? -1L : ((1L << cantidad) - 1) << desde;
+    }
+
+    /**
+     * Desplaza el mapa de modo que el bit i pasa a valer lo que valía el bit i + n.
+     */
+    private static long[] desplazarHaciaAbajo(long[] bits, int n) {
+        long[] resultado = new long[bits.length];
+        int palabras = n >>> 6;
+        int resto = n & 63;
+        for (int i = 0; i + palabras < bits.length; i++) {
+            long bajo = bits[i + palabras] >>> resto;
+            long alto = (resto != 0 && i + palabras + 1 < bits.length) ? bits[i + palabras + 1] << (64 - resto) : 0L;
+            resultado[i] = bajo | alto;
+        }
+        return resultado;
+    }
+
+    private static int siguienteEncendido(long[] bits, int desde) {
+        int palabra = desde >>> 6;
+        if (palabra >= bits.length) {
+            return -1;
+        }
+        long actual = bits[palabra] & (-1L << (desde & 63));
+        while (true) {
+            if (actual != 0) {
+                return (palabra << 6) + Long.numberOfTrailingZeros(actual);
+            }
+            if (++palabra == bits.length) {
+                return -1;
+            }
+            actual = bits[palabra];
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.dateservice.agenda;
+
+import com.example.dateservice.config.LectorPrimaria;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Versiones de la agenda guardadas en la base, para que todas las instancias del
+ * servicio sepan si lo que tienen en memoria sigue vigente: una por psicólogo y día
+ * ({@code agenda_day_versions}) y otra por psicólogo para sus reglas de
+ * disponibilidad recurrentes ({@code availability_rule_versions}), que cambian las
+ * franjas de muchos días a la vez. Cambian dentro de la transacción que escribe, así
+ * que se confirman junto con la escritura.
+ *
+ * Cada versión nueva es un número al azar y no un contador: se guarda con un único
+ * upsert sin leer la anterior, y solo importa si cambió. Dentro de una transacción
+ * cada día se lee una sola vez.
+ */
+@Component
+public class VersionesAgenda {
+
+    // Las dos versiones en una sola lectura; una fila que no existe se lee como 0
+    private static final String LEER =
+            "SELECT (SELECT version FROM agenda_day_versions WHERE id_psicologo = ? AND fecha = ?), " +
+                    "(SELECT version FROM availability_rule_versions WHERE id_psicologo = ?)";
+    private static final String UPSERT_DIA_POSTGRES =
+            "INSERT INTO agenda_day_versions (id_psicologo, fecha, version) VALUES (?, ?, ?) " +
+                    "ON CONFLICT (id_psicologo, fecha) DO UPDATE SET version = EXCLUDED.version";
+    private static final String UPSERT_DIA_MERGE =
+            "MERGE INTO agenda_day_versions (id_psicologo, fecha, version) KEY (id_psicologo, fecha) VALUES (?, ?, ?)";
+    private static final String UPSERT_REGLAS_POSTGRES =
+            "INSERT INTO availability_rule_versions (id_psicologo, version) VALUES (?, ?) " +
+                    "ON CONFLICT (id_psicologo) DO UPDATE SET version = EXCLUDED.version";
+    private static final String UPSERT_REGLAS_MERGE =
+            "MERGE INTO availability_rule_versions (id_psicologo, version) KEY (id_psicologo) VALUES (?, ?)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private LectorPrimaria lectorPrimaria;
+
+    private volatile Boolean postgres;
+
+    /**
+     * Versiones actuales del día y de las reglas de su psicólogo. En una escritura
+     * deben leerse con el cerrojo del día tomado.
+     */
+    public Version leer(ClaveDia clave) {
+        Map<ClaveDia, Version> leidas = leidasTransaccion();
+        if (leidas != null) {
+            Version version = leidas.get(clave);
+            if (version != null) {
+                return version;
+            }
+        }
+
+        // Una versión leída de la réplica podría ser anterior a los datos que valida
+        Version version = lectorPrimaria.leer(() -> jdbcTemplate.queryForObject(LEER,
+                (rs, fila) -> new Version(rs.getLong(1), rs.getLong(2)),
+                clave.idPsicologo(), clave.fecha(), clave.idPsicologo()));
+        if (leidas != null) {
+            leidas.put(clave, version);
+        }
+        return version;
+    }
+
+    /**
+     * Asigna una versión nueva a cada día en la transacción actual y las devuelve.
+     */
+    public Map<ClaveDia, Long> cambiar(Collection<ClaveDia> claves) {
+        Map<ClaveDia, Long> nuevas = new HashMap<>();
+        List<Object[]> filas = new ArrayList<>(claves.size());
+        for (ClaveDia clave : claves) {
+            long version = nuevaVersion();
+            nuevas.put(clave, version);
+            filas.add(new Object[]{clave.idPsicologo(), clave.fecha(), version});
+        }
+        jdbcTemplate.batchUpdate(esPostgres() ? UPSERT_DIA_POSTGRES : UPSERT_DIA_MERGE, filas);
+
+        Map<ClaveDia, Version> leidas = leidasExistentes();
+        if (leidas != null) {
+            nuevas.forEach((clave, dia) -> leidas.computeIfPresent(clave, (k, v) -> new Version(dia, v.reglas())));
+        }
+        return nuevas;
+    }
+
+    /**
+     * Asigna una versión nueva a las reglas del psicólogo en la transacción actual.
+     */
+    public void cambiarReglas(Long idPsicologo) {
+        long version = nuevaVersion();
+        jdbcTemplate.update(esPostgres() ? UPSERT_REGLAS_POSTGRES : UPSERT_REGLAS_MERGE, idPsicologo, version);
+
+        Map<ClaveDia, Version> leidas = leidasExistentes();
+        if (leidas != null) {
+            leidas.replaceAll((clave, v) -> clave.idPsicologo().equals(idPsicologo) ? new Version(v.dia(), version) : v);
+        }
+    }
+
+    private static long nuevaVersion() {
+        long version;
+        do {
+            version = ThreadLocalRandom.current().nextLong();
+        } while (version == 0);
+        return version;
+    }
+
+    private boolean esPostgres() {
+        if (postgres == null) {
+            postgres = "PostgreSQL".equals(jdbcTemplate.execute(
+                    (ConnectionCallback<String>) c -> c.getMetaData().getDatabaseProductName()));
+        }
+        return postgres;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<ClaveDia, Version> leidasExistentes() {
+        return (Map<ClaveDia, Version>) TransactionSynchronizationManager.getResource(this);
+    }
+
+    private Map<ClaveDia, Version> leidasTransaccion() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        Map<ClaveDia, Version> leidas = leidasExistentes();
+        if (leidas == null) {
+            leidas = new HashMap<>();
+            TransactionSynchronizationManager.bindResource(this, leidas);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(VersionesAgenda.this);
+                }
+            });
+        }
+        return leidas;
+    }
+
+    /**
+     * Versión del día y de las reglas del psicólogo; cualquiera de las dos cambia lo que se lee del día.
+     */
+    public record Version(long dia, long reglas) {
+    }
+}
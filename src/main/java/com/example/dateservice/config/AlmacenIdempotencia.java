@@ -0,0 +1,342 @@
+package com.example.dateservice.config;
+
+import com.example.dateservice.entity.RespuestaIdempotente;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.PersistenceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Respuestas de las escrituras que llegan con cabecera {@code Idempotency-Key}.
+ *
+ * Si el cliente repite la solicitud con la misma clave (por ejemplo tras un timeout),
+ * se devuelve la respuesta original sin volver a ejecutar la operación. Las respuestas
+ * se guardan en memoria con tamaño y vencimiento acotados; con
+ * {@code agenda.idempotencia.almacen=base} también se guardan en la tabla
+ * {@code idempotency_keys}, para que las vea cualquier instancia.
+ *
+ * Una clave reutilizada con otro cuerpo se rechaza con 422, y mientras la solicitud
+ * original sigue en curso las repeticiones la esperan (en la misma instancia) o
+ * reciben 409 (en otra instancia); estos rechazos usan el mismo cuerpo
+ * {@code ErrorRespuesta} que el resto de la API. Los rechazos de agenda se guardan
+ * como la respuesta de error que les corresponde; las respuestas 5xx no se guardan.
+ */
+@Component
+public class AlmacenIdempotencia {
+
+    public static final String CABECERA = "Idempotency-Key";
+    public static final String CABECERA_REPETIDA = "Idempotent-Replayed";
+
+    private static final int LONGITUD_MAXIMA_CLAVE = 255;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${agenda.idempotencia.almacen:memoria}")
+    private String almacen;
+
+    @Value("${agenda.idempotencia.max-claves:100000}")
+    private long maxClaves;
+
+    @Value("${agenda.idempotencia.expiracion-horas:24}")
+    private long expiracionHoras;
+
+    // Cuánto espera una repetición a que termine la solicitud original en esta instancia
+    @Value("${agenda.idempotencia.espera-ms:10000}")
+    private long esperaMs;
+
+    private Cache<String, Respuesta> respuestas;
+    private TransactionTemplate transacciones;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Respuesta>> enCurso = new ConcurrentHashMap<>();
+    private final AtomicLong repeticiones = new AtomicLong();
+
+    @PostConstruct
+    void iniciar() {
+        respuestas = Caffeine.newBuilder()
+                .maximumSize(maxClaves)
+                .expireAfterWrite(Duration.ofHours(expiracionHoras))
+                .build();
+        transacciones = new TransactionTemplate(transactionManager);
+        transacciones.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Ejecuta la acción una sola vez por clave y operación. Sin clave, la ejecuta siempre.
+     */
+    public ResponseEntity<?> ejecutar(String clave, String operacion, Object solicitud, Supplier<ResponseEntity<?>> accion) {
+        return ejecutar(clave, operacion, solicitud, () -> null, accion);
+    }
+
+    /**
+     * Como {@link #ejecutar(String, String, Object, Supplier)}, pero antes de ejecutar la
+     * acción consulta la admisión (por ejemplo el límite por cliente): si devuelve una
+     * respuesta, se responde con ella sin guardarla. Las repeticiones que se contestan
+     * con la respuesta guardada no pasan por la admisión.
+     */
+    public ResponseEntity<?> ejecutar(String clave, String operacion, Object solicitud,
+                                      Supplier<ResponseEntity<?>> admision, Supplier<ResponseEntity<?>> accion) {
+        if (clave == null || clave.isBlank()) {
+            ResponseEntity<?> rechazo = admision.get();
+            return rechazo != null ? rechazo : accion.get();
+        }
+
+        if (clave.length() > LONGITUD_MAXIMA_CLAVE) {
+            return ManejadorErrores.respuesta(new AgendaException(CodigoError.DATOS_INVALIDOS,
+                    "La cabecera " + CABECERA + " no puede superar " + LONGITUD_MAXIMA_CLAVE + " caracteres"));
+        }
+
+        String id = operacion + ":" + clave;
+        String huella = huella(operacion, solicitud);
+
+        Respuesta guardada = buscar(id);
+        if (guardada != null) {
+            return repetir(guardada, huella);
+        }
+
+        CompletableFuture<Respuesta> propia = new CompletableFuture<>();
+        CompletableFuture<Respuesta> otra = enCurso.putIfAbsent(id, propia);
+        if (otra != null) {
+            return esperar(otra, huella);
+        }
+
+        try {
+            // Pudo terminar otra solicitud con la misma clave entre la búsqueda y la reserva
+            guardada = buscar(id);
+            if (guardada != null) {
+                propia.complete(guardada);
+                return repetir(guardada, huella);
+            }
+
+            if (usaBase()) {
+                RespuestaIdempotente existente = reservar(id, huella);
+                if (existente != null) {
+                    propia.complete(null);
+                    return existente.getEstado() == null
+                            ? enCursoEnOtraInstancia()
+                            : repetir(new Respuesta(existente.getHuella(), existente.getEstado(),
+                            existente.getTipoContenido(), existente.getCuerpo()), huella);
+                }
+            }
+
+            ResponseEntity<?> rechazo = admision.get();
+            if (rechazo != null) {
+                liberar(id);
+                propia.complete(null);
+                return rechazo;
+            }
+
+            ResponseEntity<?> respuesta;
+            try {
+                respuesta = accion.get();
+            } catch (AgendaException e) {
+                respuesta = ManejadorErrores.respuesta(e);
+            }
+            if (respuesta.getStatusCode().is5xxServerError()) {
+                liberar(id);
+                propia.complete(null);
+                return respuesta;
+            }
+
+            Respuesta nueva = serializar(huella, respuesta);
+            guardar(id, nueva);
+            propia.complete(nueva);
+            return respuesta;
+        } catch (RuntimeException e) {
+            liberar(id);
+            propia.completeExceptionally(e);
+            throw e;
+        } finally {
+            enCurso.remove(id, propia);
+        }
+    }
+
+    public long repeticiones() {
+        return repeticiones.get();
+    }
+
+    @Scheduled(initialDelayString = "${agenda.idempotencia.limpieza-ms:3600000}",
+            fixedDelayString = "${agenda.idempotencia.limpieza-ms:3600000}")
+    public void limpiarVencidas() {
+        if (!usaBase()) {
+            return;
+        }
+        try {
+            Instant limite = Instant.now().minus(Duration.ofHours(expiracionHoras));
+            Integer borradas = transacciones.execute(estado -> entityManager.createQuery(
+                            "DELETE FROM RespuestaIdempotente r WHERE r.creada < :limite")
+                    .setParameter("limite", limite)
+                    .executeUpdate());
+            if (borradas != null && borradas > 0) {
+                System.out.println("Claves de idempotencia vencidas eliminadas: " + borradas);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Error al limpiar claves de idempotencia: " + e.getMessage());
+        }
+    }
+
+    private ResponseEntity<?> esperar(CompletableFuture<Respuesta> original, String huella) {
+        try {
+            Respuesta respuesta = original.get(esperaMs, TimeUnit.MILLISECONDS);
+            return respuesta != null ? repetir(respuesta, huella) : enCursoEnOtraInstancia();
+        } catch (TimeoutException | ExecutionException e) {
+            return enCursoEnOtraInstancia();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return enCursoEnOtraInstancia();
+        }
+    }
+
+    private ResponseEntity<?> repetir(Respuesta respuesta, String huella) {
+        if (!respuesta.huella().equals(huella)) {
+            return ManejadorErrores.respuesta(new AgendaException(CodigoError.IDEMPOTENCIA_REUTILIZADA,
+                    "La clave de idempotencia ya se usó con otra solicitud"));
+        }
+        repeticiones.incrementAndGet();
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(respuesta.estado()).header(CABECERA_REPETIDA, "true");
+        if (respuesta.tipoContenido() != null) {
+            builder.contentType(MediaType.parseMediaType(respuesta.tipoContenido()));
+        }
+        return builder.body(respuesta.cuerpo());
+    }
+
+    private ResponseEntity<?> enCursoEnOtraInstancia() {
+        return ManejadorErrores.respuesta(new AgendaException(CodigoError.IDEMPOTENCIA_EN_CURSO,
+                "Hay una solicitud en curso con la misma clave de idempotencia, intente nuevamente"));
+    }
+
+    private Respuesta buscar(String id) {
+        Respuesta respuesta = respuestas.getIfPresent(id);
+        if (respuesta != null || !usaBase()) {
+            return respuesta;
+        }
+
+        RespuestaIdempotente fila = transacciones.execute(estado -> entityManager.find(RespuestaIdempotente.class, id));
+        if (fila == null || fila.getEstado() == null) {
+            return null;
+        }
+        respuesta = new Respuesta(fila.getHuella(), fila.getEstado(), fila.getTipoContenido(), fila.getCuerpo());
+        respuestas.put(id, respuesta);
+        return respuesta;
+    }
+
+    /**
+     * Inserta la fila de la clave como "en curso". Si ya existía, devuelve la existente.
+     */
+    private RespuestaIdempotente reservar(String id, String huella) {
+        try {
+            transacciones.executeWithoutResult(estado -> {
+                entityManager.persist(new RespuestaIdempotente(id, huella));
+                entityManager.flush();
+            });
+            return null;
+        } catch (DataIntegrityViolationException | PersistenceException e) {
+            RespuestaIdempotente existente = transacciones.execute(estado -> entityManager.find(RespuestaIdempotente.class, id));
+            if (existente == null) {
+                throw e;
+            }
+            return existente;
+        }
+    }
+
+    private void guardar(String id, Respuesta respuesta) {
+        respuestas.put(id, respuesta);
+        if (usaBase()) {
+            transacciones.executeWithoutResult(estado -> {
+                RespuestaIdempotente fila = entityManager.find(RespuestaIdempotente.class, id);
+                fila.setEstado(respuesta.estado());
+                fila.setTipoContenido(respuesta.tipoContenido());
+                fila.setCuerpo(respuesta.cuerpo());
+            });
+        }
+    }
+
+    private void liberar(String id) {
+        if (usaBase()) {
+            transacciones.executeWithoutResult(estado -> entityManager.createQuery(
+                            "DELETE FROM RespuestaIdempotente r WHERE r.clave = :clave AND r.estado IS NULL")
+                    .setParameter("clave", id)
+                    .executeUpdate());
+        }
+    }
+
+    private Respuesta serializar(String huella, ResponseEntity<?> respuesta) {
+        Object cuerpo = respuesta.getBody();
+        MediaType tipo = respuesta.getHeaders().getContentType();
+        String texto;
+        if (cuerpo == null || cuerpo instanceof String) {
+            texto = (String) cuerpo;
+            if (tipo == null) {
+                tipo = MediaType.TEXT_PLAIN;
+            }
+        } else {
+            texto = json(cuerpo);
+            if (tipo == null) {
+                tipo = MediaType.APPLICATION_JSON;
+            }
+        }
+        return new Respuesta(huella, respuesta.getStatusCode().value(), tipo.toString(), texto);
+    }
+
+    private String huella(String operacion, Object solicitud) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(operacion.getBytes(StandardCharsets.UTF_8));
+            digest.update(json(solicitud).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String json(Object valor) {
+        try {
+            return objectMapper.writeValueAsString(valor);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("No se pudo serializar para la clave de idempotencia", e);
+        }
+    }
+
+    private boolean usaBase() {
+        return "base".equalsIgnoreCase(almacen);
+    }
+
+    private record Respuesta(String huella, int estado, String tipoContenido, String cuerpo) {
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.dateservice.config;
+
+import com.example.dateservice.dto.ErrorRespuesta;
+import com.example.dateservice.exception.CodigoError;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compartimentos (bulkheads) de la API de agenda. Cada solicitud se clasifica en
+ * reservas (escrituras interactivas: agendar, modificar, cancelar, cambios de una
+ * disponibilidad), lecturas del calendario o masivas (creación masiva, reglas,
+ * listados completos o sin un día o año que los acote, y exportaciones), y cada compartimento tiene su propio
+ * {@link LimiteAdaptativo}. Si el compartimento está lleno la solicitud se rechaza
+ * con 429 en lugar de esperar una conexión: un volcado de {@code /todas} o una
+ * carga masiva no pueden ocupar los lugares de las reservas.
+ *
+ * Las respuestas asíncronas (streaming, exportaciones) conservan su lugar hasta
+ * terminar de escribirse.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class CompartimentosAgenda extends OncePerRequestFilter {
+
+    public enum Compartimento {
+        RESERVAS, LECTURAS, MASIVAS
+    }
+
+    private static final String PREFIJO = "/api/dates";
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${agenda.compartimentos.habilitados:true}")
+    private boolean habilitados;
+
+    @Value("${agenda.compartimentos.tolerancia:2.0}")
+    private double tolerancia;
+
+    @Value("${agenda.compartimentos.latencia-minima-ms:20}")
+    private long latenciaMinimaMs;
+
+    private final Map<Compartimento, LimiteAdaptativo> limites = new EnumMap<>(Compartimento.class);
+
+    @PostConstruct
+    void iniciar() {
+        limites.put(Compartimento.RESERVAS, crear("reservas", 2, 20));
+        limites.put(Compartimento.LECTURAS, crear("lecturas", 2, 50));
+        limites.put(Compartimento.MASIVAS, crear("masivas", 1, 1));
+    }
+
+    private LimiteAdaptativo crear(String nombre, int minimo, int maximo) {
+        String prefijo = "agenda.compartimentos." + nombre + ".";
+        return new LimiteAdaptativo(
+                environment.getProperty(prefijo + "minimo", Integer.class, minimo),
+                environment.getProperty(prefijo + "maximo", Integer.class, maximo),
+                tolerancia,
+                TimeUnit.MILLISECONDS.toNanos(latenciaMinimaMs));
+    }
+
+    public LimiteAdaptativo limite(Compartimento compartimento) {
+        return limites.get(compartimento);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Compartimento compartimento = habilitados ? clasificar(request) : null;
+        if (compartimento == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        LimiteAdaptativo limite = limites.get(compartimento);
+        if (!limite.adquirir()) {
+            rechazar(response, compartimento);
+            return;
+        }
+
+        long inicio = System.nanoTime();
+        AtomicBoolean liberado = new AtomicBoolean();
+        Runnable liberar = () -> {
+            if (liberado.compareAndSet(false, true)) {
+                limite.liberar(System.nanoTime() - inicio, esMuestra(response));
+            }
+        };
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new Liberacion(liberar));
+            } else {
+                liberar.run();
+            }
+        }
+    }
+
+    static Compartimento clasificar(HttpServletRequest request) {
+        String ruta = request.getRequestURI().substring(request.getContextPath().length());
+        if (!ruta.startsWith(PREFIJO + "/")) {
+            return null;
+        }
+        ruta = ruta.substring(PREFIJO.length());
+
+        // La consulta de una solicitud encolada es una espera larga que no usa la base
+        if (ruta.startsWith("/agendar/solicitudes/")) {
+            return null;
+        }
+
+        boolean lectura = "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+        if (ruta.startsWith("/disponibilidades/masivas")
+                || (ruta.startsWith("/disponibilidades/reglas") && !lectura)
+                || ruta.startsWith("/todas")
+                || ruta.startsWith("/disponibilidades/todas")
+                || ruta.startsWith("/exportar")
+                || (lectura && esListadoSinLimite(request, ruta))) {
+            return Compartimento.MASIVAS;
+        }
+        return lectura ? Compartimento.LECTURAS : Compartimento.RESERVAS;
+    }
+
+    /**
+     * Listados de disponibilidades sin un día ni un año que los acote: recorren la tabla
+     * (o todo un psicólogo) y expanden sus reglas recurrentes.
+     */
+    private static boolean esListadoSinLimite(HttpServletRequest request, String ruta) {
+        if (ruta.equals("/disponibilidades")) {
+            return request.getParameter("fecha") == null;
+        }
+        if (ruta.equals("/disponibilidades/filtrar")) {
+            return request.getParameter("fecha") == null && request.getParameter("anio") == null;
+        }
+        return false;
+    }
+
+    /**
+     * Los 4xx (validación, conflictos, repetidas con otra solicitud) y las respuestas idempotentes
+     * repetidas no llegan a la base: no dicen nada de su latencia. Los 5xx sí, suelen ser esperas agotadas.
+     */
+    static boolean esMuestra(HttpServletResponse response) {
+        int estado = response.getStatus();
+        return (estado < 400 || estado >= 500) && response.getHeader(AlmacenIdempotencia.CABECERA_REPETIDA) == null;
+    }
+
+    private void rechazar(HttpServletResponse response, Compartimento compartimento) throws IOException {
+        CodigoError codigo = CodigoError.DEMASIADAS_SOLICITUDES;
+        response.setStatus(codigo.estado().value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        objectMapper.writeValue(response.getOutputStream(), new ErrorRespuesta(codigo.name(),
+                "Hay demasiadas solicitudes de " + compartimento.name().toLowerCase() + " en curso, intente nuevamente."));
+    }
+
+    private record Liberacion(Runnable liberar) implements AsyncListener {
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            liberar.run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            liberar.run();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            liberar.run();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Una nueva etapa asíncrona vuelve a registrar el oyente
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.dateservice.config;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Lectura de lo propio con réplica: cada escritura deja al cliente una cookie de corta
+ * duración y, mientras la envíe, sus lecturas van a la primaria, así ve la cita que
+ * acaba de agendar aunque la réplica vaya atrasada. La cabecera {@code X-Leer-Primaria}
+ * fuerza lo mismo en una solicitud concreta.
+ */
+@Component
+@ConditionalOnProperty(name = "agenda.replica.habilitada", havingValue = "true")
+public class FiltroLecturaPrimaria extends OncePerRequestFilter {
+
+    public static final String COOKIE = "agenda-primaria";
+    public static final String CABECERA = "X-Leer-Primaria";
+
+    @Value("${agenda.replica.ventana-lectura-propia-segundos:5}")
+    private int ventanaSegundos;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (esEscritura(request)) {
+            Cookie cookie = new Cookie(COOKIE, "1");
+            cookie.setPath("/");
+            cookie.setHttpOnly(true);
+            cookie.setMaxAge(ventanaSegundos);
+            response.addCookie(cookie);
+        } else if (!pidePrimaria(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        LecturaPrimaria.activar();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            LecturaPrimaria.desactivar();
+        }
+    }
+
+    private boolean esEscritura(HttpServletRequest request) {
+        String metodo = request.getMethod();
+        return "POST".equals(metodo) || "PUT".equals(metodo) || "PATCH".equals(metodo) || "DELETE".equals(metodo);
+    }
+
+    private boolean pidePrimaria(HttpServletRequest request) {
+        if ("true".equalsIgnoreCase(request.getHeader(CABECERA))) {
+            return true;
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (COOKIE.equals(cookie.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
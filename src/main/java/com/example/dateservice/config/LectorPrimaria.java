@@ -0,0 +1,54 @@
+package com.example.dateservice.config;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.function.Supplier;
+
+/**
+ * Ejecuta en la primaria las lecturas que alimentan cachés versionadas (versiones,
+ * índice, caché del calendario, reglas), que no pueden guardar una foto de la réplica
+ * con la versión de la primaria.
+ *
+ * {@link LecturaPrimaria} solo decide la conexión antes de la primera consulta de la
+ * transacción. Dentro de una transacción de solo lectura que ya consultó, la conexión
+ * es la de la réplica y no cambia, así que con réplica habilitada estas lecturas corren
+ * en una transacción propia ({@code REQUIRES_NEW}) marcada para la primaria. Como la
+ * transacción de fuera tiene la conexión de la réplica, la nueva sale del otro pool y no
+ * compite con ella. En los demás casos la conexión ya es de la primaria y se lee ahí mismo.
+ */
+@Component
+public class LectorPrimaria {
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${agenda.replica.habilitada:false}")
+    private boolean replica;
+
+    private TransactionTemplate propia;
+
+    @PostConstruct
+    void iniciar() {
+        if (transactionManager != null) {
+            propia = new TransactionTemplate(transactionManager);
+            propia.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            propia.setReadOnly(true);
+        }
+    }
+
+    public <T> T leer(Supplier<T> lectura) {
+        if (replica && propia != null
+                && TransactionSynchronizationManager.isActualTransactionActive()
+                && RutaDataSource.REPLICA.equals(RutaDataSource.ruta())) {
+            return LecturaPrimaria.en(() -> propia.execute(estado -> lectura.get()));
+        }
+        return LecturaPrimaria.en(lectura);
+    }
+}
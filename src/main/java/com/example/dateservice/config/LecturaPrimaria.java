@@ -0,0 +1,47 @@
+package com.example.dateservice.config;
+
+import java.util.function.Supplier;
+
+/**
+ * Marca el hilo actual para que sus transacciones de solo lectura vayan a la base
+ * primaria en lugar de a la réplica. Lo usa el filtro de lectura de lo propio (tras una
+ * escritura el cliente no debe ver la réplica atrasada) y las lecturas que alimentan
+ * cachés versionadas, que no pueden guardar una foto vieja con la versión nueva.
+ *
+ * Solo tiene efecto si se activa antes de la primera consulta de la transacción: la
+ * conexión se elige al ejecutar esa consulta y ya no cambia. Las lecturas de las cachés
+ * pasan por {@link LectorPrimaria}, que abre otra transacción cuando hace falta.
+ */
+public final class LecturaPrimaria {
+
+    private static final ThreadLocal<Boolean> ACTIVA = new ThreadLocal<>();
+
+    private LecturaPrimaria() {
+    }
+
+    public static boolean activa() {
+        return Boolean.TRUE.equals(ACTIVA.get());
+    }
+
+    public static void activar() {
+        ACTIVA.set(Boolean.TRUE);
+    }
+
+    public static void desactivar() {
+        ACTIVA.remove();
+    }
+
+    public static <T> T en(Supplier<T> lectura) {
+        Boolean anterior = ACTIVA.get();
+        ACTIVA.set(Boolean.TRUE);
+        try {
+            return lectura.get();
+        } finally {
+            if (anterior == null) {
+                ACTIVA.remove();
+            } else {
+                ACTIVA.set(anterior);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.dateservice.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Limita cuántas escrituras por minuto hace cada cliente en los endpoints de reserva,
+ * con una cubeta de fichas por cliente y endpoint: admite ráfagas de hasta
+ * {@code capacidad} solicitudes y luego {@code por-minuto} sostenidas. Así un cliente
+ * que reintenta en bucle se frena antes de costar consultas y una transacción.
+ *
+ * El {@code idCliente} lo elige quien llama, así que no basta para frenarlo: cambiándolo
+ * en cada solicitud tendría una cubeta nueva cada vez. Por eso cada solicitud pasa antes
+ * por la cubeta de su origen (usuario autenticado o dirección remota), con límites propios
+ * en {@code <endpoint>.origen.*} y más holgados, porque detrás de una misma dirección
+ * puede haber varios clientes.
+ *
+ * Las cubetas viven en una caché Caffeine (repartida en segmentos, sin un cerrojo
+ * global) y se descartan tras un rato sin uso; cada una se actualiza con
+ * compare-and-set, sin bloquear.
+ */
+@Component
+public class LimitadorClientes {
+
+    public static final String AGENDAR = "agendar";
+    public static final String MODIFICAR = "modificar";
+
+    private static final List<String> ENDPOINTS = List.of(AGENDAR, MODIFICAR);
+    private static final String ORIGEN = ".origen";
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${agenda.limite-clientes.habilitado:true}")
+    private boolean habilitado;
+
+    @Value("${agenda.limite-clientes.max-clientes:100000}")
+    private long maxClientes;
+
+    @Value("${agenda.limite-clientes.inactividad-minutos:10}")
+    private long inactividadMinutos;
+
+    private final Map<String, Regla> reglas = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> limitadas = new ConcurrentHashMap<>();
+
+    private Cache<String, AtomicReference<Cubeta>> cubetas;
+
+    @PostConstruct
+    void iniciar() {
+        cubetas = Caffeine.newBuilder()
+                .maximumSize(maxClientes)
+                .expireAfterAccess(Duration.ofMinutes(inactividadMinutos))
+                .build();
+        for (String endpoint : ENDPOINTS) {
+            String prefijo = "agenda.limite-clientes." + endpoint + ".";
+            int capacidad = environment.getProperty(prefijo + "capacidad", Integer.class, 10);
+            int porMinuto = environment.getProperty(prefijo + "por-minuto", Integer.class, 30);
+            reglas.put(endpoint, new Regla(capacidad, porMinuto / (double) TimeUnit.MINUTES.toNanos(1)));
+            int capacidadOrigen = environment.getProperty(prefijo + "origen.capacidad", Integer.class, 30);
+            int porMinutoOrigen = environment.getProperty(prefijo + "origen.por-minuto", Integer.class, 120);
+            reglas.put(endpoint + ORIGEN, new Regla(capacidadOrigen, porMinutoOrigen / (double) TimeUnit.MINUTES.toNanos(1)));
+            limitadas.put(endpoint, new AtomicLong());
+        }
+    }
+
+    /**
+     * Toma una ficha de la cubeta del origen y, si viene {@code idCliente}, otra de la del
+     * cliente. Devuelve 0 si la solicitud puede seguir, o los segundos que faltan para la
+     * próxima ficha de la cubeta que la rechazó.
+     */
+    public long tomar(String endpoint, String origen, Long idCliente) {
+        long espera = tomarFicha(endpoint, endpoint + ORIGEN, origen);
+        if (espera != 0 || idCliente == null) {
+            return espera;
+        }
+        return tomar(endpoint, "cliente:" + idCliente);
+    }
+
+    /**
+     * Toma una ficha de la cubeta del cliente. Devuelve 0 si la solicitud puede seguir,
+     * o los segundos que faltan para la próxima ficha si hay que rechazarla.
+     */
+    public long tomar(String endpoint, String cliente) {
+        return tomarFicha(endpoint, endpoint, cliente);
+    }
+
+    private long tomarFicha(String endpoint, String nombreRegla, String cliente) {
+        Regla regla = reglas.get(nombreRegla);
+        if (!habilitado || regla == null) {
+            return 0;
+        }
+
+        AtomicReference<Cubeta> referencia = cubetas.get(nombreRegla + ":" + cliente,
+                k -> new AtomicReference<>(new Cubeta(regla.capacidad(), System.nanoTime())));
+        while (true) {
+            Cubeta actual = referencia.get();
+            long ahora = System.nanoTime();
+            double fichas = Math.min(regla.capacidad(), actual.fichas() + (ahora - actual.instante()) * regla.fichasPorNano());
+            if (fichas < 1) {
+                limitadas.get(endpoint).incrementAndGet();
+                double faltanNanos = (1 - fichas) / regla.fichasPorNano();
+                return Math.max(1, (long) Math.ceil(faltanNanos / TimeUnit.SECONDS.toNanos(1)));
+            }
+            if (referencia.compareAndSet(actual, new Cubeta(fichas - 1, ahora))) {
+                return 0;
+            }
+        }
+    }
+
+    public List<String> endpoints() {
+        return ENDPOINTS;
+    }
+
+    public long limitadas(String endpoint) {
+        AtomicLong contador = limitadas.get(endpoint);
+        return contador == null ? 0 : contador.get();
+    }
+
+    private record Regla(int capacidad, double fichasPorNano) {
+    }
+
+    private record Cubeta(double fichas, long instante) {
+    }
+}
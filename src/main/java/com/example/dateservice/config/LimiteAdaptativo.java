@@ -0,0 +1,106 @@
+package com.example.dateservice.config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Límite de solicitudes simultáneas que se ajusta según la latencia observada.
+ *
+ * Se recuerda la latencia mínima reciente (la del sistema sin cola). Si una
+ * solicitud tarda más de {@code tolerancia} veces eso, el límite baja un 10%; si
+ * tarda lo normal y el límite estaba en uso, sube de a poco (+1 por cada "ventana"
+ * de solicitudes). Así el límite se acerca a la concurrencia que la base aguanta sin
+ * encolar, y lo que sobra se rechaza enseguida en lugar de esperar. Con
+ * {@code minimo == maximo} es un límite fijo.
+ *
+ * Solo cuentan como muestras las solicitudes que hicieron el trabajo completo: un
+ * rechazo por validación o una respuesta idempotente repetida tarda un milisegundo y
+ * dejaría la latencia mínima tan baja que cualquier reserva real parecería lenta.
+ */
+public class LimiteAdaptativo {
+
+    // Cada cuántas muestras se olvida la latencia mínima, para seguir los cambios de la base
+    private static final int MUESTRAS_POR_REINICIO = 1000;
+
+    private final int minimo;
+    private final int maximo;
+    private final double tolerancia;
+    private final long latenciaMinimaNanos;
+
+    private final AtomicInteger enCurso = new AtomicInteger();
+    private final AtomicLong rechazos = new AtomicLong();
+
+    private volatile double limite;
+    private long rttMinimo;
+    private int muestras;
+
+    public LimiteAdaptativo(int minimo, int maximo, double tolerancia, long latenciaMinimaNanos) {
+        this.minimo = Math.max(1, minimo);
+        this.maximo = Math.max(this.minimo, maximo);
+        this.tolerancia = tolerancia;
+        this.latenciaMinimaNanos = latenciaMinimaNanos;
+        this.limite = this.maximo;
+    }
+
+    /**
+     * Reserva un lugar si hay; si no, cuenta el rechazo y devuelve false.
+     */
+    public boolean adquirir() {
+        while (true) {
+            int actuales = enCurso.get();
+            if (actuales >= (int) limite) {
+                rechazos.incrementAndGet();
+                return false;
+            }
+            if (enCurso.compareAndSet(actuales, actuales + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Libera el lugar y ajusta el límite con lo que tardó la solicitud.
+     */
+    public void liberar(long duracionNanos) {
+        liberar(duracionNanos, true);
+    }
+
+    /**
+     * Libera el lugar; la duración solo ajusta el límite si {@code muestra} es true.
+     */
+    public void liberar(long duracionNanos, boolean muestra) {
+        int ocupados = enCurso.getAndDecrement();
+        if (minimo == maximo || !muestra) {
+            return;
+        }
+
+        synchronized (this) {
+            if (++muestras >= MUESTRAS_POR_REINICIO) {
+                muestras = 0;
+                rttMinimo = 0;
+            }
+            if (rttMinimo == 0 || duracionNanos < rttMinimo) {
+                rttMinimo = duracionNanos;
+            }
+
+            long objetivo = Math.max((long) (rttMinimo * tolerancia), latenciaMinimaNanos);
+            if (duracionNanos > objetivo) {
+                limite = Math.max(minimo, limite * 0.9);
+            } else if (ocupados * 2 >= (int) limite) {
+                limite = Math.min(maximo, limite + 1.0 / limite);
+            }
+        }
+    }
+
+    public int limite() {
+        return (int) limite;
+    }
+
+    public int enCurso() {
+        return enCurso.get();
+    }
+
+    public long rechazos() {
+        return rechazos.get();
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.dateservice.config;
+
+import com.example.dateservice.dto.ErrorRespuesta;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.bind.MissingServletRequestParameterException;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
+
+/**
+ * Convierte los rechazos de agenda en respuestas JSON con su código y el estado HTTP
+ * que les corresponde. Las solicitudes mal formadas y las escrituras que la base
+ * rechaza por una restricción responden 400 con el mismo cuerpo. Los demás errores
+ * siguen el manejo por defecto de Spring.
+ */
+@RestControllerAdvice
+public class ManejadorErrores {
+
+    @ExceptionHandler(AgendaException.class)
+    public ResponseEntity<ErrorRespuesta> manejar(AgendaException e) {
+        return respuesta(e);
+    }
+
+    @ExceptionHandler({HttpMessageNotReadableException.class, MissingServletRequestParameterException.class,
+            MethodArgumentTypeMismatchException.class})
+    public ResponseEntity<ErrorRespuesta> manejarSolicitudInvalida(Exception e) {
+        return respuesta(new AgendaException(CodigoError.DATOS_INVALIDOS, "La solicitud no es válida: " + e.getMessage()));
+    }
+
+    @ExceptionHandler(DataIntegrityViolationException.class)
+    public ResponseEntity<ErrorRespuesta> manejarRestriccion(DataIntegrityViolationException e) {
+        System.out.println("Escritura rechazada por la base: " + e.getMostSpecificCause().getMessage());
+        return respuesta(new AgendaException(CodigoError.DATOS_INVALIDOS,
+                "Los datos no cumplen las restricciones de la base de datos."));
+    }
+
+    public static ResponseEntity<ErrorRespuesta> respuesta(AgendaException e) {
+        return ResponseEntity.status(e.getCodigo().estado())
+                .body(new ErrorRespuesta(e.getCodigo().name(), e.getMessage()));
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.dateservice.config;
+
+import com.example.dateservice.agenda.ArchivoAgenda;
+import com.example.dateservice.agenda.BloqueoAgenda;
+import com.example.dateservice.agenda.CacheAgenda;
+import com.example.dateservice.agenda.CompactacionAgenda;
+import com.example.dateservice.agenda.IndiceAgenda;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.service.ColaAgendamiento;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide cada operación pública de {@code DateService}: un timer por operación y
+ * resultado (con histograma para percentiles) y un contador por cada motivo de
+ * rechazo. Los rechazos del servicio son {@link AgendaException}; el motivo sale de
+ * su código, así que la etiqueta tiene un número acotado de valores.
+ *
+ * Se ejecuta por fuera de la transacción, así que el tiempo incluye el commit.
+ */
+@Aspect
+@Component
+@Order(0)
+public class MetricasAgenda {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private IndiceAgenda indiceAgenda;
+
+    @Autowired
+    private BloqueoAgenda bloqueoAgenda;
+
+    @Autowired
+    private CacheAgenda cacheAgenda;
+
+    @Autowired
+    private CompactacionAgenda compactacionAgenda;
+
+    @Autowired
+    private ArchivoAgenda archivoAgenda;
+
+    @Autowired
+    private AlmacenIdempotencia almacenIdempotencia;
+
+    @Autowired
+    private ColaAgendamiento colaAgendamiento;
+
+    @Autowired
+    private CompartimentosAgenda compartimentosAgenda;
+
+    @Autowired
+    private LimitadorClientes limitadorClientes;
+
+    @PostConstruct
+    void registrarIndicadores() {
+        Gauge.builder("agenda.indice.dias", indiceAgenda, IndiceAgenda::diasCargados)
+                .description("Días de agenda cargados en el índice en memoria")
+                .register(registry);
+        Gauge.builder("agenda.bloqueo.ocupados", bloqueoAgenda, BloqueoAgenda::cerrojosOcupados)
+                .description("Cerrojos de agenda tomados en este momento")
+                .register(registry);
+        // cache.gets{result=hit|miss} por caché, para la tasa de aciertos del calendario
+        CaffeineCacheMetrics.monitor(registry, indiceAgenda.cacheDias(), "agenda.indice");
+        CaffeineCacheMetrics.monitor(registry, cacheAgenda.cacheCitas(), "agenda.citas");
+        CaffeineCacheMetrics.monitor(registry, cacheAgenda.cacheDisponibilidades(), "agenda.disponibilidades");
+
+        FunctionCounter.builder("agenda.compactacion.filas", compactacionAgenda, CompactacionAgenda::filasUnidas)
+                .description("Filas de disponibilidad eliminadas por la compactación")
+                .tag("tipo", "unidas")
+                .register(registry);
+        FunctionCounter.builder("agenda.compactacion.filas", compactacionAgenda, CompactacionAgenda::filasPasadasBorradas)
+                .description("Filas de disponibilidad eliminadas por la compactación")
+                .tag("tipo", "pasadas")
+                .register(registry);
+        FunctionTimer.builder("agenda.compactacion.duracion", compactacionAgenda,
+                        CompactacionAgenda::ejecuciones, CompactacionAgenda::segundosEjecutando, TimeUnit.SECONDS)
+                .description("Tiempo dedicado a la compactación de disponibilidades")
+                .register(registry);
+        FunctionCounter.builder("agenda.archivo.citas", archivoAgenda, ArchivoAgenda::citasArchivadas)
+                .description("Citas pasadas movidas a la tabla de archivo")
+                .register(registry);
+        FunctionCounter.builder("agenda.idempotencia.repeticiones", almacenIdempotencia, AlmacenIdempotencia::repeticiones)
+                .description("Solicitudes repetidas con la misma clave de idempotencia que devolvieron la respuesta guardada")
+                .register(registry);
+        Gauge.builder("agenda.cola.pendientes", colaAgendamiento, ColaAgendamiento::pendientes)
+                .description("Solicitudes de agendamiento encoladas que todavía no toma ningún escritor")
+                .register(registry);
+        for (CompartimentosAgenda.Compartimento compartimento : CompartimentosAgenda.Compartimento.values()) {
+            LimiteAdaptativo limite = compartimentosAgenda.limite(compartimento);
+            String nombre = compartimento.name().toLowerCase();
+            Gauge.builder("agenda.compartimento.limite", limite, LimiteAdaptativo::limite)
+                    .description("Solicitudes simultáneas que admite el compartimento en este momento")
+                    .tag("compartimento", nombre)
+                    .register(registry);
+            Gauge.builder("agenda.compartimento.en_curso", limite, LimiteAdaptativo::enCurso)
+                    .description("Solicitudes en curso en el compartimento")
+                    .tag("compartimento", nombre)
+                    .register(registry);
+            FunctionCounter.builder("agenda.compartimento.rechazos", limite, LimiteAdaptativo::rechazos)
+                    .description("Solicitudes rechazadas con 429 por el compartimento lleno")
+                    .tag("compartimento", nombre)
+                    .register(registry);
+        }
+        for (String endpoint : limitadorClientes.endpoints()) {
+            FunctionCounter.builder("agenda.clientes.limitadas", limitadorClientes, l -> l.limitadas(endpoint))
+                    .description("Solicitudes rechazadas con 429 porque el cliente agotó su cubeta de fichas")
+                    .tag("endpoint", endpoint)
+                    .register(registry);
+        }
+    }
+
+    @Around("execution(public * com.example.dateservice.service.DateService.*(..))")
+    public Object medir(ProceedingJoinPoint punto) throws Throwable {
+        String operacion = punto.getSignature().getName();
+        long inicio = System.nanoTime();
+        String resultado = "ok";
+        try {
+            return punto.proceed();
+        } catch (AgendaException e) {
+            resultado = "rechazo";
+            Counter.builder("agenda.rechazos")
+                    .description("Operaciones de agenda rechazadas por motivo")
+                    .tag("operacion", operacion)
+                    .tag("motivo", e.getCodigo().motivo())
+                    .register(registry)
+                    .increment();
+            throw e;
+        } catch (Throwable e) {
+            resultado = "error";
+            throw e;
+        } finally {
+            Timer.builder("agenda.operacion")
+                    .description("Duración de las operaciones de DateService")
+                    .tag("operacion", operacion)
+                    .tag("resultado", resultado)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+        }
+    }
+}
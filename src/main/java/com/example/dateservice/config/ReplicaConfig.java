@@ -0,0 +1,70 @@
+package com.example.dateservice.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.Map;
+
+/**
+ * Con {@code agenda.replica.habilitada=true} la aplicación usa dos pools: el de
+ * {@code spring.datasource.*} (primaria) y el de {@code agenda.replica.*} (réplica).
+ * Las lecturas de los listados van a la réplica y las escrituras a la primaria
+ * (ver {@link RutaDataSource}). Sin la propiedad se usa el DataSource de siempre.
+ */
+@Configuration
+@ConditionalOnProperty(name = "agenda.replica.habilitada", havingValue = "true")
+public class ReplicaConfig {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource dataSourcePrimaria(DataSourceProperties propiedades) {
+        HikariDataSource dataSource = propiedades.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primaria");
+        return dataSource;
+    }
+
+    @Bean
+    public HikariDataSource dataSourceReplica(
+            DataSourceProperties propiedades,
+            @Value("${agenda.replica.url}") String url,
+            @Value("${agenda.replica.username:${spring.datasource.username:}}") String usuario,
+            @Value("${agenda.replica.password:${spring.datasource.password:}}") String clave,
+            @Value("${agenda.replica.maximo-conexiones:5}") int maximoConexiones
+    ) {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName("replica");
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername(usuario);
+        dataSource.setPassword(clave);
+        dataSource.setDriverClassName(propiedades.determineDriverClassName());
+        dataSource.setMaximumPoolSize(maximoConexiones);
+        dataSource.setReadOnly(true);
+        return dataSource;
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(
+            @Qualifier("dataSourcePrimaria") DataSource primaria,
+            @Qualifier("dataSourceReplica") DataSource replica
+    ) {
+        return rutear(primaria, replica);
+    }
+
+    public static DataSource rutear(DataSource primaria, DataSource replica) {
+        RutaDataSource ruta = new RutaDataSource();
+        ruta.setTargetDataSources(Map.of(RutaDataSource.PRIMARIA, primaria, RutaDataSource.REPLICA, replica));
+        ruta.setDefaultTargetDataSource(primaria);
+        ruta.afterPropertiesSet();
+        return new LazyConnectionDataSourceProxy(ruta);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.dateservice.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hace que la propia base de datos rechace citas solapadas y disponibilidades
+ * solapadas del mismo psicólogo en el mismo día.
+ *
+ * En PostgreSQL se crean restricciones de exclusión (requieren btree_gist). En H2
+ * no existen, así que se instala un trigger cuya clase se indica en
+ * {@code agenda.restricciones.trigger-h2}; sin esa propiedad, en H2 no se instala nada.
+ * Las tablas las sigue creando Hibernate, por eso esto corre al arrancar el contexto.
+ *
+ * En PostgreSQL, si no se pueden crear, el arranque falla: sin ellas dos réplicas del
+ * servicio pueden agendar la misma franja. Con {@code agenda.restricciones.obligatorias=false}
+ * el servicio arranca igualmente pero el indicador de salud queda en DOWN hasta que existan.
+ */
+@Component
+public class RestriccionesSolapamiento implements HealthIndicator {
+
+    public static final String CITAS = "dates_sin_solapamiento";
+    public static final String DISPONIBILIDADES = "availability_sin_solapamiento";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${agenda.restricciones.trigger-h2:}")
+    private String triggerH2;
+
+    @Value("${agenda.restricciones.obligatorias:true}")
+    private boolean obligatorias;
+
+    private final AtomicBoolean instaladas = new AtomicBoolean();
+
+    // null mientras no se intentó o en motores sin restricciones; el motivo del fallo si no se pudieron crear
+    private volatile String fallo;
+    private volatile String motor;
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void instalar() {
+        if (!instaladas.compareAndSet(false, true)) {
+            return;
+        }
+
+        motor = jdbcTemplate.execute((ConnectionCallback<String>) c -> c.getMetaData().getDatabaseProductName());
+        if ("PostgreSQL".equals(motor)) {
+            instalarPostgres();
+        } else if ("H2".equals(motor) && !triggerH2.isBlank()) {
+            instalarH2();
+        } else {
+            System.out.println("Restricciones de solapamiento no disponibles para " + motor);
+        }
+    }
+
+    @Override
+    public Health health() {
+        if (fallo != null) {
+            return Health.down().withDetail("motor", motor).withDetail("error", fallo).build();
+        }
+        return Health.up().withDetail("motor", String.valueOf(motor)).build();
+    }
+
+    /**
+     * Indica si el error (o alguna de sus causas) proviene de la restricción dada.
+     */
+    public static boolean esViolacion(Throwable error, String restriccion) {
+        for (Throwable causa = error; causa != null; causa = causa.getCause()) {
+            if (causa.getMessage() != null && causa.getMessage().toLowerCase().contains(restriccion)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void instalarPostgres() {
+        try {
+            jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS btree_gist");
+            crearExclusionPostgres("dates", CITAS);
+            crearExclusionPostgres("availability", DISPONIBILIDADES);
+        } catch (RuntimeException e) {
+            fallo = e.getMessage();
+            if (obligatorias) {
+                throw new IllegalStateException("No se pudieron crear las restricciones de solapamiento", e);
+            }
+            // Solo quedan las comprobaciones en memoria, que no cubren varias réplicas
+            System.out.println("No se pudieron crear las restricciones de solapamiento: " + e.getMessage());
+        }
+    }
+
+    private void crearExclusionPostgres(String tabla, String restriccion) {
+        Integer existentes = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM pg_constraint WHERE conname = ?", Integer.class, restriccion);
+        if (existentes != null && existentes > 0) {
+            return;
+        }
+
+        jdbcTemplate.execute("ALTER TABLE " + tabla + " ADD CONSTRAINT " + restriccion +
+                " EXCLUDE USING gist (id_psicologo WITH =, tsrange(fecha + hora_inicio, fecha + hora_fin) WITH &&)");
+        System.out.println("Restricción de solapamiento creada: " + restriccion);
+    }
+
+    private void instalarH2() {
+        jdbcTemplate.execute("CREATE TRIGGER IF NOT EXISTS " + CITAS +
+                " AFTER INSERT, UPDATE ON dates FOR EACH ROW CALL '" + triggerH2 + "'");
+        jdbcTemplate.execute("CREATE TRIGGER IF NOT EXISTS " + DISPONIBILIDADES +
+                " AFTER INSERT, UPDATE ON availability FOR EACH ROW CALL '" + triggerH2 + "'");
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.dateservice.config;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Elige la base de cada conexión: las transacciones {@code readOnly} van a la réplica
+ * y todo lo demás (escrituras, código sin transacción, {@link LecturaPrimaria}) a la
+ * primaria. Debe usarse detrás de un {@code LazyConnectionDataSourceProxy}, para que la
+ * conexión se pida con la transacción ya marcada como de solo lectura.
+ */
+public class RutaDataSource extends AbstractRoutingDataSource {
+
+    public static final String PRIMARIA = "primaria";
+    public static final String REPLICA = "replica";
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return ruta();
+    }
+
+    public static String ruta() {
+        if (TransactionSynchronizationManager.isActualTransactionActive()
+                && TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+                && !LecturaPrimaria.activa()) {
+            return REPLICA;
+        }
+        return PRIMARIA;
+    }
+}
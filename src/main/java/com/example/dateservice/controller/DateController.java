@@ -1,121 +1,313 @@
 package com.example.dateservice.controller;
 
+import com.example.dateservice.config.AlmacenIdempotencia;
+import com.example.dateservice.config.LimitadorClientes;
+import com.example.dateservice.config.ManejadorErrores;
+import com.example.dateservice.dto.CitaExportada;
+import com.example.dateservice.dto.CitaVista;
+import com.example.dateservice.dto.DisponibilidadVista;
+import com.example.dateservice.dto.ErrorRespuesta;
+import com.example.dateservice.dto.EstadoAgendamiento;
+import com.example.dateservice.dto.FranjaLibre;
+import com.example.dateservice.dto.PaginaCursor;
+import com.example.dateservice.dto.ResumenCreacion;
+import com.example.dateservice.dto.ResumenDia;
+import com.example.dateservice.dto.SolicitudDisponibilidadesMasivas;
+import com.example.dateservice.dto.SolicitudReglaDisponibilidad;
 import com.example.dateservice.entity.Date;
 import com.example.dateservice.entity.Disponibilidad;
+import com.example.dateservice.entity.ReglaDisponibilidad;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import com.example.dateservice.service.ColaAgendamiento;
 import com.example.dateservice.service.DateService;
+import com.example.dateservice.service.ReglaDisponibilidadService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
 import java.time.LocalDate;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @RestController
 @RequestMapping("/api/dates")
 
 public class DateController {
 
+    private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private static final MediaType TEXT_CSV = new MediaType("text", "csv", StandardCharsets.UTF_8);
+
     @Autowired
     private DateService dateService;
 
+    @Autowired
+    private ReglaDisponibilidadService reglaDisponibilidadService;
+
+    @Autowired
+    private AlmacenIdempotencia almacenIdempotencia;
+
+    @Autowired
+    private ColaAgendamiento colaAgendamiento;
+
+    @Autowired
+    private LimitadorClientes limitadorClientes;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
 
     @PostMapping("/agendar")
-    public ResponseEntity<String> agendarCita(@RequestBody Date nuevaCita) {
-        try {
+    public ResponseEntity<?> agendarCita(
+            @RequestBody Date nuevaCita,
+            @RequestHeader(value = AlmacenIdempotencia.CABECERA, required = false) String claveIdempotencia,
+            HttpServletRequest request
+    ) {
+        // Una repetición que se contesta con la respuesta guardada no gasta el límite del cliente
+        return almacenIdempotencia.ejecutar(claveIdempotencia, "agendar", nuevaCita,
+                () -> limitar(LimitadorClientes.AGENDAR, nuevaCita.getIdCliente(), request), () -> {
+            if (colaAgendamiento.habilitada()) {
+                EstadoAgendamiento estado = colaAgendamiento.encolar(nuevaCita);
+                return ResponseEntity.accepted()
+                        .location(URI.create("/api/dates/agendar/solicitudes/" + estado.id()))
+                        .body(estado);
+            }
             dateService.addDate(nuevaCita);
             return ResponseEntity.ok("Cita agendada correctamente");
-        } catch (RuntimeException e) {
-            return ResponseEntity.badRequest().body("Error al agendar cita: " + e.getMessage());
-        }
+        });
     }
 
 
+    /**
+     * Estado de una solicitud encolada. Con {@code esperaMs} la respuesta se retiene hasta
+     * que la solicitud termine o pase ese tiempo (como máximo 30 segundos).
+     */
+    @GetMapping("/agendar/solicitudes/{id}")
+    public DeferredResult<ResponseEntity<?>> consultarSolicitudAgendamiento(
+            @PathVariable String id,
+            @RequestParam(defaultValue = "0") long esperaMs
+    ) {
+        long espera = Math.min(Math.max(esperaMs, 0), 30000);
+        DeferredResult<ResponseEntity<?>> respuesta = new DeferredResult<>(espera + 1000);
+        CompletableFuture<EstadoAgendamiento> resultado = colaAgendamiento.resultado(id);
+        if (resultado == null) {
+            respuesta.setResult(ManejadorErrores.respuesta(
+                    new AgendaException(CodigoError.NO_ENCONTRADA, "La solicitud de agendamiento no existe")));
+            return respuesta;
+        }
+        if (espera == 0 || resultado.isDone()) {
+            respuesta.setResult(ResponseEntity.ok(colaAgendamiento.consultar(id)));
+            return respuesta;
+        }
+
+        // Sobre una copia: el vencimiento de la espera no debe completar la solicitud
+        resultado.copy().completeOnTimeout(null, espera, TimeUnit.MILLISECONDS)
+                .thenAccept(estado -> respuesta.setResult(ResponseEntity.ok(colaAgendamiento.consultar(id))));
+        return respuesta;
+    }
+
     @GetMapping("/citas")
-    public ResponseEntity<List<Date>> listarCitas(
+    public ResponseEntity<List<CitaVista>> listarCitas(
             @RequestParam Long idPsicologo,
-            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate fecha
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate fecha,
+            WebRequest request
     ) {
-        List<Date> citas = dateService.listarCitasPorPsicologo(idPsicologo, fecha);
-        return ResponseEntity.ok(citas);
+        // La etiqueta se toma antes de leer: si alguien escribe entre medias, el cliente solo vuelve a pedir
+        String etiqueta = dateService.etiquetaDia(idPsicologo, fecha);
+        if (request.checkNotModified(etiqueta)) {
+            return null;
+        }
+        List<CitaVista> citas = dateService.listarCitasPorPsicologo(idPsicologo, fecha);
+        return ResponseEntity.ok().eTag(etiqueta).body(citas);
     }
 
     @GetMapping("/disponibilidades")
-    public ResponseEntity<List<Disponibilidad>> listarDisponibilidades(
+    public ResponseEntity<List<DisponibilidadVista>> listarDisponibilidades(
             @RequestParam(required = false) Long idPsicologo,
-            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate fecha
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate fecha,
+            WebRequest request
     ) {
         // Si no se proporcionan filtros, retornar todas las disponibilidades
         if (idPsicologo == null && fecha == null) {
-            List<Disponibilidad> todasLasDisponibilidades = dateService.listarTodasLasDisponibilidades();
+            List<DisponibilidadVista> todasLasDisponibilidades = dateService.listarTodasLasDisponibilidades();
             return ResponseEntity.ok(todasLasDisponibilidades);
         }
         // Si se proporcionan ambos filtros, usar el método existente
         if (idPsicologo != null && fecha != null) {
-            List<Disponibilidad> disponibilidades = dateService.listarDisponibilidades(idPsicologo, fecha);
-            return ResponseEntity.ok(disponibilidades);
+            String etiqueta = dateService.etiquetaDia(idPsicologo, fecha);
+            if (request.checkNotModified(etiqueta)) {
+                return null;
+            }
+            List<DisponibilidadVista> disponibilidades = dateService.listarDisponibilidades(idPsicologo, fecha);
+            return ResponseEntity.ok().eTag(etiqueta).body(disponibilidades);
         }
-        // Si solo se proporciona un filtro, retornar todas y filtrar manualmente (o crear métodos específicos)
-        // Por ahora, retornamos todas si falta algún parámetro
-        List<Disponibilidad> todasLasDisponibilidades = dateService.listarTodasLasDisponibilidades();
-        return ResponseEntity.ok(todasLasDisponibilidades);
+        // Si solo se proporciona un filtro, filtrar en la consulta en lugar de traer la tabla completa
+        List<DisponibilidadVista> disponibilidades = dateService.filtrarDisponibilidades(idPsicologo, fecha, null, null);
+        return ResponseEntity.ok(disponibilidades);
     }
 
     @GetMapping("/disponibilidades/filtrar")
-    public ResponseEntity<List<Disponibilidad>> filtrarDisponibilidades(
+    public ResponseEntity<List<DisponibilidadVista>> filtrarDisponibilidades(
             @RequestParam(required = false) Long idPsicologo,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate fecha,
             @RequestParam(required = false) Integer mes,
             @RequestParam(required = false) Integer anio
     ) {
-        List<Disponibilidad> disponibilidades = dateService.filtrarDisponibilidades(idPsicologo, fecha, mes, anio);
+        List<DisponibilidadVista> disponibilidades = dateService.filtrarDisponibilidades(idPsicologo, fecha, mes, anio);
         return ResponseEntity.ok(disponibilidades);
     }
 
+    @GetMapping("/disponibilidades/resumen")
+    public ResponseEntity<?> resumirDisponibilidadesDelMes(
+            @RequestParam Long idPsicologo,
+            @RequestParam Integer mes,
+            @RequestParam Integer anio
+    ) {
+        List<ResumenDia> resumen = dateService.resumirDisponibilidadesDelMes(idPsicologo, mes, anio);
+        return ResponseEntity.ok(resumen);
+    }
+
+    @GetMapping("/disponibilidades/libres")
+    public ResponseEntity<?> listarFranjasLibres(
+            @RequestParam Long idPsicologo,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate fecha,
+            @RequestParam Integer duracion,
+            @RequestParam(required = false) Integer paso
+    ) {
+        List<FranjaLibre> franjas = dateService.listarFranjasLibres(idPsicologo, fecha, duracion, paso);
+        return ResponseEntity.ok(franjas);
+    }
+
     @DeleteMapping("/cancelar/{id}")
     public ResponseEntity<String> cancelarCita(@PathVariable Long id) {
-        try {
-            dateService.cancelarCita(id);
-            return ResponseEntity.ok("Cita cancelada correctamente");
-        } catch (RuntimeException e) {
-            return ResponseEntity.badRequest().body("Error al cancelar cita: " + e.getMessage());
-        }
+        dateService.cancelarCita(id);
+        return ResponseEntity.ok("Cita cancelada correctamente");
     }
 
     @PutMapping("/modificar/{id}")
     public ResponseEntity<?> modificarCita(
             @PathVariable Long id,
-            @RequestBody Date citaModificada
+            @RequestBody Date citaModificada,
+            @RequestHeader(value = AlmacenIdempotencia.CABECERA, required = false) String claveIdempotencia,
+            HttpServletRequest request
     ) {
-        try {
+        return almacenIdempotencia.ejecutar(claveIdempotencia, "modificar/" + id, citaModificada,
+                () -> limitar(LimitadorClientes.MODIFICAR, citaModificada.getIdCliente(), request), () -> {
             Date citaActualizada = dateService.modificarCita(id, citaModificada);
             return ResponseEntity.ok(citaActualizada);
-        } catch (RuntimeException e) {
-            return ResponseEntity.badRequest().body("Error al modificar cita: " + e.getMessage());
-        }
+        });
     }
 
 
+    /**
+     * Sin {@code historial} solo devuelve las citas vigentes: las que pasaron hace más de
+     * {@code agenda.archivo.dias-retencion} días están en el archivo. Igual en /pagina y /stream.
+     */
     @GetMapping("/todas")
-    public ResponseEntity<List<Date>> listarTodasLasCitas() {
-        List<Date> citas = dateService.listarTodasLasCitas();
+    public ResponseEntity<List<CitaVista>> listarTodasLasCitas(
+            @RequestParam(defaultValue = "false") boolean historial
+    ) {
+        List<CitaVista> citas = dateService.listarTodasLasCitas(historial);
         return ResponseEntity.ok(citas);
     }
 
+    @GetMapping("/todas/pagina")
+    public ResponseEntity<?> paginarCitas(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limite,
+            @RequestParam(defaultValue = "false") boolean historial
+    ) {
+        PaginaCursor<CitaVista> pagina = dateService.paginarCitas(cursor, limite, historial);
+        return ResponseEntity.ok(pagina);
+    }
+
+    @GetMapping("/todas/stream")
+    public ResponseEntity<StreamingResponseBody> transmitirCitas(
+            @RequestParam(defaultValue = "false") boolean historial
+    ) {
+        return this.<CitaVista>transmitirNdjson(consumidor -> dateService.recorrerCitas(historial, consumidor));
+    }
+
+    /**
+     * Exporta las citas de un rango de fechas como NDJSON o CSV, escribiendo cada fila
+     * en la respuesta a medida que se lee de la base.
+     */
+    @GetMapping("/exportar")
+    public ResponseEntity<?> exportarCitas(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate desde,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate hasta,
+            @RequestParam(required = false) Long idPsicologo,
+            @RequestParam(defaultValue = "ndjson") String formato,
+            @RequestParam(defaultValue = "false") boolean conDisponibilidad
+    ) {
+        // Los errores se informan antes de empezar a escribir: después ya no se puede cambiar el estado
+        if (hasta.isBefore(desde)) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha de inicio debe ser anterior o igual a la fecha de fin.");
+        }
+
+        Consumer<Consumer<CitaExportada>> recorrido =
+                consumidor -> dateService.exportarCitas(idPsicologo, desde, hasta, conDisponibilidad, consumidor);
+        if ("ndjson".equalsIgnoreCase(formato)) {
+            return transmitirNdjson(recorrido);
+        }
+        if (!"csv".equalsIgnoreCase(formato)) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El formato debe ser ndjson o csv");
+        }
+
+        StreamingResponseBody cuerpo = salida -> {
+            Writer escritor = new BufferedWriter(new OutputStreamWriter(salida, StandardCharsets.UTF_8));
+            escritor.write(CitaExportada.ENCABEZADO_CSV);
+            escritor.write('\n');
+            recorrido.accept(fila -> {
+                try {
+                    escritor.write(fila.comoCsv());
+                    escritor.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            escritor.flush();
+        };
+        return ResponseEntity.ok()
+                .contentType(TEXT_CSV)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"citas-" + desde + "-" + hasta + ".csv\"")
+                .body(cuerpo);
+    }
+
     @GetMapping("/cliente/{idCliente}")
-    public ResponseEntity<List<Date>> listarCitasPorCliente(@PathVariable Long idCliente) {
-        List<Date> citas = dateService.listarCitasPorCliente(idCliente);
+    public ResponseEntity<List<CitaVista>> listarCitasPorCliente(
+            @PathVariable Long idCliente,
+            @RequestParam(defaultValue = "false") boolean historial
+    ) {
+        List<CitaVista> citas = dateService.listarCitasPorCliente(idCliente, historial);
         return ResponseEntity.ok(citas);
     }
 
     @PostMapping("/disponibilidad")
     public ResponseEntity<?> crearDisponibilidad(@RequestBody Disponibilidad disponibilidad) {
-        try {
-            Disponibilidad nueva = dateService.crearDisponibilidad(disponibilidad);
-            return ResponseEntity.ok(nueva);
-        } catch (RuntimeException e) {
-            return ResponseEntity.badRequest().body("Error al crear disponibilidad: " + e.getMessage());
-        }
+        Disponibilidad nueva = dateService.crearDisponibilidad(disponibilidad);
+        return ResponseEntity.ok(nueva);
     }
 
     @PostMapping("/disponibilidades/masivas")
@@ -127,25 +319,32 @@ public class DateController {
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.TIME) java.time.LocalTime horaFin,
             @RequestBody(required = false) java.util.Map<String, Object> body
     ) {
-        try {
-            // Si viene en el body (JSON), usar esos valores
-            if (body != null && !body.isEmpty()) {
+        // Si viene en el body (JSON), usar esos valores
+        if (body != null && !body.isEmpty()) {
+            try {
                 idPsicologo = Long.valueOf(body.get("idPsicologo").toString());
                 fechaInicio = LocalDate.parse(body.get("fechaInicio").toString());
                 fechaFin = LocalDate.parse(body.get("fechaFin").toString());
                 horaInicio = java.time.LocalTime.parse(body.get("horaInicio").toString());
                 horaFin = java.time.LocalTime.parse(body.get("horaFin").toString());
+            } catch (RuntimeException e) {
+                throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El cuerpo de la solicitud no es válido: " + e.getMessage());
             }
+        }
 
-            if (idPsicologo == null || fechaInicio == null || fechaFin == null || horaInicio == null || horaFin == null) {
-                return ResponseEntity.badRequest().body("Todos los parámetros son requeridos: idPsicologo, fechaInicio, fechaFin, horaInicio, horaFin");
-            }
-
-            dateService.crearDisponibilidadesMasivas(idPsicologo, fechaInicio, fechaFin, horaInicio, horaFin);
-            return ResponseEntity.ok("Disponibilidades creadas exitosamente");
-        } catch (Exception e) {
-            return ResponseEntity.badRequest().body("Error al crear disponibilidades: " + e.getMessage());
+        if (idPsicologo == null || fechaInicio == null || fechaFin == null || horaInicio == null || horaFin == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS,
+                    "Todos los parámetros son requeridos: idPsicologo, fechaInicio, fechaFin, horaInicio, horaFin");
         }
+
+        dateService.crearDisponibilidadesMasivas(idPsicologo, fechaInicio, fechaFin, horaInicio, horaFin);
+        return ResponseEntity.ok("Disponibilidades creadas exitosamente");
+    }
+
+    @PostMapping("/disponibilidades/masivas/lote")
+    public ResponseEntity<?> generarDisponibilidadesMasivas(@RequestBody SolicitudDisponibilidadesMasivas solicitud) {
+        ResumenCreacion resumen = dateService.generarDisponibilidadesMasivas(solicitud);
+        return ResponseEntity.ok(resumen);
     }
 
     @PutMapping("/disponibilidades/{id}")
@@ -153,27 +352,91 @@ public class DateController {
             @PathVariable Long id,
             @RequestBody Disponibilidad disponibilidadActualizada
     ) {
-        try {
-            Disponibilidad disponibilidadActualizadaResult = dateService.actualizarDisponibilidad(id, disponibilidadActualizada);
-            return ResponseEntity.ok(disponibilidadActualizadaResult);
-        } catch (RuntimeException e) {
-            return ResponseEntity.badRequest().body("Error al actualizar disponibilidad: " + e.getMessage());
-        }
+        Disponibilidad disponibilidadActualizadaResult = dateService.actualizarDisponibilidad(id, disponibilidadActualizada);
+        return ResponseEntity.ok(disponibilidadActualizadaResult);
     }
 
     @GetMapping("/disponibilidades/todas")
-    public ResponseEntity<List<Disponibilidad>> listarTodasLasDisponibilidades() {
-        List<Disponibilidad> disponibilidades = dateService.listarTodasLasDisponibilidades();
+    public ResponseEntity<List<DisponibilidadVista>> listarTodasLasDisponibilidades() {
+        List<DisponibilidadVista> disponibilidades = dateService.listarTodasLasDisponibilidades();
         return ResponseEntity.ok(disponibilidades);
     }
 
+    @GetMapping("/disponibilidades/todas/pagina")
+    public ResponseEntity<?> paginarDisponibilidades(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limite
+    ) {
+        PaginaCursor<DisponibilidadVista> pagina = dateService.paginarDisponibilidades(cursor, limite);
+        return ResponseEntity.ok(pagina);
+    }
+
+    @GetMapping("/disponibilidades/todas/stream")
+    public ResponseEntity<StreamingResponseBody> transmitirDisponibilidades() {
+        return transmitirNdjson(dateService::recorrerDisponibilidades);
+    }
+
     @PostMapping("/disponibilidades")
-    public ResponseEntity<?> agregarDisponibilidad(@RequestBody Disponibilidad nuevaDisponibilidad) {
-        try {
+    public ResponseEntity<?> agregarDisponibilidad(
+            @RequestBody Disponibilidad nuevaDisponibilidad,
+            @RequestHeader(value = AlmacenIdempotencia.CABECERA, required = false) String claveIdempotencia
+    ) {
+        return almacenIdempotencia.ejecutar(claveIdempotencia, "disponibilidades", nuevaDisponibilidad, () -> {
             Disponibilidad disponibilidadCreada = dateService.addDisponibilidad(nuevaDisponibilidad);
             return ResponseEntity.ok(disponibilidadCreada);
-        } catch (RuntimeException e) {
-            return ResponseEntity.badRequest().body("Error al agregar disponibilidad: " + e.getMessage());
+        });
+    }
+
+    @PostMapping("/disponibilidades/reglas")
+    public ResponseEntity<?> crearReglaDisponibilidad(@RequestBody SolicitudReglaDisponibilidad solicitud) {
+        ReglaDisponibilidad regla = reglaDisponibilidadService.crearRegla(solicitud);
+        return ResponseEntity.ok(regla);
+    }
+
+    @GetMapping("/disponibilidades/reglas")
+    public ResponseEntity<?> listarReglasDisponibilidad(@RequestParam Long idPsicologo) {
+        List<ReglaDisponibilidad> reglas = reglaDisponibilidadService.listarReglas(idPsicologo);
+        return ResponseEntity.ok(reglas);
+    }
+
+    @DeleteMapping("/disponibilidades/reglas/{id}")
+    public ResponseEntity<String> eliminarReglaDisponibilidad(@PathVariable Long id) {
+        reglaDisponibilidadService.eliminarRegla(id);
+        return ResponseEntity.ok("Regla de disponibilidad eliminada exitosamente");
+    }
+
+    /**
+     * Aplica los límites del endpoint: el del origen (usuario autenticado o, si no hay,
+     * la dirección de quien llama) y el del {@code idCliente} del cuerpo, que elige el
+     * propio cliente. Devuelve null si puede seguir.
+     */
+    private ResponseEntity<?> limitar(String endpoint, Long idCliente, HttpServletRequest request) {
+        Principal usuario = request.getUserPrincipal();
+        String origen = usuario != null ? "usuario:" + usuario.getName() : "ip:" + request.getRemoteAddr();
+        long esperaSegundos = limitadorClientes.tomar(endpoint, origen, idCliente);
+        if (esperaSegundos == 0) {
+            return null;
         }
+        CodigoError codigo = CodigoError.DEMASIADAS_SOLICITUDES;
+        return ResponseEntity.status(codigo.estado())
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(esperaSegundos))
+                .body(new ErrorRespuesta(codigo.name(), "Demasiadas solicitudes del cliente, intente nuevamente en "
+                        + esperaSegundos + " segundos."));
+    }
+
+    /**
+     * Escribe cada fila en la respuesta (una línea JSON por fila) a medida que se lee de la base.
+     */
+    private <T> ResponseEntity<StreamingResponseBody> transmitirNdjson(Consumer<Consumer<T>> recorrido) {
+        ObjectWriter escritor = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        StreamingResponseBody cuerpo = salida -> recorrido.accept(fila -> {
+            try {
+                escritor.writeValue(salida, fila);
+                salida.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(cuerpo);
     }
 }
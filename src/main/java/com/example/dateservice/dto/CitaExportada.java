@@ -0,0 +1,22 @@
+package com.example.dateservice.dto;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * Fila de la exportación de citas. {@code minutosDisponibles} son los minutos de
+ * disponibilidad que le quedan al psicólogo ese día; es nulo si no se pidió.
+ */
+public record CitaExportada(Long id, Long idPsicologo, Long idCliente, LocalDate fecha,
+                            LocalTime horaInicio, LocalTime horaFin, Long minutosDisponibles) {
+
+    public static final String ENCABEZADO_CSV = "id,idPsicologo,idCliente,fecha,horaInicio,horaFin,minutosDisponibles";
+
+    /**
+     * Línea CSV sin salto final; todos los campos son números, fechas u horas y no necesitan comillas.
+     */
+    public String comoCsv() {
+        return id + "," + idPsicologo + "," + idCliente + "," + fecha + "," + horaInicio + "," + horaFin + ","
+                + (minutosDisponibles == null ? "" : minutosDisponibles);
+    }
+}
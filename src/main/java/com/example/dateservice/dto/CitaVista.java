@@ -0,0 +1,11 @@
+package com.example.dateservice.dto;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * Cita de solo lectura para los listados; se serializa igual que la entidad {@code Date}.
+ */
+public record CitaVista(Long id, Long idPsicologo, Long idCliente, LocalDate fecha,
+                        LocalTime horaInicio, LocalTime horaFin) {
+}
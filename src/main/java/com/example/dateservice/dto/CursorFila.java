@@ -0,0 +1,31 @@
+package com.example.dateservice.dto;
+
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Base64;
+
+/**
+ * Posición de la última fila devuelta en una paginación por clave (fecha, horaInicio, id).
+ * Se envía al cliente como texto opaco.
+ */
+public record CursorFila(LocalDate fecha, LocalTime horaInicio, Long id) {
+
+    public String codificar() {
+        String texto = fecha + "|" + horaInicio + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(texto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static CursorFila decodificar(String cursor) {
+        try {
+            String texto = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] partes = texto.split("\\|");
+            return new CursorFila(LocalDate.parse(partes[0]), LocalTime.parse(partes[1]), Long.valueOf(partes[2]));
+        } catch (RuntimeException e) {
+            throw new AgendaException(CodigoError.CURSOR_INVALIDO, "El cursor no es válido.");
+        }
+    }
+}
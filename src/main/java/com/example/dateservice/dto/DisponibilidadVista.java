@@ -0,0 +1,11 @@
+package com.example.dateservice.dto;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * Disponibilidad de solo lectura para los listados; se serializa igual que la entidad {@code Disponibilidad}.
+ */
+public record DisponibilidadVista(Long id, Long idPsicologo, LocalDate fecha,
+                                  LocalTime horaInicio, LocalTime horaFin) {
+}
@@ -0,0 +1,7 @@
+package com.example.dateservice.dto;
+
+/**
+ * Cuerpo JSON de las respuestas de error de la API.
+ */
+public record ErrorRespuesta(String codigo, String mensaje) {
+}
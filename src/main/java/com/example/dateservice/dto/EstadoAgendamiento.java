@@ -0,0 +1,17 @@
+package com.example.dateservice.dto;
+
+/**
+ * Estado de una solicitud de agendamiento encolada: {@code PENDIENTE}, {@code AGENDADA}
+ * (con el ID de la cita) o {@code RECHAZADA} (con el código de error, si es un rechazo
+ * de agenda, y el motivo).
+ */
+public record EstadoAgendamiento(String id, String estado, Long idCita, String codigo, String mensaje) {
+
+    public static final String PENDIENTE = "PENDIENTE";
+    public static final String AGENDADA = "AGENDADA";
+    public static final String RECHAZADA = "RECHAZADA";
+
+    public boolean terminada() {
+        return !PENDIENTE.equals(estado);
+    }
+}
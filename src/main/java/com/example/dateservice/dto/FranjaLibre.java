@@ -0,0 +1,9 @@
+package com.example.dateservice.dto;
+
+import java.time.LocalTime;
+
+/**
+ * Hueco libre en la agenda de un psicólogo con la duración solicitada.
+ */
+public record FranjaLibre(LocalTime horaInicio, LocalTime horaFin) {
+}
@@ -0,0 +1,9 @@
+package com.example.dateservice.dto;
+
+import java.util.List;
+
+/**
+ * Página de resultados; {@code siguienteCursor} es null cuando no quedan más filas.
+ */
+public record PaginaCursor<T>(List<T> elementos, String siguienteCursor) {
+}
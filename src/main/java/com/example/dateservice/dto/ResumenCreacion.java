@@ -0,0 +1,7 @@
+package com.example.dateservice.dto;
+
+/**
+ * Resultado de una creación masiva: cuántas filas se insertaron.
+ */
+public record ResumenCreacion(int creadas) {
+}
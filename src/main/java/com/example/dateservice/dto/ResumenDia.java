@@ -0,0 +1,9 @@
+package com.example.dateservice.dto;
+
+import java.time.LocalDate;
+
+/**
+ * Tiempo libre de un psicólogo en un día: minutos disponibles y cantidad de franjas.
+ */
+public record ResumenDia(LocalDate fecha, Long minutosLibres, Long franjas) {
+}
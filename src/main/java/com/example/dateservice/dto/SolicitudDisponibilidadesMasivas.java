@@ -0,0 +1,23 @@
+package com.example.dateservice.dto;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generación de disponibilidades para varios psicólogos y franjas en una sola petición.
+ * Si no se indican {@code diasSemana} se usan los días laborables (lunes a viernes).
+ */
+public record SolicitudDisponibilidadesMasivas(
+        List<Long> idsPsicologo,
+        LocalDate fechaInicio,
+        LocalDate fechaFin,
+        List<Franja> franjas,
+        Set<DayOfWeek> diasSemana
+) {
+
+    public record Franja(LocalTime horaInicio, LocalTime horaFin) {
+    }
+}
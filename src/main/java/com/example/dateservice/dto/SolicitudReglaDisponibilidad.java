@@ -0,0 +1,21 @@
+package com.example.dateservice.dto;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Set;
+
+/**
+ * Alta de una disponibilidad semanal recurrente. Si no se indican {@code diasSemana}
+ * se usan los días laborables (lunes a viernes).
+ */
+public record SolicitudReglaDisponibilidad(
+        Long idPsicologo,
+        Set<DayOfWeek> diasSemana,
+        LocalTime horaInicio,
+        LocalTime horaFin,
+        LocalDate fechaInicio,
+        LocalDate fechaFin,
+        Set<LocalDate> excepciones
+) {
+}
@@ -0,0 +1,63 @@
+package com.example.dateservice.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * Cita pasada que se movió fuera de {@code dates}. Conserva el ID que tenía en la tabla
+ * de citas y solo se lee para el historial del cliente y la exportación.
+ */
+@Entity
+@Table(name = "dates_archive", indexes = {
+        @Index(name = "idx_dates_archive_cliente_fecha", columnList = "idCliente, fecha"),
+        // Orden de la exportación por rango de fechas
+        @Index(name = "idx_dates_archive_fecha_hora_id", columnList = "fecha, horaInicio, id")
+})
+public class CitaArchivada {
+
+    @Id
+    private Long id;
+
+    @Column(nullable = false)
+    private Long idPsicologo;
+
+    @Column(nullable = false)
+    private Long idCliente;
+
+    @Column(nullable = false)
+    private LocalDate fecha;
+
+    @Column(nullable = false)
+    private LocalTime horaInicio;
+
+    @Column(nullable = false)
+    private LocalTime horaFin;
+
+    public CitaArchivada() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getIdPsicologo() {
+        return idPsicologo;
+    }
+
+    public Long getIdCliente() {
+        return idCliente;
+    }
+
+    public LocalDate getFecha() {
+        return fecha;
+    }
+
+    public LocalTime getHoraInicio() {
+        return horaInicio;
+    }
+
+    public LocalTime getHoraFin() {
+        return horaFin;
+    }
+}
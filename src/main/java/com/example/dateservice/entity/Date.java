@@ -1,11 +1,23 @@
 package com.example.dateservice.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import java.time.LocalDate;
 import java.time.LocalTime;
 
 @Entity
-@Table(name = "dates")
+// Caché de segundo nivel (región "citas", ver application.conf)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "citas")
+@Table(name = "dates", indexes = {
+        // Orden de la paginación por clave de los listados completos
+        @Index(name = "idx_dates_fecha_hora_id", columnList = "fecha, horaInicio, id"),
+        // Consultas por psicólogo y día o rango de fechas (agenda, calendario, filtros por mes)
+        @Index(name = "idx_dates_psicologo_fecha", columnList = "idPsicologo, fecha, horaInicio"),
+        // Citas de un cliente (mismo índice que en el archivo)
+        @Index(name = "idx_dates_cliente_fecha", columnList = "idCliente, fecha")
+})
 public class Date {
 
     @Id
@@ -0,0 +1,45 @@
+package com.example.dateservice.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDate;
+
+/**
+ * Marca que las reglas de disponibilidad de un psicólogo ya se convirtieron en
+ * filas de {@code availability} para ese día; a partir de ahí el día se lee solo de esas filas.
+ */
+@Entity
+@Table(name = "availability_rule_days", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_availability_rule_days", columnNames = {"id_psicologo", "fecha"})
+})
+public class DiaMaterializado {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long idPsicologo;
+
+    @Column(nullable = false)
+    private LocalDate fecha;
+
+    public DiaMaterializado() {
+    }
+
+    public DiaMaterializado(Long idPsicologo, LocalDate fecha) {
+        this.idPsicologo = idPsicologo;
+        this.fecha = fecha;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getIdPsicologo() {
+        return idPsicologo;
+    }
+
+    public LocalDate getFecha() {
+        return fecha;
+    }
+}
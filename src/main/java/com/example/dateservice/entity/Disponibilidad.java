@@ -1,11 +1,21 @@
 package com.example.dateservice.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import java.time.LocalDate;
 import java.time.LocalTime;
 
 @Entity
-@Table(name = "availability")
+// Caché de segundo nivel (región "disponibilidades", ver application.conf)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "disponibilidades")
+@Table(name = "availability", indexes = {
+        // Orden de la paginación por clave de los listados completos
+        @Index(name = "idx_availability_fecha_hora_id", columnList = "fecha, horaInicio, id"),
+        // Consultas por psicólogo y día o rango de fechas (agenda, calendario, filtros por mes)
+        @Index(name = "idx_availability_psicologo_fecha", columnList = "idPsicologo, fecha, horaInicio")
+})
 public class Disponibilidad {
 
     @Id
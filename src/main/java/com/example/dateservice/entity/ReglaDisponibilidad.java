@@ -0,0 +1,175 @@
+package com.example.dateservice.entity;
+
+import jakarta.persistence.*;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Disponibilidad semanal recurrente de un psicólogo: una franja horaria en los
+ * días de la semana indicados, dentro de un rango de fechas y salvo las fechas
+ * de excepción. No ocupa una fila por día; las filas de {@code availability} se
+ * crean solo cuando el día se agenda por primera vez.
+ */
+@Entity
+@Table(name = "availability_rules", indexes = {
+        @Index(name = "idx_availability_rules_psicologo", columnList = "idPsicologo, fechaInicio")
+})
+public class ReglaDisponibilidad {
+
+    // Días que se usan cuando una solicitud no indica los días de la semana
+    public static final Set<DayOfWeek> DIAS_LABORABLES =
+            Collections.unmodifiableSet(EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY));
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long idPsicologo;
+
+    // Bit 0 = lunes ... bit 6 = domingo
+    @Column(nullable = false)
+    private int diasSemana;
+
+    @Column(nullable = false)
+    private LocalTime horaInicio;
+
+    @Column(nullable = false)
+    private LocalTime horaFin;
+
+    @Column(nullable = false)
+    private LocalDate fechaInicio;
+
+    @Column(nullable = false)
+    private LocalDate fechaFin;
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "availability_rule_exceptions", joinColumns = @JoinColumn(name = "regla_id"))
+    @Column(name = "fecha", nullable = false)
+    private Set<LocalDate> excepciones = new HashSet<>();
+
+    public ReglaDisponibilidad() {
+    }
+
+    public ReglaDisponibilidad(Long idPsicologo, Set<DayOfWeek> diasSemana, LocalTime horaInicio, LocalTime horaFin,
+                               LocalDate fechaInicio, LocalDate fechaFin, Set<LocalDate> excepciones) {
+        this.idPsicologo = idPsicologo;
+        this.diasSemana = mascara(diasSemana);
+        this.horaInicio = horaInicio;
+        this.horaFin = horaFin;
+        this.fechaInicio = fechaInicio;
+        this.fechaFin = fechaFin;
+        if (excepciones != null) {
+            this.excepciones.addAll(excepciones);
+        }
+    }
+
+    public static int mascara(Set<DayOfWeek> dias) {
+        int mascara = 0;
+        for (DayOfWeek dia : dias) {
+            mascara |= 1 << (dia.getValue() - 1);
+        }
+        return mascara;
+    }
+
+    /**
+     * Indica si la regla genera disponibilidad en la fecha dada.
+     */
+    public boolean aplicaEn(LocalDate fecha) {
+        return !fecha.isBefore(fechaInicio)
+                && !fecha.isAfter(fechaFin)
+                && (diasSemana & (1 << (fecha.getDayOfWeek().getValue() - 1))) != 0
+                && !excepciones.contains(fecha);
+    }
+
+    // Getters y setters
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getIdPsicologo() {
+        return idPsicologo;
+    }
+
+    public void setIdPsicologo(Long idPsicologo) {
+        this.idPsicologo = idPsicologo;
+    }
+
+    public Set<DayOfWeek> getDiasSemana() {
+        Set<DayOfWeek> dias = EnumSet.noneOf(DayOfWeek.class);
+        for (DayOfWeek dia : DayOfWeek.values()) {
+            if ((diasSemana & (1 << (dia.getValue() - 1))) != 0) {
+                dias.add(dia);
+            }
+        }
+        return dias;
+    }
+
+    public void setDiasSemana(Set<DayOfWeek> diasSemana) {
+        this.diasSemana = mascara(diasSemana);
+    }
+
+    public LocalTime getHoraInicio() {
+        return horaInicio;
+    }
+
+    public void setHoraInicio(LocalTime horaInicio) {
+        this.horaInicio = horaInicio;
+    }
+
+    public LocalTime getHoraFin() {
+        return horaFin;
+    }
+
+    public void setHoraFin(LocalTime horaFin) {
+        this.horaFin = horaFin;
+    }
+
+    public LocalDate getFechaInicio() {
+        return fechaInicio;
+    }
+
+    public void setFechaInicio(LocalDate fechaInicio) {
+        this.fechaInicio = fechaInicio;
+    }
+
+    public LocalDate getFechaFin() {
+        return fechaFin;
+    }
+
+    public void setFechaFin(LocalDate fechaFin) {
+        this.fechaFin = fechaFin;
+    }
+
+    public Set<LocalDate> getExcepciones() {
+        return excepciones;
+    }
+
+    public void setExcepciones(Set<LocalDate> excepciones) {
+        this.excepciones = excepciones;
+    }
+
+    @Override
+    public String toString() {
+        return "ReglaDisponibilidad{" +
+                "id=" + id +
+                ", idPsicologo=" + idPsicologo +
+                ", diasSemana=" + getDiasSemana() +
+                ", horaInicio=" + horaInicio +
+                ", horaFin=" + horaFin +
+                ", fechaInicio=" + fechaInicio +
+                ", fechaFin=" + fechaFin +
+                ", excepciones=" + excepciones +
+                '}';
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.dateservice.entity;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/**
+ * Respuesta guardada para una clave de idempotencia, compartida entre instancias.
+ * Mientras la solicitud original está en curso, {@code estado} es nulo.
+ */
+@Entity
+@Table(name = "idempotency_keys", indexes = {
+        @Index(name = "idx_idempotency_keys_creada", columnList = "creada")
+})
+public class RespuestaIdempotente {
+
+    // Operación y clave enviada por el cliente, separadas por ':'
+    @Id
+    @Column(length = 300)
+    private String clave;
+
+    @Column(nullable = false, length = 64)
+    private String huella;
+
+    private Integer estado;
+
+    @Column(length = 100)
+    private String tipoContenido;
+
+    @Column(columnDefinition = "TEXT")
+    private String cuerpo;
+
+    @Column(nullable = false)
+    private Instant creada;
+
+    public RespuestaIdempotente() {
+    }
+
+    public RespuestaIdempotente(String clave, String huella) {
+        this.clave = clave;
+        this.huella = huella;
+        this.creada = Instant.now();
+    }
+
+    public String getClave() {
+        return clave;
+    }
+
+    public String getHuella() {
+        return huella;
+    }
+
+    public Integer getEstado() {
+        return estado;
+    }
+
+    public void setEstado(Integer estado) {
+        this.estado = estado;
+    }
+
+    public String getTipoContenido() {
+        return tipoContenido;
+    }
+
+    public void setTipoContenido(String tipoContenido) {
+        this.tipoContenido = tipoContenido;
+    }
+
+    public String getCuerpo() {
+        return cuerpo;
+    }
+
+    public void setCuerpo(String cuerpo) {
+        this.cuerpo = cuerpo;
+    }
+
+    public Instant getCreada() {
+        return creada;
+    }
+}
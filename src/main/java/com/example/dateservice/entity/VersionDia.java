@@ -0,0 +1,47 @@
+package com.example.dateservice.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDate;
+
+/**
+ * Versión de la agenda de un psicólogo en un día, compartida por todas las instancias.
+ * Se escribe con un upsert desde {@code VersionesAgenda}; un día sin fila tiene versión 0.
+ */
+@Entity
+@Table(name = "agenda_day_versions", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_agenda_day_versions", columnNames = {"id_psicologo", "fecha"})
+})
+public class VersionDia {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long idPsicologo;
+
+    @Column(nullable = false)
+    private LocalDate fecha;
+
+    @Column(nullable = false)
+    private Long version;
+
+    public VersionDia() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getIdPsicologo() {
+        return idPsicologo;
+    }
+
+    public LocalDate getFecha() {
+        return fecha;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.dateservice.entity;
+
+import jakarta.persistence.*;
+
+/**
+ * Versión de las reglas de disponibilidad de un psicólogo, compartida por todas las
+ * instancias. Se escribe con un upsert desde {@code VersionesAgenda}; un psicólogo sin
+ * fila tiene versión 0.
+ */
+@Entity
+@Table(name = "availability_rule_versions", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_availability_rule_versions", columnNames = {"id_psicologo"})
+})
+public class VersionReglas {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long idPsicologo;
+
+    @Column(nullable = false)
+    private Long version;
+
+    public VersionReglas() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getIdPsicologo() {
+        return idPsicologo;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+}
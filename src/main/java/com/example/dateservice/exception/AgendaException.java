@@ -0,0 +1,20 @@
+package com.example.dateservice.exception;
+
+/**
+ * Rechazo de negocio de una operación de agenda (horario ocupado, sin disponibilidad,
+ * datos inválidos...). Es un resultado esperado, no un fallo: no captura la pila de
+ * llamadas ni admite causa ni supresiones, así que crearla y lanzarla cuesta poco.
+ */
+public class AgendaException extends RuntimeException {
+
+    private final CodigoError codigo;
+
+    public AgendaException(CodigoError codigo, String mensaje) {
+        super(mensaje, null, false, false);
+        this.codigo = codigo;
+    }
+
+    public CodigoError getCodigo() {
+        return codigo;
+    }
+}
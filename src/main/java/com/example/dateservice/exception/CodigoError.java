@@ -0,0 +1,42 @@
+package com.example.dateservice.exception;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * Motivos por los que una operación de agenda se rechaza, con el estado HTTP con que
+ * se responde y la etiqueta que se usa en las métricas.
+ */
+public enum CodigoError {
+
+    DATOS_INVALIDOS(HttpStatus.BAD_REQUEST, "validacion"),
+    CURSOR_INVALIDO(HttpStatus.BAD_REQUEST, "cursor_invalido"),
+    LIMITE_SUPERADO(HttpStatus.BAD_REQUEST, "limite_superado"),
+    NO_ENCONTRADA(HttpStatus.NOT_FOUND, "no_encontrada"),
+    CITA_SOLAPADA(HttpStatus.CONFLICT, "cita_solapada"),
+    SIN_DISPONIBILIDAD(HttpStatus.CONFLICT, "sin_disponibilidad"),
+    DISPONIBILIDAD_SOLAPADA(HttpStatus.CONFLICT, "disponibilidad_solapada"),
+    CITAS_EXISTENTES(HttpStatus.CONFLICT, "citas_existentes"),
+    CITA_FUERA_DE_RANGO(HttpStatus.CONFLICT, "cita_fuera_de_rango"),
+    DISPONIBILIDAD_TOMADA(HttpStatus.CONFLICT, "disponibilidad_tomada"),
+    IDEMPOTENCIA_EN_CURSO(HttpStatus.CONFLICT, "idempotencia_en_curso"),
+    IDEMPOTENCIA_REUTILIZADA(HttpStatus.UNPROCESSABLE_ENTITY, "idempotencia_reutilizada"),
+    DEMASIADAS_SOLICITUDES(HttpStatus.TOO_MANY_REQUESTS, "demasiadas_solicitudes"),
+    AGENDA_OCUPADA(HttpStatus.SERVICE_UNAVAILABLE, "agenda_ocupada"),
+    COLA_NO_DISPONIBLE(HttpStatus.SERVICE_UNAVAILABLE, "cola_no_disponible");
+
+    private final HttpStatus estado;
+    private final String motivo;
+
+    CodigoError(HttpStatus estado, String motivo) {
+        this.estado = estado;
+        this.motivo = motivo;
+    }
+
+    public HttpStatus estado() {
+        return estado;
+    }
+
+    public String motivo() {
+        return motivo;
+    }
+}
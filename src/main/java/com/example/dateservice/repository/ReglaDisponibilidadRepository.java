@@ -0,0 +1,13 @@
+package com.example.dateservice.repository;
+
+import com.example.dateservice.entity.ReglaDisponibilidad;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface ReglaDisponibilidadRepository extends JpaRepository<ReglaDisponibilidad, Long> {
+
+    List<ReglaDisponibilidad> findByIdPsicologoOrderByFechaInicio(Long idPsicologo);
+}
@@ -0,0 +1,231 @@
+package com.example.dateservice.service;
+
+import com.example.dateservice.dto.EstadoAgendamiento;
+import com.example.dateservice.entity.Date;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modo de agendamiento asíncrono: las solicitudes de {@code /agendar} se encolan y
+ * responden de inmediato con un ID para consultar su estado.
+ *
+ * Cada psicólogo cae siempre en la misma de N colas, y cada cola la atiende un único
+ * hilo escritor, así que las solicitudes de un psicólogo se aplican en orden de
+ * llegada y sin competir entre sí por los cerrojos de agenda. El escritor toma hasta
+ * {@code tamano-lote} solicitudes y las agenda en una sola transacción con
+ * {@link DateService#agendarLote(List)}; si la transacción falla entera, las vuelve a
+ * intentar una por una.
+ */
+@Service
+public class ColaAgendamiento {
+
+    @Autowired
+    private DateService dateService;
+
+    @Value("${agenda.cola.habilitada:false}")
+    private boolean habilitada;
+
+    @Value("${agenda.cola.escritores:8}")
+    private int escritores;
+
+    @Value("${agenda.cola.tamano-lote:20}")
+    private int tamanoLote;
+
+    // Solicitudes pendientes admitidas en cada cola
+    @Value("${agenda.cola.capacidad:1000}")
+    private int capacidad;
+
+    // Tiempo que se puede consultar el estado de una solicitud
+    @Value("${agenda.cola.retencion-minutos:60}")
+    private long retencionMinutos;
+
+    private List<BlockingQueue<Solicitud>> colas;
+    private List<Thread> hilos;
+    private Cache<String, Solicitud> solicitudes;
+    private volatile boolean activa;
+
+    @PostConstruct
+    void iniciar() {
+        solicitudes = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(retencionMinutos))
+                .build();
+        colas = new ArrayList<>(escritores);
+        hilos = new ArrayList<>(escritores);
+        if (!habilitada) {
+            return;
+        }
+
+        activa = true;
+        for (int i = 0; i < escritores; i++) {
+            BlockingQueue<Solicitud> cola = new LinkedBlockingQueue<>(capacidad);
+            Thread hilo = new Thread(() -> atender(cola), "agendamiento-" + i);
+            hilo.setDaemon(true);
+            colas.add(cola);
+            hilos.add(hilo);
+            hilo.start();
+        }
+    }
+
+    @PreDestroy
+    void detener() throws InterruptedException {
+        activa = false;
+        for (Thread hilo : hilos) {
+            hilo.interrupt();
+        }
+        for (Thread hilo : hilos) {
+            hilo.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        for (BlockingQueue<Solicitud> cola : colas) {
+            for (Solicitud solicitud : cola) {
+                solicitud.rechazar(new AgendaException(CodigoError.COLA_NO_DISPONIBLE,
+                        "El servicio se detuvo antes de procesar la solicitud, intente nuevamente."));
+            }
+        }
+    }
+
+    public boolean habilitada() {
+        return habilitada;
+    }
+
+    /**
+     * Encola la cita y devuelve su estado inicial ({@code PENDIENTE}).
+     */
+    public EstadoAgendamiento encolar(Date cita) {
+        if (!activa) {
+            throw new AgendaException(CodigoError.COLA_NO_DISPONIBLE, "El agendamiento en cola no está habilitado.");
+        }
+
+        if (cita.getIdPsicologo() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
+        }
+
+        Solicitud solicitud = new Solicitud(UUID.randomUUID().toString(), cita);
+        // El estado se toma antes de encolar: un escritor libre puede procesarla antes de que esto vuelva
+        EstadoAgendamiento aceptada = solicitud.estado();
+        solicitudes.put(solicitud.id, solicitud);
+        if (!colas.get(Math.floorMod(cita.getIdPsicologo().hashCode(), colas.size())).offer(solicitud)) {
+            solicitudes.invalidate(solicitud.id);
+            throw new AgendaException(CodigoError.COLA_NO_DISPONIBLE, "La cola de agendamiento está llena, intente nuevamente.");
+        }
+        return aceptada;
+    }
+
+    /**
+     * Estado actual de la solicitud, o null si no existe o ya venció.
+     */
+    public EstadoAgendamiento consultar(String id) {
+        Solicitud solicitud = solicitudes.getIfPresent(id);
+        return solicitud == null ? null : solicitud.estado();
+    }
+
+    /**
+     * Estado final de la solicitud, que se completa cuando el escritor la procesa.
+     */
+    public CompletableFuture<EstadoAgendamiento> resultado(String id) {
+        Solicitud solicitud = solicitudes.getIfPresent(id);
+        return solicitud == null ? null : solicitud.resultado;
+    }
+
+    public int pendientes() {
+        int pendientes = 0;
+        for (BlockingQueue<Solicitud> cola : colas) {
+            pendientes += cola.size();
+        }
+        return pendientes;
+    }
+
+    private void atender(BlockingQueue<Solicitud> cola) {
+        List<Solicitud> lote = new ArrayList<>(tamanoLote);
+        while (activa) {
+            try {
+                Solicitud primera = cola.poll(500, TimeUnit.MILLISECONDS);
+                if (primera == null) {
+                    continue;
+                }
+                lote.add(primera);
+                cola.drainTo(lote, tamanoLote - 1);
+                aplicar(lote);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Error en la cola de agendamiento: " + e.getMessage());
+                lote.forEach(solicitud -> solicitud.rechazar(e));
+            } finally {
+                lote.clear();
+            }
+        }
+    }
+
+    void aplicar(List<Solicitud> lote) {
+        List<Date> citas = lote.stream().map(solicitud -> solicitud.cita).toList();
+        try {
+            List<AgendaException> rechazos = dateService.agendarLote(citas);
+            for (int i = 0; i < lote.size(); i++) {
+                lote.get(i).terminar(rechazos.get(i));
+            }
+            return;
+        } catch (RuntimeException e) {
+            if (lote.size() == 1) {
+                lote.get(0).rechazar(e);
+                return;
+            }
+            System.out.println("Lote de agendamiento deshecho, se reintenta una por una: " + e.getMessage());
+        }
+
+        for (Solicitud solicitud : lote) {
+            // El lote deshecho pudo dejarle un ID a la cita
+            solicitud.cita.setId(null);
+            try {
+                dateService.addDate(solicitud.cita);
+                solicitud.terminar(null);
+            } catch (RuntimeException e) {
+                solicitud.rechazar(e);
+            }
+        }
+    }
+
+    static final class Solicitud {
+        private final String id;
+        private final Date cita;
+        private final CompletableFuture<EstadoAgendamiento> resultado = new CompletableFuture<>();
+
+        Solicitud(String id, Date cita) {
+            this.id = id;
+            this.cita = cita;
+        }
+
+        EstadoAgendamiento estado() {
+            return resultado.getNow(new EstadoAgendamiento(id, EstadoAgendamiento.PENDIENTE, null, null, null));
+        }
+
+        void terminar(AgendaException rechazo) {
+            if (rechazo != null) {
+                rechazar(rechazo);
+            } else {
+                resultado.complete(new EstadoAgendamiento(id, EstadoAgendamiento.AGENDADA, cita.getId(), null, null));
+            }
+        }
+
+        void rechazar(RuntimeException e) {
+            String codigo = e instanceof AgendaException rechazo ? rechazo.getCodigo().name() : null;
+            resultado.complete(new EstadoAgendamiento(id, EstadoAgendamiento.RECHAZADA, null, codigo, e.getMessage()));
+        }
+    }
+}
@@ -1,25 +1,95 @@
 package com.example.dateservice.service;
 
+import com.example.dateservice.agenda.BloqueoAgenda;
+import com.example.dateservice.agenda.CacheAgenda;
+import com.example.dateservice.agenda.ClaveDia;
+import com.example.dateservice.agenda.DiaAgenda;
+import com.example.dateservice.agenda.IndiceAgenda;
+import com.example.dateservice.agenda.Intervalo;
+import com.example.dateservice.agenda.MapaFranjas;
+import com.example.dateservice.config.RestriccionesSolapamiento;
+import com.example.dateservice.dto.CitaExportada;
+import com.example.dateservice.dto.CitaVista;
+import com.example.dateservice.dto.CursorFila;
+import com.example.dateservice.dto.DisponibilidadVista;
+import com.example.dateservice.dto.FranjaLibre;
+import com.example.dateservice.dto.PaginaCursor;
+import com.example.dateservice.dto.ResumenCreacion;
+import com.example.dateservice.dto.ResumenDia;
+import com.example.dateservice.dto.SolicitudDisponibilidadesMasivas;
 import com.example.dateservice.entity.Date;
 import com.example.dateservice.entity.Disponibilidad;
+import com.example.dateservice.entity.ReglaDisponibilidad;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
 import com.example.dateservice.repository.DateRepository;
 import com.example.dateservice.repository.DisponibilidadRepository;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.PersistenceException;
 import jakarta.persistence.TypedQuery;
-import jakarta.transaction.Transactional;
+import org.hibernate.cache.spi.access.EntityDataAccess;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.query.NativeQuery;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.DayOfWeek;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 @Service
 public class DateService {
 
+    // Filas que el driver trae por viaje al recorrer tablas completas
+    private static final int TAMANO_LOTE_LECTURA = 500;
+
+    private static final int LIMITE_PAGINA_MAXIMO = 1000;
+
+    // Filas por sentencia INSERT multi-fila en la generación masiva
+    private static final int FILAS_POR_INSERT = 200;
+
+    private static final int MAXIMO_FILAS_MASIVAS = 200_000;
+
+    // Espacio de consulta de las escrituras por SQL: no coincide con ninguna tabla, así
+    // Hibernate no vacía regiones de la caché de segundo nivel al ejecutarlas
+    private static final String SIN_REGIONES = "agenda_sin_regiones";
+
+    // Los listados se leen como proyecciones: no quedan entidades en el contexto de persistencia ni snapshots
+    private static final String SELECT_CITA_VISTA =
+            "SELECT new com.example.dateservice.dto.CitaVista(c.id, c.idPsicologo, c.idCliente, c.fecha, c.horaInicio, c.horaFin) FROM Date c";
+    private static final String SELECT_CITA_ARCHIVADA_VISTA =
+            "SELECT new com.example.dateservice.dto.CitaVista(a.id, a.idPsicologo, a.idCliente, a.fecha, a.horaInicio, a.horaFin) FROM CitaArchivada a";
+    private static final String SELECT_DISPONIBILIDAD_VISTA =
+            "SELECT new com.example.dateservice.dto.DisponibilidadVista(d.id, d.idPsicologo, d.fecha, d.horaInicio, d.horaFin) FROM Disponibilidad d";
+
+    private static final Comparator<CitaVista> ORDEN_CITAS = Comparator.comparing(CitaVista::fecha)
+            .thenComparing(CitaVista::horaInicio)
+            .thenComparing(CitaVista::id);
+
+    private static final Comparator<CitaExportada> ORDEN_EXPORTACION = Comparator.comparing(CitaExportada::fecha)
+            .thenComparing(CitaExportada::horaInicio)
+            .thenComparing(CitaExportada::id);
+
     @PersistenceContext
     private EntityManager entityManager;
 
@@ -29,112 +99,129 @@ public class DateService {
     @Autowired
     private DisponibilidadRepository disponibilidadRepository;
 
+    @Autowired
+    private IndiceAgenda indiceAgenda;
+
+    @Autowired
+    private BloqueoAgenda bloqueoAgenda;
+
+    @Autowired
+    private CacheAgenda cacheAgenda;
+
+    @Autowired
+    private ReglaDisponibilidadService reglaDisponibilidadService;
+
     @Transactional
     public void addDate(Date nuevaCita) {
         System.out.println("Intentando agendar cita: " + nuevaCita);
 
+        AgendaException rechazo = motivoRechazo(nuevaCita);
+        if (rechazo != null) {
+            throw rechazo;
+        }
+        registrarCita(nuevaCita);
+    }
+
+    /**
+     * Agenda varias citas en una sola transacción, en orden. Las que no se pueden agendar
+     * se rechazan sin afectar a las demás: devuelve, en el mismo orden, null por cada cita
+     * agendada o el rechazo correspondiente. Si la base rechaza alguna escritura, se deshace el lote entero.
+     */
+    @Transactional
+    public List<AgendaException> agendarLote(List<Date> citas) {
+        // Todos los días del lote de una vez, en el orden fijo del bloqueo
+        bloqueoAgenda.bloquear(citas.stream()
+                .filter(cita -> cita.getIdPsicologo() != null && cita.getFecha() != null)
+                .map(ClaveDia::de)
+                .toArray(ClaveDia[]::new));
+
+        List<AgendaException> resultados = new ArrayList<>(citas.size());
+        for (Date cita : citas) {
+            AgendaException rechazo = motivoRechazo(cita);
+            if (rechazo == null) {
+                registrarCita(cita);
+            }
+            resultados.add(rechazo);
+        }
+        return resultados;
+    }
+
+    /**
+     * Valida la cita y la compara con la agenda del día (tomando su cerrojo); devuelve
+     * el rechazo (sin lanzarlo) si no se puede agendar, o null si se puede.
+     */
+    private AgendaException motivoRechazo(Date nuevaCita) {
         // Validaciones básicas
         if (nuevaCita.getIdPsicologo() == null) {
-            throw new RuntimeException("El ID del psicólogo es requerido.");
+            return new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
         }
 
         if (nuevaCita.getIdCliente() == null) {
-            throw new RuntimeException("El ID del cliente es requerido.");
+            return new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del cliente es requerido.");
         }
 
         if (nuevaCita.getFecha() == null) {
-            throw new RuntimeException("La fecha es requerida.");
+            return new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha es requerida.");
         }
 
         if (nuevaCita.getHoraInicio() == null || nuevaCita.getHoraFin() == null) {
-            throw new RuntimeException("La hora de inicio y fin son requeridas.");
+            return new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
         }
 
         if (!nuevaCita.getHoraInicio().isBefore(nuevaCita.getHoraFin())) {
-            throw new RuntimeException("La hora de inicio debe ser anterior a la hora de fin.");
+            return new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin.");
         }
 
-        // Verificar si ya existe una cita en el mismo horario
-        List<Date> citasExistentes = entityManager.createQuery(
-                        "SELECT c FROM Date c " +
-                                "WHERE c.idPsicologo = :idPsicologo " +
-                                "AND c.fecha = :fecha " +
-                                "AND c.horaInicio < :horaFin " +
-                                "AND c.horaFin > :horaInicio",
-                        Date.class
-                )
-                .setParameter("idPsicologo", nuevaCita.getIdPsicologo())
-                .setParameter("fecha", nuevaCita.getFecha())
-                .setParameter("horaInicio", nuevaCita.getHoraInicio())
-                .setParameter("horaFin", nuevaCita.getHoraFin())
-                .getResultList();
+        ClaveDia clave = ClaveDia.de(nuevaCita);
+        bloqueoAgenda.bloquear(clave);
+        reglaDisponibilidadService.materializar(clave);
+        DiaAgenda dia = indiceAgenda.obtener(clave);
 
-        if (!citasExistentes.isEmpty()) {
+        // Verificar si ya existe una cita en el mismo horario
+        if (dia.citaQueSolapa(nuevaCita.getHoraInicio(), nuevaCita.getHoraFin()) != null) {
             System.out.println("Ya existe una cita en este horario.");
-            throw new RuntimeException("Ya existe una cita agendada en este horario.");
+            return new AgendaException(CodigoError.CITA_SOLAPADA, "Ya existe una cita agendada en este horario.");
         }
 
         // Buscar disponibilidad que cubra completamente la franja de la cita
-        List<Disponibilidad> resultados = entityManager.createQuery(
-                        "SELECT d FROM Disponibilidad d " +
-                                "WHERE d.idPsicologo = :idPsicologo " +
-                                "AND d.fecha = :fecha " +
-                                "AND d.horaInicio <= :horaInicio " +
-                                "AND d.horaFin >= :horaFin",
-                        Disponibilidad.class
-                )
-                .setParameter("idPsicologo", nuevaCita.getIdPsicologo())
-                .setParameter("fecha", nuevaCita.getFecha())
-                .setParameter("horaInicio", nuevaCita.getHoraInicio())
-                .setParameter("horaFin", nuevaCita.getHoraFin())
-                .setMaxResults(1)
-                .getResultList();
-
-        if (resultados.isEmpty()) {
+        if (dia.disponibilidadQueCubre(nuevaCita.getHoraInicio(), nuevaCita.getHoraFin()) == null) {
             System.out.println("No existe disponibilidad para esta cita.");
-            throw new RuntimeException("No hay disponibilidad para la hora seleccionada.");
+            return new AgendaException(CodigoError.SIN_DISPONIBILIDAD, "No hay disponibilidad para la hora seleccionada.");
         }
+        return null;
+    }
 
-        Disponibilidad disp = resultados.get(0);
+    /**
+     * Ocupa la disponibilidad y guarda una cita ya validada con {@link #motivoRechazo(Date)}.
+     */
+    private void registrarCita(Date nuevaCita) {
+        ClaveDia clave = ClaveDia.de(nuevaCita);
+        Intervalo disp = indiceAgenda.obtener(clave).disponibilidadQueCubre(nuevaCita.getHoraInicio(), nuevaCita.getHoraFin());
         System.out.println("Disponibilidad encontrada: " + disp);
 
-        // Eliminar la disponibilidad actual (ya no es válida tal como está)
-        entityManager.remove(disp);
-        System.out.println("Disponibilidad eliminada: " + disp.getId());
-
-        // Crear nuevas disponibilidades si sobran espacios antes o después
-        if (disp.getHoraInicio().isBefore(nuevaCita.getHoraInicio())) {
-            Disponibilidad antes = new Disponibilidad(
-                    disp.getIdPsicologo(),
-                    disp.getFecha(),
-                    disp.getHoraInicio(),
-                    nuevaCita.getHoraInicio()
-            );
-            entityManager.persist(antes);
-            System.out.println(" Nueva disponibilidad (antes): " + antes);
-        }
-
-        if (disp.getHoraFin().isAfter(nuevaCita.getHoraFin())) {
-            Disponibilidad despues = new Disponibilidad(
-                    disp.getIdPsicologo(),
-                    disp.getFecha(),
-                    nuevaCita.getHoraFin(),
-                    disp.getHoraFin()
-            );
-            entityManager.persist(despues);
-            System.out.println("Nueva disponibilidad (después): " + despues);
-        }
+        ocuparDisponibilidad(clave, disp, nuevaCita.getHoraInicio(), nuevaCita.getHoraFin());
 
-        // Guardar la nueva cita
-        entityManager.persist(nuevaCita);
+        // Guardar la nueva cita; la base rechaza el solapamiento si el índice no lo vio
+        escribir(clave, RestriccionesSolapamiento.CITAS, CodigoError.CITA_SOLAPADA, "Ya existe una cita agendada en este horario.",
+                () -> entityManager.persist(nuevaCita));
+        indiceAgenda.registrar(clave, d -> d.conCita(Intervalo.de(nuevaCita)));
         System.out.println("Cita registrada exitosamente: " + nuevaCita);
     }
 
+    @Transactional
     public void cancelarCita(Long id) {
         Date cita = dateRepository.findById(id)
-                .orElseThrow(() -> new RuntimeException("La cita no existe"));
+                .orElseThrow(() -> new AgendaException(CodigoError.NO_ENCONTRADA, "La cita no existe"));
+        bloqueoAgenda.bloquear(ClaveDia.de(cita));
+
+        // Si otra cancelación ganó el cerrojo, la cita ya no está y la franja no se devuelve dos veces
+        if (eliminarCita(id) == 0) {
+            throw new AgendaException(CodigoError.NO_ENCONTRADA, "La cita no existe");
+        }
+        entityManager.detach(cita);
 
-        dateRepository.delete(cita);
+        // Devolver la franja a la disponibilidad, unida con las franjas libres vecinas
+        liberarFranja(cita);
     }
 
     @Transactional
@@ -142,151 +229,62 @@ public class DateService {
         System.out.println("Intentando modificar cita con ID: " + id);
 
         Date citaExistente = dateRepository.findById(id)
-                .orElseThrow(() -> new RuntimeException("La cita no existe"));
+                .orElseThrow(() -> new AgendaException(CodigoError.NO_ENCONTRADA, "La cita no existe"));
 
         if (citaModificada.getIdPsicologo() == null) {
-            throw new RuntimeException("El ID del psicólogo es requerido.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
         }
 
         if (citaModificada.getIdCliente() == null) {
-            throw new RuntimeException("El ID del cliente es requerido.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del cliente es requerido.");
         }
 
         if (citaModificada.getFecha() == null) {
-            throw new RuntimeException("La fecha es requerida.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha es requerida.");
         }
 
         if (citaModificada.getHoraInicio() == null || citaModificada.getHoraFin() == null) {
-            throw new RuntimeException("La hora de inicio y fin son requeridas.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
         }
 
         if (!citaModificada.getHoraInicio().isBefore(citaModificada.getHoraFin())) {
-            throw new RuntimeException("La hora de inicio debe ser anterior a la hora de fin.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin.");
         }
 
         boolean horarioCambio = !citaExistente.getFecha().equals(citaModificada.getFecha()) ||
                 !citaExistente.getHoraInicio().equals(citaModificada.getHoraInicio()) ||
                 !citaExistente.getHoraFin().equals(citaModificada.getHoraFin());
 
-        if (horarioCambio) {
+        ClaveDia claveAnterior = ClaveDia.de(citaExistente);
+        ClaveDia claveNueva = ClaveDia.de(citaModificada);
+        bloqueoAgenda.bloquear(claveAnterior, claveNueva);
 
-            List<Disponibilidad> disponibilidadesAdyacentes = entityManager.createQuery(
-                            "SELECT d FROM Disponibilidad d " +
-                                    "WHERE d.idPsicologo = :idPsicologo " +
-                                    "AND d.fecha = :fecha " +
-                                    "AND ((d.horaFin = :horaInicio) OR (d.horaInicio = :horaFin))",
-                            Disponibilidad.class
-                    )
-                    .setParameter("idPsicologo", citaExistente.getIdPsicologo())
-                    .setParameter("fecha", citaExistente.getFecha())
-                    .setParameter("horaInicio", citaExistente.getHoraInicio())
-                    .setParameter("horaFin", citaExistente.getHoraFin())
-                    .getResultList();
-
-            Disponibilidad disponibilidadAntes = null;
-            Disponibilidad disponibilidadDespues = null;
-
-            for (Disponibilidad disp : disponibilidadesAdyacentes) {
-                if (disp.getHoraFin().equals(citaExistente.getHoraInicio())) {
-                    disponibilidadAntes = disp;
-                }
-                if (disp.getHoraInicio().equals(citaExistente.getHoraFin())) {
-                    disponibilidadDespues = disp;
-                }
-            }
-
-            if (disponibilidadAntes != null && disponibilidadDespues != null) {
-
-                disponibilidadAntes.setHoraFin(disponibilidadDespues.getHoraFin());
-                entityManager.merge(disponibilidadAntes);
-                entityManager.remove(disponibilidadDespues);
-            } else if (disponibilidadAntes != null) {
-
-                disponibilidadAntes.setHoraFin(citaExistente.getHoraFin());
-                entityManager.merge(disponibilidadAntes);
-            } else if (disponibilidadDespues != null) {
+        if (horarioCambio) {
 
-                disponibilidadDespues.setHoraInicio(citaExistente.getHoraInicio());
-                entityManager.merge(disponibilidadDespues);
-            } else {
+            liberarFranja(citaExistente);
 
-                Disponibilidad nuevaDisponibilidad = new Disponibilidad(
-                        citaExistente.getIdPsicologo(),
-                        citaExistente.getFecha(),
-                        citaExistente.getHoraInicio(),
-                        citaExistente.getHoraFin()
-                );
-                entityManager.persist(nuevaDisponibilidad);
-            }
+            reglaDisponibilidadService.materializar(claveNueva);
+            DiaAgenda dia = indiceAgenda.obtener(claveNueva);
 
-            List<Date> citasExistentes = entityManager.createQuery(
-                            "SELECT c FROM Date c " +
-                                    "WHERE c.idPsicologo = :idPsicologo " +
-                                    "AND c.fecha = :fecha " +
-                                    "AND c.horaInicio < :horaFin " +
-                                    "AND c.horaFin > :horaInicio " +
-                                    "AND c.id != :idCitaActual",
-                            Date.class
-                    )
-                    .setParameter("idPsicologo", citaModificada.getIdPsicologo())
-                    .setParameter("fecha", citaModificada.getFecha())
-                    .setParameter("horaInicio", citaModificada.getHoraInicio())
-                    .setParameter("horaFin", citaModificada.getHoraFin())
-                    .setParameter("idCitaActual", id)
-                    .getResultList();
-
-            if (!citasExistentes.isEmpty()) {
+            if (dia.citaQueSolapa(citaModificada.getHoraInicio(), citaModificada.getHoraFin()) != null) {
                 System.out.println("Ya existe una cita en el nuevo horario.");
-                throw new RuntimeException("Ya existe una cita agendada en el nuevo horario.");
+                throw new AgendaException(CodigoError.CITA_SOLAPADA, "Ya existe una cita agendada en el nuevo horario.");
             }
 
-            List<Disponibilidad> resultados = entityManager.createQuery(
-                            "SELECT d FROM Disponibilidad d " +
-                                    "WHERE d.idPsicologo = :idPsicologo " +
-                                    "AND d.fecha = :fecha " +
-                                    "AND d.horaInicio <= :horaInicio " +
-                                    "AND d.horaFin >= :horaFin",
-                            Disponibilidad.class
-                    )
-                    .setParameter("idPsicologo", citaModificada.getIdPsicologo())
-                    .setParameter("fecha", citaModificada.getFecha())
-                    .setParameter("horaInicio", citaModificada.getHoraInicio())
-                    .setParameter("horaFin", citaModificada.getHoraFin())
-                    .setMaxResults(1)
-                    .getResultList();
-
-            if (resultados.isEmpty()) {
+            Intervalo disp = dia.disponibilidadQueCubre(citaModificada.getHoraInicio(), citaModificada.getHoraFin());
+            if (disp == null) {
                 System.out.println("No existe disponibilidad para el nuevo horario.");
-                throw new RuntimeException("No hay disponibilidad para el nuevo horario seleccionado.");
+                throw new AgendaException(CodigoError.SIN_DISPONIBILIDAD, "No hay disponibilidad para el nuevo horario seleccionado.");
             }
-
-            Disponibilidad disp = resultados.get(0);
             System.out.println("Disponibilidad encontrada para nuevo horario: " + disp);
 
-            entityManager.remove(disp);
-            System.out.println("Disponibilidad eliminada: " + disp.getId());
-
-            if (disp.getHoraInicio().isBefore(citaModificada.getHoraInicio())) {
-                Disponibilidad antes = new Disponibilidad(
-                        disp.getIdPsicologo(),
-                        disp.getFecha(),
-                        disp.getHoraInicio(),
-                        citaModificada.getHoraInicio()
-                );
-                entityManager.persist(antes);
-                System.out.println("Nueva disponibilidad (antes): " + antes);
-            }
-
-            if (disp.getHoraFin().isAfter(citaModificada.getHoraFin())) {
-                Disponibilidad despues = new Disponibilidad(
-                        disp.getIdPsicologo(),
-                        disp.getFecha(),
-                        citaModificada.getHoraFin(),
-                        disp.getHoraFin()
-                );
-                entityManager.persist(despues);
-                System.out.println("Nueva disponibilidad (después): " + despues);
-            }
+            ocuparDisponibilidad(claveNueva, disp, citaModificada.getHoraInicio(), citaModificada.getHoraFin());
+            indiceAgenda.registrar(claveNueva, d -> d.conCita(
+                    new Intervalo(id, citaModificada.getHoraInicio(), citaModificada.getHoraFin())));
+        } else if (!claveAnterior.equals(claveNueva)) {
+            // Solo cambia el psicólogo: la cita pasa de una agenda a otra
+            indiceAgenda.invalidar(claveAnterior);
+            indiceAgenda.invalidar(claveNueva);
         }
 
         citaExistente.setIdPsicologo(citaModificada.getIdPsicologo());
@@ -297,38 +295,112 @@ public class DateService {
 
 
         Date citaActualizada = dateRepository.save(citaExistente);
+        escribir(claveNueva, RestriccionesSolapamiento.CITAS, CodigoError.CITA_SOLAPADA, "Ya existe una cita agendada en el nuevo horario.",
+                entityManager::flush);
         System.out.println("Cita modificada exitosamente: " + citaActualizada);
 
         return citaActualizada;
     }
 
 
-    public List<Date> listarCitasPorPsicologo(Long idPsicologo, LocalDate fecha) {
-        return entityManager.createQuery(
-                        "SELECT c FROM Date c WHERE c.idPsicologo = :idPsicologo AND c.fecha = :fecha",
-                        Date.class
-                )
-                .setParameter("idPsicologo", idPsicologo)
-                .setParameter("fecha", fecha)
-                .getResultList();
+    /**
+     * ETag de las citas y disponibilidades del psicólogo en el día, a partir de sus versiones en la base.
+     */
+    public String etiquetaDia(Long idPsicologo, LocalDate fecha) {
+        return cacheAgenda.etiqueta(new ClaveDia(idPsicologo, fecha));
     }
 
-    public List<Disponibilidad> listarDisponibilidades(Long idPsicologo, LocalDate fecha) {
-        return entityManager.createQuery(
-                        "SELECT d FROM Disponibilidad d WHERE d.idPsicologo = :idPsicologo AND d.fecha = :fecha",
-                        Disponibilidad.class
+    @Transactional(readOnly = true)
+    public List<CitaVista> listarCitasPorPsicologo(Long idPsicologo, LocalDate fecha) {
+        return cacheAgenda.citas(new ClaveDia(idPsicologo, fecha), () -> entityManager.createQuery(
+                        SELECT_CITA_VISTA + " WHERE c.idPsicologo = :idPsicologo AND c.fecha = :fecha",
+                        CitaVista.class
                 )
                 .setParameter("idPsicologo", idPsicologo)
                 .setParameter("fecha", fecha)
-                .getResultList();
+                .getResultList());
     }
 
-    public List<Date> listarTodasLasCitas() {
-        return dateRepository.findAll();
+    @Transactional(readOnly = true)
+    public List<DisponibilidadVista> listarDisponibilidades(Long idPsicologo, LocalDate fecha) {
+        ClaveDia clave = new ClaveDia(idPsicologo, fecha);
+        return cacheAgenda.disponibilidades(clave, () -> {
+            List<DisponibilidadVista> disponibilidades = entityManager.createQuery(
+                            SELECT_DISPONIBILIDAD_VISTA + " WHERE d.idPsicologo = :idPsicologo AND d.fecha = :fecha",
+                            DisponibilidadVista.class
+                    )
+                    .setParameter("idPsicologo", idPsicologo)
+                    .setParameter("fecha", fecha)
+                    .getResultList();
+
+            // Franjas de reglas recurrentes que el día todavía no materializó (sin ID)
+            List<Intervalo> virtuales = reglaDisponibilidadService.ventanasVirtuales(clave);
+            if (virtuales.isEmpty()) {
+                return disponibilidades;
+            }
+            List<DisponibilidadVista> todas = new ArrayList<>(disponibilidades);
+            virtuales.forEach(v -> todas.add(new DisponibilidadVista(null, idPsicologo, fecha, v.inicio(), v.fin())));
+            todas.sort(Comparator.comparing(DisponibilidadVista::horaInicio));
+            return todas;
+        });
     }
 
-    public List<Disponibilidad> filtrarDisponibilidades(Long idPsicologo, LocalDate fecha, Integer mes, Integer anio) {
-        StringBuilder jpql = new StringBuilder("SELECT d FROM Disponibilidad d WHERE 1=1");
+    @Transactional(readOnly = true)
+    public List<FranjaLibre> listarFranjasLibres(Long idPsicologo, LocalDate fecha, Integer duracion, Integer paso) {
+        if (idPsicologo == null || fecha == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo y la fecha son requeridos.");
+        }
+
+        if (duracion == null || duracion <= 0) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La duración debe ser mayor que cero.");
+        }
+
+        if (paso != null && paso <= 0) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El paso debe ser mayor que cero.");
+        }
+
+        // Ninguna franja puede pasar de un día, y valores enormes desbordarían el redondeo del mapa
+        if (duracion > MapaFranjas.MINUTOS_POR_DIA || (paso != null && paso > MapaFranjas.MINUTOS_POR_DIA)) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS,
+                    "La duración y el paso no pueden superar " + MapaFranjas.MINUTOS_POR_DIA + " minutos.");
+        }
+
+        ClaveDia clave = new ClaveDia(idPsicologo, fecha);
+        DiaAgenda dia = indiceAgenda.obtener(clave);
+        for (Intervalo virtual : reglaDisponibilidadService.ventanasVirtuales(clave)) {
+            dia = dia.conDisponibilidad(virtual);
+        }
+        MapaFranjas mapa = MapaFranjas.de(dia);
+        return mapa.huecosLibres(duracion, paso != null ? paso : duracion).stream()
+                .map(hueco -> new FranjaLibre(hueco.inicio(), hueco.fin()))
+                .toList();
+    }
+
+    @Transactional(readOnly = true)
+    public List<CitaVista> listarTodasLasCitas() {
+        return listarTodasLasCitas(false);
+    }
+
+    /**
+     * Todas las citas. Sin {@code incluirHistorial} solo se leen las vigentes: las pasadas
+     * que la tarea de archivo ya movió a {@code dates_archive} no aparecen.
+     */
+    @Transactional(readOnly = true)
+    public List<CitaVista> listarTodasLasCitas(boolean incluirHistorial) {
+        List<CitaVista> citas = entityManager.createQuery(SELECT_CITA_VISTA, CitaVista.class).getResultList();
+        if (!incluirHistorial) {
+            return citas;
+        }
+
+        List<CitaVista> todas = new ArrayList<>(entityManager.createQuery(SELECT_CITA_ARCHIVADA_VISTA, CitaVista.class).getResultList());
+        todas.addAll(citas);
+        todas.sort(ORDEN_CITAS);
+        return todas.stream().distinct().toList();
+    }
+
+    @Transactional(readOnly = true)
+    public List<DisponibilidadVista> filtrarDisponibilidades(Long idPsicologo, LocalDate fecha, Integer mes, Integer anio) {
+        StringBuilder jpql = new StringBuilder(SELECT_DISPONIBILIDAD_VISTA + " WHERE 1=1");
         Map<String, Object> params = new HashMap<>();
 
         if (idPsicologo != null) {
@@ -341,88 +413,411 @@ public class DateService {
             params.put("fecha", fecha);
         }
 
-        if (mes != null) {
-            if (mes < 1 || mes > 12) {
-                throw new RuntimeException("El mes debe estar entre 1 y 12");
-            }
-            jpql.append(" AND MONTH(d.fecha) = :mes");
-            params.put("mes", mes);
+        if (mes != null && (mes < 1 || mes > 12)) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El mes debe estar entre 1 y 12");
         }
 
+        // Rango de fechas en el que se expanden las reglas recurrentes; null es sin límite
+        LocalDate desde = fecha;
+        LocalDate hasta = fecha != null ? fecha.plusDays(1) : null;
+
+        // Mes y año se filtran como rango de fechas para que la base pueda usar el índice
         if (anio != null) {
-            jpql.append(" AND YEAR(d.fecha) = :anio");
-            params.put("anio", anio);
+            LocalDate inicioPeriodo = mes != null ? LocalDate.of(anio, mes, 1) : LocalDate.of(anio, 1, 1);
+            LocalDate finPeriodo = mes != null ? inicioPeriodo.plusMonths(1) : inicioPeriodo.plusYears(1);
+            jpql.append(" AND d.fecha >= :desde AND d.fecha < :hasta");
+            params.put("desde", inicioPeriodo);
+            params.put("hasta", finPeriodo);
+            if (desde == null || desde.isBefore(inicioPeriodo)) {
+                desde = inicioPeriodo;
+            }
+            if (hasta == null || hasta.isAfter(finPeriodo)) {
+                hasta = finPeriodo;
+            }
+        } else if (mes != null) {
+            // El mismo mes de cualquier año no es un único rango
+            jpql.append(" AND MONTH(d.fecha) = :mes");
+            params.put("mes", mes);
         }
 
         jpql.append(" ORDER BY d.fecha ASC, d.horaInicio ASC");
 
-        TypedQuery<Disponibilidad> query = entityManager.createQuery(jpql.toString(), Disponibilidad.class);
+        TypedQuery<DisponibilidadVista> query = entityManager.createQuery(jpql.toString(), DisponibilidadVista.class);
         params.forEach(query::setParameter);
-        return query.getResultList();
+        List<DisponibilidadVista> disponibilidades = query.getResultList();
+
+        List<DisponibilidadVista> virtuales = reglaDisponibilidadService.expandir(idPsicologo, desde, hasta, () -> disponibilidades);
+        if (mes != null && anio == null) {
+            virtuales = virtuales.stream().filter(v -> v.fecha().getMonthValue() == mes).toList();
+        }
+        if (virtuales.isEmpty()) {
+            return disponibilidades;
+        }
+
+        List<DisponibilidadVista> todas = new ArrayList<>(disponibilidades);
+        todas.addAll(virtuales);
+        todas.sort(Comparator.comparing(DisponibilidadVista::fecha).thenComparing(DisponibilidadVista::horaInicio));
+        return todas;
     }
 
-    public List<Date> listarCitasPorCliente(Long idCliente) {
-        return entityManager.createQuery(
-                        "SELECT c FROM Date c WHERE c.idCliente = :idCliente ORDER BY c.fecha DESC, c.horaInicio DESC",
-                        Date.class
+    @Transactional(readOnly = true)
+    public List<ResumenDia> resumirDisponibilidadesDelMes(Long idPsicologo, Integer mes, Integer anio) {
+        if (idPsicologo == null || mes == null || anio == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo, el mes y el año son requeridos.");
+        }
+
+        if (mes < 1 || mes > 12) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El mes debe estar entre 1 y 12");
+        }
+
+        LocalDate desde = LocalDate.of(anio, mes, 1);
+        LocalDate hasta = desde.plusMonths(1);
+        List<ResumenDia> resumen = entityManager.createQuery(
+                        "SELECT new com.example.dateservice.dto.ResumenDia(d.fecha, " +
+                                "SUM((HOUR(d.horaFin) * 60 + MINUTE(d.horaFin)) - (HOUR(d.horaInicio) * 60 + MINUTE(d.horaInicio))), " +
+                                "COUNT(d)) " +
+                                "FROM Disponibilidad d " +
+                                "WHERE d.idPsicologo = :idPsicologo AND d.fecha >= :desde AND d.fecha < :hasta " +
+                                "GROUP BY d.fecha ORDER BY d.fecha",
+                        ResumenDia.class
+                )
+                .setParameter("idPsicologo", idPsicologo)
+                .setParameter("desde", desde)
+                .setParameter("hasta", hasta)
+                .getResultList();
+
+        // Las filas guardadas solo se leen una por una si hay reglas recurrentes en el mes
+        List<DisponibilidadVista> virtuales = reglaDisponibilidadService.expandir(idPsicologo, desde, hasta,
+                () -> entityManager.createQuery(
+                                SELECT_DISPONIBILIDAD_VISTA + " WHERE d.idPsicologo = :idPsicologo " +
+                                        "AND d.fecha >= :desde AND d.fecha < :hasta",
+                                DisponibilidadVista.class
+                        )
+                        .setParameter("idPsicologo", idPsicologo)
+                        .setParameter("desde", desde)
+                        .setParameter("hasta", hasta)
+                        .getResultList());
+        if (virtuales.isEmpty()) {
+            return resumen;
+        }
+
+        Map<LocalDate, long[]> porDia = new TreeMap<>();
+        for (ResumenDia dia : resumen) {
+            porDia.put(dia.fecha(), new long[]{dia.minutosLibres(), dia.franjas()});
+        }
+        for (DisponibilidadVista virtual : virtuales) {
+            long[] totales = porDia.computeIfAbsent(virtual.fecha(), f -> new long[2]);
+            totales[0] += Duration.between(virtual.horaInicio(), virtual.horaFin()).toMinutes();
+            totales[1]++;
+        }
+        List<ResumenDia> combinado = new ArrayList<>(porDia.size());
+        porDia.forEach((fecha, totales) -> combinado.add(new ResumenDia(fecha, totales[0], totales[1])));
+        return combinado;
+    }
+
+    @Transactional(readOnly = true)
+    public List<CitaVista> listarCitasPorCliente(Long idCliente) {
+        return listarCitasPorCliente(idCliente, false);
+    }
+
+    /**
+     * Citas del cliente, de la más reciente a la más antigua. Con {@code incluirHistorial}
+     * también se consultan las citas pasadas que ya se movieron al archivo.
+     */
+    @Transactional(readOnly = true)
+    public List<CitaVista> listarCitasPorCliente(Long idCliente, boolean incluirHistorial) {
+        List<CitaVista> citas = entityManager.createQuery(
+                        SELECT_CITA_VISTA + " WHERE c.idCliente = :idCliente ORDER BY c.fecha DESC, c.horaInicio DESC",
+                        CitaVista.class
                 )
                 .setParameter("idCliente", idCliente)
                 .getResultList();
+        if (!incluirHistorial) {
+            return citas;
+        }
+
+        List<CitaVista> archivadas = entityManager.createQuery(
+                        SELECT_CITA_ARCHIVADA_VISTA + " WHERE a.idCliente = :idCliente ORDER BY a.fecha DESC, a.horaInicio DESC",
+                        CitaVista.class
+                )
+                .setParameter("idCliente", idCliente)
+                .getResultList();
+        if (archivadas.isEmpty()) {
+            return citas;
+        }
+
+        List<CitaVista> todas = new ArrayList<>(citas.size() + archivadas.size());
+        todas.addAll(citas);
+        todas.addAll(archivadas);
+        todas.sort(Comparator.comparing(CitaVista::fecha).thenComparing(CitaVista::horaInicio).reversed());
+        return todas;
+    }
+
+    @Transactional(readOnly = true)
+    public List<DisponibilidadVista> listarTodasLasDisponibilidades() {
+        return entityManager.createQuery(SELECT_DISPONIBILIDAD_VISTA, DisponibilidadVista.class).getResultList();
+    }
+
+    @Transactional(readOnly = true)
+    public PaginaCursor<CitaVista> paginarCitas(String cursor, int limite) {
+        return paginarCitas(cursor, limite, false);
+    }
+
+    /**
+     * Página de citas; con {@code incluirHistorial} se intercalan las archivadas.
+     */
+    @Transactional(readOnly = true)
+    public PaginaCursor<CitaVista> paginarCitas(String cursor, int limite, boolean incluirHistorial) {
+        return paginar(CitaVista.class, origenesCitas(incluirHistorial), ORDEN_CITAS, cursor, limite,
+                c -> new CursorFila(c.fecha(), c.horaInicio(), c.id()));
+    }
+
+    @Transactional(readOnly = true)
+    public PaginaCursor<DisponibilidadVista> paginarDisponibilidades(String cursor, int limite) {
+        return paginar(DisponibilidadVista.class, List.of(new Origen(SELECT_DISPONIBILIDAD_VISTA, "d")), null, cursor, limite,
+                d -> new CursorFila(d.fecha(), d.horaInicio(), d.id()));
+    }
+
+    @Transactional(readOnly = true)
+    public void recorrerCitas(Consumer<CitaVista> consumidor) {
+        recorrerCitas(false, consumidor);
+    }
+
+    /**
+     * Recorre todas las citas en orden (fecha, horaInicio, id) con un cursor del servidor,
+     * sin cargar la tabla entera en memoria. Con {@code incluirHistorial} el archivo se lee
+     * con un segundo cursor y se intercala, como en la exportación.
+     */
+    @Transactional(readOnly = true)
+    public void recorrerCitas(boolean incluirHistorial, Consumer<CitaVista> consumidor) {
+        recorrer(CitaVista.class, origenesCitas(incluirHistorial), ORDEN_CITAS, consumidor);
+    }
+
+    @Transactional(readOnly = true)
+    public void recorrerDisponibilidades(Consumer<DisponibilidadVista> consumidor) {
+        recorrer(DisponibilidadVista.class, List.of(new Origen(SELECT_DISPONIBILIDAD_VISTA, "d")), null, consumidor);
     }
 
-    public List<Disponibilidad> listarTodasLasDisponibilidades() {
-        return disponibilidadRepository.findAll();
+    /**
+     * Recorre las citas de [desde, hasta] (de un psicólogo o de todos) en orden de fecha
+     * y hora con un cursor del servidor. Incluye las citas pasadas que ya se movieron al
+     * archivo: se leen con un segundo cursor y se intercalan por orden. Con
+     * {@code conDisponibilidad} cada fila lleva los minutos de disponibilidad que quedan
+     * en su día, calculados por la base.
+     */
+    @Transactional(readOnly = true)
+    public void exportarCitas(Long idPsicologo, LocalDate desde, LocalDate hasta, boolean conDisponibilidad,
+                              Consumer<CitaExportada> consumidor) {
+        if (desde == null || hasta == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha de inicio y fin son requeridas.");
+        }
+
+        if (hasta.isBefore(desde)) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha de inicio debe ser anterior o igual a la fecha de fin.");
+        }
+
+        // Se abre primero la tabla de citas: una cita que se archive entre las dos lecturas sale repetida, no se pierde
+        try (Stream<CitaExportada> vigentes = consultaExportacion("Date", idPsicologo, desde, hasta, conDisponibilidad).getResultStream();
+             Stream<CitaExportada> archivadas = consultaExportacion("CitaArchivada", idPsicologo, desde, hasta, conDisponibilidad).getResultStream()) {
+            intercalar(vigentes.iterator(), archivadas.iterator(), ORDEN_EXPORTACION, consumidor);
+        }
+    }
+
+    /**
+     * Entrega en orden las filas de dos recorridos ya ordenados. Una cita que se archivó
+     * entre las dos lecturas aparece en ambos: se entrega una vez.
+     */
+    private static <T> void intercalar(Iterator<T> a, Iterator<T> b, Comparator<T> orden, Consumer<T> consumidor) {
+        T x = a.hasNext() ? a.next() : null;
+        T y = b.hasNext() ? b.next() : null;
+        while (x != null || y != null) {
+            int comparacion = x == null ? 1 : y == null ? -1 : orden.compare(x, y);
+            if (comparacion <= 0) {
+                consumidor.accept(x);
+                x = a.hasNext() ? a.next() : null;
+            } else {
+                consumidor.accept(y);
+                y = b.hasNext() ? b.next() : null;
+            }
+            if (comparacion == 0) {
+                y = b.hasNext() ? b.next() : null;
+            }
+        }
+    }
+
+    private TypedQuery<CitaExportada> consultaExportacion(String entidad, Long idPsicologo, LocalDate desde, LocalDate hasta,
+                                                          boolean conDisponibilidad) {
+        String minutos = conDisponibilidad
+                ? "(SELECT COALESCE(SUM((HOUR(d.horaFin) * 60 + MINUTE(d.horaFin)) - (HOUR(d.horaInicio) * 60 + MINUTE(d.horaInicio))), 0) " +
+                "FROM Disponibilidad d WHERE d.idPsicologo = c.idPsicologo AND d.fecha = c.fecha)"
+                : "CAST(NULL AS Long)";
+        String filtroPsicologo = idPsicologo != null ? " AND c.idPsicologo = :idPsicologo" : "";
+
+        // Proyección: no se crean entidades, así que no hay nada que soltar del contexto de persistencia
+        TypedQuery<CitaExportada> query = entityManager.createQuery(
+                        "SELECT new com.example.dateservice.dto.CitaExportada(" +
+                                "c.id, c.idPsicologo, c.idCliente, c.fecha, c.horaInicio, c.horaFin, " + minutos + ") " +
+                                "FROM " + entidad + " c WHERE c.fecha >= :desde AND c.fecha <= :hasta" + filtroPsicologo +
+                                " ORDER BY c.fecha ASC, c.horaInicio ASC, c.id ASC",
+                        CitaExportada.class
+                )
+                .setParameter("desde", desde)
+                .setParameter("hasta", hasta)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, TAMANO_LOTE_LECTURA);
+        if (idPsicologo != null) {
+            query.setParameter("idPsicologo", idPsicologo);
+        }
+        return query;
     }
 
     @Transactional
     public Disponibilidad crearDisponibilidad(Disponibilidad disponibilidad) {
+        if (disponibilidad.getIdPsicologo() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
+        }
+
+        if (disponibilidad.getFecha() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha es requerida.");
+        }
+
         // Validar que horaInicio sea menor que horaFin
         if (disponibilidad.getHoraInicio() == null || disponibilidad.getHoraFin() == null) {
-            throw new RuntimeException("La hora de inicio y fin son requeridas.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
         }
         
         if (!disponibilidad.getHoraInicio().isBefore(disponibilidad.getHoraFin())) {
-            throw new RuntimeException("La hora de inicio debe ser anterior a la hora de fin.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin.");
         }
         
-        return disponibilidadRepository.save(disponibilidad);
+        // Como cualquier escritura de agenda: cerrojo del día, reglas materializadas y solapamiento en el índice
+        ClaveDia clave = ClaveDia.de(disponibilidad);
+        bloqueoAgenda.bloquear(clave);
+        reglaDisponibilidadService.materializar(clave);
+        if (indiceAgenda.obtener(clave).disponibilidadQueSolapa(disponibilidad.getHoraInicio(), disponibilidad.getHoraFin()) != null) {
+            System.out.println("Ya existe una disponibilidad que se solapa en este horario.");
+            throw new AgendaException(CodigoError.DISPONIBILIDAD_SOLAPADA, "Ya existe una disponibilidad que se solapa en este horario.");
+        }
+
+        persistirDisponibilidad(clave, disponibilidad);
+        indiceAgenda.registrar(clave, d -> d.conDisponibilidad(Intervalo.de(disponibilidad)));
+        return disponibilidad;
     }
 
     @Transactional
     public void crearDisponibilidadesMasivas(Long idPsicologo, LocalDate fechaInicio, LocalDate fechaFin, LocalTime horaInicio, LocalTime horaFin) {
         // Validar que horaInicio sea menor que horaFin
         if (horaInicio == null || horaFin == null) {
-            throw new RuntimeException("La hora de inicio y fin son requeridas.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
         }
         
         if (!horaInicio.isBefore(horaFin)) {
-            throw new RuntimeException("La hora de inicio debe ser anterior a la hora de fin.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin.");
         }
         
-        LocalDate fechaActual = fechaInicio;
-        while (!fechaActual.isAfter(fechaFin)) {
-            // Solo crear disponibilidades para días laborables (lunes a viernes)
-            int diaSemana = fechaActual.getDayOfWeek().getValue();
-            if (diaSemana >= 1 && diaSemana <= 5) { // 1 = Lunes, 5 = Viernes
-                Disponibilidad disp = new Disponibilidad(idPsicologo, fechaActual, horaInicio, horaFin);
-                disponibilidadRepository.save(disp);
+        // Solo crear disponibilidades para días laborables (lunes a viernes)
+        generarDisponibilidadesMasivas(new SolicitudDisponibilidadesMasivas(
+                Collections.singletonList(idPsicologo),
+                fechaInicio,
+                fechaFin,
+                List.of(new SolicitudDisponibilidadesMasivas.Franja(horaInicio, horaFin)),
+                ReglaDisponibilidad.DIAS_LABORABLES
+        ));
+    }
+
+    /**
+     * Crea las disponibilidades de varios psicólogos y franjas en los días indicados
+     * mediante INSERT multi-fila, en lugar de una sentencia por fila.
+     */
+    @Transactional
+    public ResumenCreacion generarDisponibilidadesMasivas(SolicitudDisponibilidadesMasivas solicitud) {
+        if (solicitud.idsPsicologo() == null || solicitud.idsPsicologo().isEmpty()
+                || solicitud.idsPsicologo().stream().anyMatch(Objects::isNull)) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "Se requiere al menos un ID de psicólogo.");
+        }
+
+        if (solicitud.fechaInicio() == null || solicitud.fechaFin() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha de inicio y fin son requeridas.");
+        }
+
+        if (solicitud.fechaFin().isBefore(solicitud.fechaInicio())) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha de inicio debe ser anterior o igual a la fecha de fin.");
+        }
+
+        if (solicitud.franjas() == null || solicitud.franjas().isEmpty()) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "Se requiere al menos una franja horaria.");
+        }
+
+        for (SolicitudDisponibilidadesMasivas.Franja franja : solicitud.franjas()) {
+            if (franja.horaInicio() == null || franja.horaFin() == null) {
+                throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
+            }
+
+            if (!franja.horaInicio().isBefore(franja.horaFin())) {
+                throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin.");
             }
-            fechaActual = fechaActual.plusDays(1);
         }
+
+        List<SolicitudDisponibilidadesMasivas.Franja> franjasOrdenadas = solicitud.franjas().stream()
+                .sorted(Comparator.comparing(SolicitudDisponibilidadesMasivas.Franja::horaInicio))
+                .toList();
+        for (int i = 1; i < franjasOrdenadas.size(); i++) {
+            if (franjasOrdenadas.get(i).horaInicio().isBefore(franjasOrdenadas.get(i - 1).horaFin())) {
+                throw new AgendaException(CodigoError.DATOS_INVALIDOS, "Las franjas horarias no pueden solaparse entre sí.");
+            }
+        }
+
+        Set<DayOfWeek> dias = solicitud.diasSemana() == null || solicitud.diasSemana().isEmpty()
+                ? ReglaDisponibilidad.DIAS_LABORABLES
+                : solicitud.diasSemana();
+
+        List<Disponibilidad> filas = new ArrayList<>();
+        for (Long idPsicologo : solicitud.idsPsicologo()) {
+            for (LocalDate fecha = solicitud.fechaInicio(); !fecha.isAfter(solicitud.fechaFin()); fecha = fecha.plusDays(1)) {
+                if (!dias.contains(fecha.getDayOfWeek())) {
+                    continue;
+                }
+                for (SolicitudDisponibilidadesMasivas.Franja franja : solicitud.franjas()) {
+                    filas.add(new Disponibilidad(idPsicologo, fecha, franja.horaInicio(), franja.horaFin()));
+                    if (filas.size() > MAXIMO_FILAS_MASIVAS) {
+                        throw new AgendaException(CodigoError.LIMITE_SUPERADO, "La solicitud supera el máximo de " + MAXIMO_FILAS_MASIVAS + " disponibilidades.");
+                    }
+                }
+            }
+        }
+
+        // Con el cerrojo de cada día: una escritura concurrente sobre el mismo día no debe publicar una vista sin estas filas
+        bloqueoAgenda.bloquear(filas.stream().map(ClaveDia::de).distinct().toArray(ClaveDia[]::new));
+        insertarDisponibilidades(filas);
+        System.out.println("Disponibilidades masivas creadas: " + filas.size());
+        return new ResumenCreacion(filas.size());
     }
 
     @Transactional
     public Disponibilidad actualizarDisponibilidad(Long id, Disponibilidad disponibilidadActualizada) {
 
         Disponibilidad disponibilidadExistente = disponibilidadRepository.findById(id)
-                .orElseThrow(() -> new RuntimeException("La disponibilidad no existe"));
+                .orElseThrow(() -> new AgendaException(CodigoError.NO_ENCONTRADA, "La disponibilidad no existe"));
+
+        if (disponibilidadActualizada.getIdPsicologo() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
+        }
+
+        if (disponibilidadActualizada.getFecha() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha es requerida.");
+        }
+
+        if (disponibilidadActualizada.getHoraInicio() == null || disponibilidadActualizada.getHoraFin() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
+        }
 
         // Validar que horaInicio sea menor que horaFin
         if (disponibilidadActualizada.getHoraInicio().isAfter(disponibilidadActualizada.getHoraFin()) ||
                 disponibilidadActualizada.getHoraInicio().equals(disponibilidadActualizada.getHoraFin())) {
-            throw new RuntimeException("La hora de inicio debe ser anterior a la hora de fin");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin");
         }
 
+        bloqueoAgenda.bloquear(ClaveDia.de(disponibilidadExistente), ClaveDia.de(disponibilidadActualizada));
+
         // Obtener todas las citas del psicólogo en ese día que se solapan con el nuevo rango de disponibilidad
         // Solo verificamos citas que se solapan, no todas las citas del día
         List<Date> citasSolapadas = entityManager.createQuery(
@@ -449,18 +844,24 @@ public class DateService {
                             cita.getHoraFin().equals(disponibilidadActualizada.getHoraFin()));
 
             if (!citaDentroDelRango) {
-                throw new RuntimeException("No se puede modificar el horario porque existe una cita agendada que no está completamente dentro del nuevo rango. La cita está programada de " +
+                throw new AgendaException(CodigoError.CITA_FUERA_DE_RANGO, "No se puede modificar el horario porque existe una cita agendada que no está completamente dentro del nuevo rango. La cita está programada de " +
                         cita.getHoraInicio() + " a " + cita.getHoraFin() + ". El nuevo rango es de " +
                         disponibilidadActualizada.getHoraInicio() + " a " + disponibilidadActualizada.getHoraFin());
             }
         }
 
+        indiceAgenda.invalidar(ClaveDia.de(disponibilidadExistente));
+        indiceAgenda.invalidar(ClaveDia.de(disponibilidadActualizada));
+
         disponibilidadExistente.setIdPsicologo(disponibilidadActualizada.getIdPsicologo());
         disponibilidadExistente.setFecha(disponibilidadActualizada.getFecha());
         disponibilidadExistente.setHoraInicio(disponibilidadActualizada.getHoraInicio());
         disponibilidadExistente.setHoraFin(disponibilidadActualizada.getHoraFin());
 
-        return disponibilidadRepository.save(disponibilidadExistente);
+        Disponibilidad guardada = disponibilidadRepository.save(disponibilidadExistente);
+        escribir(ClaveDia.de(guardada), RestriccionesSolapamiento.DISPONIBILIDADES, CodigoError.DISPONIBILIDAD_SOLAPADA,
+                "Ya existe una disponibilidad que se solapa en este horario.", entityManager::flush);
+        return guardada;
     }
 
     @Transactional
@@ -469,70 +870,316 @@ public class DateService {
 
         // Validaciones básicas
         if (nuevaDisponibilidad.getIdPsicologo() == null) {
-            throw new RuntimeException("El ID del psicólogo es requerido.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
         }
 
         if (nuevaDisponibilidad.getFecha() == null) {
-            throw new RuntimeException("La fecha es requerida.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha es requerida.");
         }
 
         if (nuevaDisponibilidad.getHoraInicio() == null || nuevaDisponibilidad.getHoraFin() == null) {
-            throw new RuntimeException("La hora de inicio y fin son requeridas.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
         }
 
         if (!nuevaDisponibilidad.getHoraInicio().isBefore(nuevaDisponibilidad.getHoraFin())) {
-            throw new RuntimeException("La hora de inicio debe ser anterior a la hora de fin.");
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin.");
         }
 
-        // Verificar si ya existe una disponibilidad que se solape
-        List<Disponibilidad> disponibilidadesExistentes = entityManager.createQuery(
-                        "SELECT d FROM Disponibilidad d " +
-                                "WHERE d.idPsicologo = :idPsicologo " +
-                                "AND d.fecha = :fecha " +
-                                "AND ((d.horaInicio <= :horaInicio AND d.horaFin > :horaInicio) " +
-                                "OR (d.horaInicio < :horaFin AND d.horaFin >= :horaFin) " +
-                                "OR (d.horaInicio >= :horaInicio AND d.horaFin <= :horaFin))",
-                        Disponibilidad.class
-                )
-                .setParameter("idPsicologo", nuevaDisponibilidad.getIdPsicologo())
-                .setParameter("fecha", nuevaDisponibilidad.getFecha())
-                .setParameter("horaInicio", nuevaDisponibilidad.getHoraInicio())
-                .setParameter("horaFin", nuevaDisponibilidad.getHoraFin())
-                .getResultList();
+        ClaveDia clave = ClaveDia.de(nuevaDisponibilidad);
+        bloqueoAgenda.bloquear(clave);
+        reglaDisponibilidadService.materializar(clave);
+        DiaAgenda dia = indiceAgenda.obtener(clave);
 
-        if (!disponibilidadesExistentes.isEmpty()) {
+        // Verificar si ya existe una disponibilidad que se solape
+        if (dia.disponibilidadQueSolapa(nuevaDisponibilidad.getHoraInicio(), nuevaDisponibilidad.getHoraFin()) != null) {
             System.out.println("Ya existe una disponibilidad que se solapa en este horario.");
-            throw new RuntimeException("Ya existe una disponibilidad que se solapa en este horario.");
+            throw new AgendaException(CodigoError.DISPONIBILIDAD_SOLAPADA, "Ya existe una disponibilidad que se solapa en este horario.");
         }
 
         // Verificar si hay citas existentes en este horario que entrarían en conflicto
-        List<Date> citasExistentes = entityManager.createQuery(
-                        "SELECT c FROM Date c " +
-                                "WHERE c.idPsicologo = :idPsicologo " +
-                                "AND c.fecha = :fecha " +
-                                "AND c.horaInicio < :horaFin " +
-                                "AND c.horaFin > :horaInicio",
-                        Date.class
-                )
-                .setParameter("idPsicologo", nuevaDisponibilidad.getIdPsicologo())
-                .setParameter("fecha", nuevaDisponibilidad.getFecha())
-                .setParameter("horaInicio", nuevaDisponibilidad.getHoraInicio())
-                .setParameter("horaFin", nuevaDisponibilidad.getHoraFin())
-                .getResultList();
-
-        if (!citasExistentes.isEmpty()) {
+        if (dia.citaQueSolapa(nuevaDisponibilidad.getHoraInicio(), nuevaDisponibilidad.getHoraFin()) != null) {
             System.out.println("Ya existen citas agendadas en este horario.");
-            throw new RuntimeException("No se puede agregar disponibilidad: ya existen citas agendadas en este horario.");
+            throw new AgendaException(CodigoError.CITAS_EXISTENTES, "No se puede agregar disponibilidad: ya existen citas agendadas en este horario.");
         }
 
         // Guardar la nueva disponibilidad
-        entityManager.persist(nuevaDisponibilidad);
+        escribir(clave, RestriccionesSolapamiento.DISPONIBILIDADES, CodigoError.DISPONIBILIDAD_SOLAPADA,
+                "Ya existe una disponibilidad que se solapa en este horario.",
+                () -> entityManager.persist(nuevaDisponibilidad));
+        indiceAgenda.registrar(clave, d -> d.conDisponibilidad(Intervalo.de(nuevaDisponibilidad)));
         System.out.println("Disponibilidad agregada exitosamente: " + nuevaDisponibilidad);
 
         return nuevaDisponibilidad;
     }
 
-}
+    /**
+     * Ocupa la franja [inicio, fin) de la disponibilidad dada: la elimina y deja como
+     * nuevas disponibilidades los huecos que sobren antes y después.
+     */
+    private void ocuparDisponibilidad(ClaveDia clave, Intervalo disp, LocalTime inicio, LocalTime fin) {
+        if (eliminarDisponibilidad(disp.id()) == 0) {
+            // Otra instancia ya consumió esta disponibilidad: el índice estaba desactualizado
+            indiceAgenda.descartar(clave);
+            throw new AgendaException(CodigoError.DISPONIBILIDAD_TOMADA, "La disponibilidad seleccionada ya no existe, intente nuevamente.");
+        }
+        indiceAgenda.registrar(clave, d -> d.sinDisponibilidad(disp.id()));
+        System.out.println("Disponibilidad eliminada: " + disp.id());
+
+        // Crear nuevas disponibilidades si sobran espacios antes o después
+        if (disp.inicio().isBefore(inicio)) {
+            Disponibilidad antes = new Disponibilidad(clave.idPsicologo(), clave.fecha(), disp.inicio(), inicio);
+            persistirDisponibilidad(clave, antes);
+            indiceAgenda.registrar(clave, d -> d.conDisponibilidad(Intervalo.de(antes)));
+            System.out.println("Nueva disponibilidad (antes): " + antes);
+        }
+
+        if (disp.fin().isAfter(fin)) {
+            Disponibilidad despues = new Disponibilidad(clave.idPsicologo(), clave.fecha(), fin, disp.fin());
+            persistirDisponibilidad(clave, despues);
+            indiceAgenda.registrar(clave, d -> d.conDisponibilidad(Intervalo.de(despues)));
+            System.out.println("Nueva disponibilidad (después): " + despues);
+        }
+    }
+
+    /**
+     * Devuelve a la disponibilidad la franja que ocupa la cita, uniéndola con las
+     * disponibilidades contiguas si las hay.
+     */
+    private void liberarFranja(Date cita) {
+        ClaveDia clave = ClaveDia.de(cita);
+        DiaAgenda dia = indiceAgenda.obtener(clave);
+
+        Intervalo disponibilidadAntes = dia.disponibilidadQueTerminaEn(cita.getHoraInicio());
+        Intervalo disponibilidadDespues = dia.disponibilidadQueEmpiezaEn(cita.getHoraFin());
+
+        Intervalo liberada;
+        if (disponibilidadAntes != null && disponibilidadDespues != null) {
+
+            eliminarDisponibilidad(disponibilidadDespues.id());
+            liberada = new Intervalo(disponibilidadAntes.id(), disponibilidadAntes.inicio(), disponibilidadDespues.fin());
+            actualizarFranja(clave, liberada);
+        } else if (disponibilidadAntes != null) {
+
+            liberada = new Intervalo(disponibilidadAntes.id(), disponibilidadAntes.inicio(), cita.getHoraFin());
+            actualizarFranja(clave, liberada);
+        } else if (disponibilidadDespues != null) {
+
+            liberada = new Intervalo(disponibilidadDespues.id(), cita.getHoraInicio(), disponibilidadDespues.fin());
+            actualizarFranja(clave, liberada);
+        } else {
+
+            Disponibilidad nuevaDisponibilidad = new Disponibilidad(
+                    cita.getIdPsicologo(),
+                    cita.getFecha(),
+                    cita.getHoraInicio(),
+                    cita.getHoraFin()
+            );
+            persistirDisponibilidad(clave, nuevaDisponibilidad);
+            liberada = Intervalo.de(nuevaDisponibilidad);
+        }
+
+        indiceAgenda.registrar(clave, d -> {
+            DiaAgenda resultado = d.sinCita(cita.getId());
+            if (disponibilidadAntes != null) {
+                resultado = resultado.sinDisponibilidad(disponibilidadAntes.id());
+            }
+            if (disponibilidadDespues != null) {
+                resultado = resultado.sinDisponibilidad(disponibilidadDespues.id());
+            }
+            return resultado.conDisponibilidad(liberada);
+        });
+    }
+
+    // Escrituras directas por ID: el índice ya sabe qué filas tocar, no hace falta leerlas antes
+
+    private int eliminarCita(Long id) {
+        return escribirPorId(Date.class, id, "DELETE FROM dates WHERE id = ?1");
+    }
+
+    private int eliminarDisponibilidad(Long id) {
+        return escribirPorId(Disponibilidad.class, id, "DELETE FROM availability WHERE id = ?1");
+    }
+
+    private void actualizarFranja(ClaveDia clave, Intervalo franja) {
+        escribir(clave, RestriccionesSolapamiento.DISPONIBILIDADES, CodigoError.DISPONIBILIDAD_SOLAPADA,
+                "Ya existe una disponibilidad que se solapa en este horario.",
+                () -> escribirPorId(Disponibilidad.class, franja.id(),
+                        "UPDATE availability SET hora_inicio = ?2, hora_fin = ?3 WHERE id = ?1",
+                        franja.inicio(), franja.fin()));
+    }
+
+    /**
+     * Escribe una sola fila por SQL y bloquea en la caché de segundo nivel solo su entrada
+     * hasta que termine la transacción. Un DELETE o UPDATE de JPQL vaciaría la región
+     * entera de la entidad en cada cancelación o modificación.
+     */
+    private int escribirPorId(Class<?> entidad, Long id, String sql, Object... valores) {
+        entityManager.flush();
+
+        SessionImplementor sesion = entityManager.unwrap(SessionImplementor.class);
+        EntityPersister persister = sesion.getFactory().getMappingMetamodel().getEntityDescriptor(entidad);
+        if (persister.canWriteToCache()) {
+            EntityDataAccess cache = persister.getCacheAccessStrategy();
+            Object llave = cache.generateCacheKey(id, persister, sesion.getFactory(), sesion.getTenantIdentifier());
+            SoftLock cerrojo = cache.lockItem(sesion, llave, null);
+            sesion.getActionQueue().registerProcess((exito, s) -> cache.unlockItem(s, llave, cerrojo));
+        }
+
+        NativeQuery<?> escritura = entityManager.createNativeQuery(sql).unwrap(NativeQuery.class);
+        escritura.addSynchronizedQuerySpace(SIN_REGIONES);
+        escritura.setParameter(1, id);
+        for (int i = 0; i < valores.length; i++) {
+            escritura.setParameter(i + 2, valores[i]);
+        }
+        return escritura.executeUpdate();
+    }
+
+    private void persistirDisponibilidad(ClaveDia clave, Disponibilidad disponibilidad) {
+        escribir(clave, RestriccionesSolapamiento.DISPONIBILIDADES, CodigoError.DISPONIBILIDAD_SOLAPADA,
+                "Ya existe una disponibilidad que se solapa en este horario.",
+                () -> entityManager.persist(disponibilidad));
+    }
+
+    /**
+     * Ejecuta una escritura y convierte el rechazo de la restricción de solapamiento
+     * de la base en el error de negocio correspondiente.
+     */
+    private void escribir(ClaveDia clave, String restriccion, CodigoError codigo, String mensaje, Runnable escritura) {
+        try {
+            escritura.run();
+        } catch (PersistenceException | DataAccessException e) {
+            if (!RestriccionesSolapamiento.esViolacion(e, restriccion)) {
+                throw e;
+            }
+            // El índice no conocía la fila que provoca el conflicto
+            indiceAgenda.descartar(clave);
+            System.out.println(mensaje);
+            throw new AgendaException(codigo, mensaje);
+        }
+    }
+
+    // Paginación por clave y recorrido en streaming
+
+    // Igual que los listados, se leen proyecciones: ni entidades gestionadas ni paso por la caché de segundo nivel
+
+    private static List<Origen> origenesCitas(boolean incluirHistorial) {
+        Origen vigentes = new Origen(SELECT_CITA_VISTA, "c");
+        return incluirHistorial ? List.of(vigentes, new Origen(SELECT_CITA_ARCHIVADA_VISTA, "a")) : List.of(vigentes);
+    }
+
+    /**
+     * Página por clave sobre una o dos tablas; con dos, cada una aporta hasta {@code limite}
+     * filas desde el cursor y se queda con las primeras en {@code orden}.
+     */
+    private <T> PaginaCursor<T> paginar(Class<T> tipo, List<Origen> origenes, Comparator<T> orden, String cursor, int limite,
+                                        Function<T, CursorFila> posicion) {
+        if (limite < 1 || limite > LIMITE_PAGINA_MAXIMO) {
+            throw new AgendaException(CodigoError.LIMITE_SUPERADO, "El límite debe estar entre 1 y " + LIMITE_PAGINA_MAXIMO);
+        }
+        CursorFila desde = cursor != null && !cursor.isBlank() ? CursorFila.decodificar(cursor) : null;
+
+        List<T> elementos;
+        if (origenes.size() == 1) {
+            elementos = pagina(tipo, origenes.get(0), desde, limite);
+        } else {
+            List<T> todas = new ArrayList<>();
+            for (Origen origen : origenes) {
+                todas.addAll(pagina(tipo, origen, desde, limite));
+            }
+            todas.sort(orden);
+            elementos = todas.stream().distinct().limit(limite).toList();
+        }
 
+        String siguiente = elementos.size() < limite
+                ? null
+                : posicion.apply(elementos.get(elementos.size() - 1)).codificar();
+        return new PaginaCursor<>(elementos, siguiente);
+    }
 
-  
\ No newline at end of file
+    private <T> List<T> pagina(Class<T> tipo, Origen origen, CursorFila desde, int limite) {
+        String alias = origen.alias();
+        StringBuilder jpql = new StringBuilder(origen.select());
+        if (desde != null) {
+            jpql.append(" WHERE " + alias + ".fecha > :fecha" +
+                    " OR (" + alias + ".fecha = :fecha AND (" + alias + ".horaInicio > :horaInicio" +
+                    " OR (" + alias + ".horaInicio = :horaInicio AND " + alias + ".id > :id)))");
+        }
+        jpql.append(ordenPorClave(alias));
+
+        TypedQuery<T> query = entityManager.createQuery(jpql.toString(), tipo)
+                .setMaxResults(limite);
+        if (desde != null) {
+            query.setParameter("fecha", desde.fecha())
+                    .setParameter("horaInicio", desde.horaInicio())
+                    .setParameter("id", desde.id());
+        }
+        return query.getResultList();
+    }
+
+    private <T> void recorrer(Class<T> tipo, List<Origen> origenes, Comparator<T> orden, Consumer<T> consumidor) {
+        if (origenes.size() == 1) {
+            try (Stream<T> filas = recorrido(tipo, origenes.get(0))) {
+                filas.forEach(consumidor);
+            }
+            return;
+        }
+        try (Stream<T> a = recorrido(tipo, origenes.get(0));
+             Stream<T> b = recorrido(tipo, origenes.get(1))) {
+            intercalar(a.iterator(), b.iterator(), orden, consumidor);
+        }
+    }
+
+    private <T> Stream<T> recorrido(Class<T> tipo, Origen origen) {
+        return entityManager.createQuery(origen.select() + ordenPorClave(origen.alias()), tipo)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, TAMANO_LOTE_LECTURA)
+                .getResultStream();
+    }
+
+    private static String ordenPorClave(String alias) {
+        return " ORDER BY " + alias + ".fecha ASC, " + alias + ".horaInicio ASC, " + alias + ".id ASC";
+    }
+
+    /**
+     * Consulta de proyección sobre una tabla y el alias que usa en su FROM.
+     */
+    private record Origen(String select, String alias) {
+    }
+
+    /**
+     * Inserta las disponibilidades en sentencias de hasta {@value #FILAS_POR_INSERT} filas
+     * en la transacción JPA.
+     */
+    private void insertarDisponibilidades(List<Disponibilidad> filas) {
+        entityManager.flush();
+
+        for (int desde = 0; desde < filas.size(); desde += FILAS_POR_INSERT) {
+            List<Disponibilidad> lote = filas.subList(desde, Math.min(desde + FILAS_POR_INSERT, filas.size()));
+
+            String sql = "INSERT INTO availability (id_psicologo, fecha, hora_inicio, hora_fin) VALUES " +
+                    String.join(", ", Collections.nCopies(lote.size(), "(?, ?, ?, ?)"));
+            Object[] parametros = new Object[lote.size() * 4];
+            int i = 0;
+            for (Disponibilidad disp : lote) {
+                parametros[i++] = disp.getIdPsicologo();
+                parametros[i++] = disp.getFecha();
+                parametros[i++] = disp.getHoraInicio();
+                parametros[i++] = disp.getHoraFin();
+                indiceAgenda.invalidar(ClaveDia.de(disp));
+            }
+            // Filas nuevas: no hay nada que invalidar en la caché de segundo nivel
+            NativeQuery<?> insert = entityManager.createNativeQuery(sql).unwrap(NativeQuery.class);
+            insert.addSynchronizedQuerySpace(SIN_REGIONES);
+            for (int j = 0; j < parametros.length; j++) {
+                insert.setParameter(j + 1, parametros[j]);
+            }
+            try {
+                insert.executeUpdate();
+            } catch (PersistenceException | DataAccessException e) {
+                if (!RestriccionesSolapamiento.esViolacion(e, RestriccionesSolapamiento.DISPONIBILIDADES)) {
+                    throw e;
+                }
+                throw new AgendaException(CodigoError.DISPONIBILIDAD_SOLAPADA, "Alguna de las disponibilidades se solapa con otra ya existente.");
+            }
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.example.dateservice.service;
+
+import com.example.dateservice.agenda.BloqueoAgenda;
+import com.example.dateservice.agenda.CacheAgenda;
+import com.example.dateservice.agenda.ClaveDia;
+import com.example.dateservice.agenda.DiaAgenda;
+import com.example.dateservice.agenda.IndiceAgenda;
+import com.example.dateservice.agenda.Intervalo;
+import com.example.dateservice.agenda.VersionesAgenda;
+import com.example.dateservice.config.LectorPrimaria;
+import com.example.dateservice.dto.DisponibilidadVista;
+import com.example.dateservice.dto.SolicitudReglaDisponibilidad;
+import com.example.dateservice.entity.DiaMaterializado;
+import com.example.dateservice.entity.Disponibilidad;
+import com.example.dateservice.entity.ReglaDisponibilidad;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import com.example.dateservice.repository.ReglaDisponibilidadRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Disponibilidades semanales recurrentes.
+ *
+ * Una regla no crea filas en {@code availability} al darse de alta: sus franjas se
+ * calculan al leer cada día ("virtuales", con ID nulo) y se guardan como filas
+ * normales la primera vez que se escribe sobre ese día (agendar, modificar una cita
+ * o agregar una disponibilidad). Desde ese momento el día queda marcado como
+ * materializado y se lee solo de la tabla. Los días anteriores a hoy nunca se expanden.
+ *
+ * Dentro de un día, las franjas de las reglas ceden ante las disponibilidades y citas
+ * que ya existen: de cada franja se generan solo los tramos que quedan libres.
+ *
+ * Las reglas de cada psicólogo y la marca de día materializado se guardan en memoria
+ * para no consultarlas en cada escritura y lectura del día. Las reglas valen mientras
+ * no cambie la versión de reglas del psicólogo en {@link VersionesAgenda}; un día
+ * materializado lo está para siempre, y uno sin materializar sigue así mientras no
+ * cambie la versión del día (materializarlo la cambia).
+ */
+@Service
+public class ReglaDisponibilidadService {
+
+    // Duración máxima de una regla, y horizonte de las franjas virtuales que se listan desde hoy
+    private static final int ANIOS_MAXIMOS = 2;
+
+    private static final Comparator<ReglaDisponibilidad> ORDEN_REGLAS =
+            Comparator.comparing(ReglaDisponibilidad::getHoraInicio).thenComparing(ReglaDisponibilidad::getId);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private ReglaDisponibilidadRepository reglaDisponibilidadRepository;
+
+    @Autowired
+    private IndiceAgenda indiceAgenda;
+
+    @Autowired
+    private BloqueoAgenda bloqueoAgenda;
+
+    @Autowired
+    private CacheAgenda cacheAgenda;
+
+    @Autowired
+    private VersionesAgenda versionesAgenda;
+
+    @Autowired
+    private LectorPrimaria lectorPrimaria;
+
+    @Value("${agenda.reglas.max-psicologos:5000}")
+    private long maxPsicologos;
+
+    @Value("${agenda.reglas.max-dias:20000}")
+    private long maxDias;
+
+    private Cache<Long, ReglasCargadas> reglasPorPsicologo;
+    private Cache<ClaveDia, Materializacion> materializaciones;
+
+    @PostConstruct
+    void iniciar() {
+        reglasPorPsicologo = Caffeine.newBuilder().maximumSize(maxPsicologos).build();
+        materializaciones = Caffeine.newBuilder().maximumSize(maxDias).build();
+    }
+
+    @Transactional
+    public ReglaDisponibilidad crearRegla(SolicitudReglaDisponibilidad solicitud) {
+        if (solicitud.idPsicologo() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
+        }
+
+        if (solicitud.horaInicio() == null || solicitud.horaFin() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio y fin son requeridas.");
+        }
+
+        if (!solicitud.horaInicio().isBefore(solicitud.horaFin())) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La hora de inicio debe ser anterior a la hora de fin.");
+        }
+
+        if (solicitud.fechaInicio() == null || solicitud.fechaFin() == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha de inicio y fin son requeridas.");
+        }
+
+        if (solicitud.fechaFin().isBefore(solicitud.fechaInicio())) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "La fecha de inicio debe ser anterior o igual a la fecha de fin.");
+        }
+
+        if (solicitud.fechaFin().isAfter(solicitud.fechaInicio().plusYears(ANIOS_MAXIMOS))) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "Una regla puede abarcar como mucho " + ANIOS_MAXIMOS + " años.");
+        }
+
+        Set<DayOfWeek> dias = solicitud.diasSemana() == null || solicitud.diasSemana().isEmpty()
+                ? ReglaDisponibilidad.DIAS_LABORABLES
+                : solicitud.diasSemana();
+
+        ReglaDisponibilidad regla = reglaDisponibilidadRepository.save(new ReglaDisponibilidad(
+                solicitud.idPsicologo(), dias, solicitud.horaInicio(), solicitud.horaFin(),
+                solicitud.fechaInicio(), solicitud.fechaFin(), solicitud.excepciones()));
+
+        // Los días ya materializados no vuelven a leer las reglas: se les agrega la franja ahora
+        LocalDate hoy = LocalDate.now();
+        LocalDate desde = regla.getFechaInicio().isBefore(hoy) ? hoy : regla.getFechaInicio();
+        if (!regla.getFechaFin().isBefore(desde)) {
+            List<ClaveDia> materializados = materializados(regla.getIdPsicologo(), desde, regla.getFechaFin().plusDays(1))
+                    .stream()
+                    .filter(clave -> regla.aplicaEn(clave.fecha()))
+                    .toList();
+            if (!materializados.isEmpty()) {
+                bloqueoAgenda.bloquear(materializados.toArray(ClaveDia[]::new));
+                for (ClaveDia clave : materializados) {
+                    persistirVentanas(clave, List.of(regla));
+                }
+            }
+        }
+
+        versionesAgenda.cambiarReglas(regla.getIdPsicologo());
+        invalidarCacheAlConfirmar(regla.getIdPsicologo());
+        System.out.println("Regla de disponibilidad creada: " + regla);
+        return regla;
+    }
+
+    @Transactional(readOnly = true)
+    public List<ReglaDisponibilidad> listarReglas(Long idPsicologo) {
+        if (idPsicologo == null) {
+            throw new AgendaException(CodigoError.DATOS_INVALIDOS, "El ID del psicólogo es requerido.");
+        }
+        return reglaDisponibilidadRepository.findByIdPsicologoOrderByFechaInicio(idPsicologo);
+    }
+
+    /**
+     * Elimina la regla. Las disponibilidades que ya se materializaron a partir de ella se conservan.
+     */
+    @Transactional
+    public void eliminarRegla(Long id) {
+        ReglaDisponibilidad regla = reglaDisponibilidadRepository.findById(id)
+                .orElseThrow(() -> new AgendaException(CodigoError.NO_ENCONTRADA, "La regla de disponibilidad no existe"));
+        reglaDisponibilidadRepository.delete(regla);
+        versionesAgenda.cambiarReglas(regla.getIdPsicologo());
+        invalidarCacheAlConfirmar(regla.getIdPsicologo());
+    }
+
+    /**
+     * Guarda como filas de disponibilidad las franjas de las reglas que aplican al día,
+     * si todavía no se había hecho. Debe llamarse con el cerrojo del día tomado y antes
+     * de consultar el día en el índice.
+     */
+    public void materializar(ClaveDia clave) {
+        if (clave.fecha().isBefore(LocalDate.now())) {
+            return;
+        }
+
+        VersionesAgenda.Version version = versionesAgenda.leer(clave);
+        List<ReglaDisponibilidad> reglas = reglasDelDia(clave, version.reglas());
+        if (reglas.isEmpty() || estaMaterializado(clave, version.dia())) {
+            return;
+        }
+
+        persistirVentanas(clave, reglas);
+        entityManager.persist(new DiaMaterializado(clave.idPsicologo(), clave.fecha()));
+        // Aunque no quede ninguna franja, el día cambió: su versión sube al confirmar
+        indiceAgenda.registrar(clave, dia -> dia);
+        materializadosTransaccion().add(clave);
+        System.out.println("Reglas de disponibilidad materializadas para " + clave);
+    }
+
+    /**
+     * Franjas que las reglas agregan a un día que todavía no se materializó.
+     */
+    public List<Intervalo> ventanasVirtuales(ClaveDia clave) {
+        if (clave.fecha().isBefore(LocalDate.now())) {
+            return List.of();
+        }
+
+        VersionesAgenda.Version version = versionesAgenda.leer(clave);
+        List<ReglaDisponibilidad> reglas = reglasDelDia(clave, version.reglas());
+        if (reglas.isEmpty() || estaMaterializado(clave, version.dia())) {
+            return List.of();
+        }
+        return ventanas(reglas, clave.fecha(), indiceAgenda.obtener(clave));
+    }
+
+    /**
+     * Franjas virtuales de los días en [desde, hasta) de uno o todos los psicólogos.
+     * Las disponibilidades guardadas solo se leen si hay alguna regla en el rango,
+     * y lo que ocupan se descuenta de las franjas.
+     *
+     * Sin {@code hasta}, o con uno muy lejano, se expande como mucho {@value #ANIOS_MAXIMOS}
+     * años desde el inicio: una regla vieja sin límite no genera millones de filas.
+     */
+    public List<DisponibilidadVista> expandir(Long idPsicologo, LocalDate desde, LocalDate hasta,
+                                              Supplier<List<DisponibilidadVista>> fisicas) {
+        LocalDate hoy = LocalDate.now();
+        LocalDate inicio = desde == null || desde.isBefore(hoy) ? hoy : desde;
+        LocalDate horizonte = inicio.plusYears(ANIOS_MAXIMOS);
+        LocalDate fin = hasta == null || hasta.isAfter(horizonte) ? horizonte : hasta;
+        if (!inicio.isBefore(fin)) {
+            return List.of();
+        }
+
+        List<ReglaDisponibilidad> reglas = reglasVigentes(idPsicologo, inicio, fin.minusDays(1));
+        if (reglas.isEmpty()) {
+            return List.of();
+        }
+
+        Set<ClaveDia> materializados = new HashSet<>(materializados(idPsicologo, inicio, fin));
+        Map<ClaveDia, List<Intervalo>> fisicasPorDia = new HashMap<>();
+        for (DisponibilidadVista vista : fisicas.get()) {
+            fisicasPorDia.computeIfAbsent(new ClaveDia(vista.idPsicologo(), vista.fecha()), k -> new ArrayList<>())
+                    .add(new Intervalo(vista.id(), vista.horaInicio(), vista.horaFin()));
+        }
+
+        Map<Long, List<ReglaDisponibilidad>> reglasPorPsicologo = new LinkedHashMap<>();
+        for (ReglaDisponibilidad regla : reglas) {
+            reglasPorPsicologo.computeIfAbsent(regla.getIdPsicologo(), k -> new ArrayList<>()).add(regla);
+        }
+
+        List<DisponibilidadVista> virtuales = new ArrayList<>();
+        reglasPorPsicologo.forEach((psicologo, suyas) -> {
+            LocalDate primero = suyas.stream().map(ReglaDisponibilidad::getFechaInicio).min(LocalDate::compareTo).get();
+            LocalDate ultimo = suyas.stream().map(ReglaDisponibilidad::getFechaFin).max(LocalDate::compareTo).get();
+            if (primero.isBefore(inicio)) {
+                primero = inicio;
+            }
+            if (!ultimo.isBefore(fin)) {
+                ultimo = fin.minusDays(1);
+            }
+
+            for (LocalDate fecha = primero; !fecha.isAfter(ultimo); fecha = fecha.plusDays(1)) {
+                ClaveDia clave = new ClaveDia(psicologo, fecha);
+                if (materializados.contains(clave)) {
+                    continue;
+                }
+                DiaAgenda base = DiaAgenda.de(List.of(), fisicasPorDia.getOrDefault(clave, List.of()));
+                for (Intervalo ventana : ventanas(suyas, fecha, base)) {
+                    virtuales.add(new DisponibilidadVista(null, psicologo, fecha, ventana.inicio(), ventana.fin()));
+                }
+            }
+        });
+        return virtuales;
+    }
+
+    private void persistirVentanas(ClaveDia clave, List<ReglaDisponibilidad> reglas) {
+        for (Intervalo ventana : ventanas(reglas, clave.fecha(), indiceAgenda.obtener(clave))) {
+            Disponibilidad fila = new Disponibilidad(clave.idPsicologo(), clave.fecha(), ventana.inicio(), ventana.fin());
+            entityManager.persist(fila);
+            indiceAgenda.registrar(clave, d -> d.conDisponibilidad(Intervalo.de(fila)));
+        }
+    }
+
+    /**
+     * Franjas de las reglas que aplican en la fecha, descontando lo que ya ocupan las
+     * disponibilidades y citas del día y las franjas de las reglas anteriores (gana la
+     * regla que empieza antes). De cada regla quedan los tramos libres que deja lo ocupado.
+     */
+    private List<Intervalo> ventanas(List<ReglaDisponibilidad> reglas, LocalDate fecha, DiaAgenda dia) {
+        List<ReglaDisponibilidad> ordenadas = new ArrayList<>(reglas);
+        ordenadas.sort(ORDEN_REGLAS);
+
+        List<Intervalo> ventanas = new ArrayList<>();
+        for (ReglaDisponibilidad regla : ordenadas) {
+            if (!regla.aplicaEn(fecha)) {
+                continue;
+            }
+            List<Intervalo> ocupados = new ArrayList<>(dia.citas());
+            ocupados.addAll(dia.disponibilidades());
+            ocupados.sort(Comparator.comparing(Intervalo::inicio));
+
+            List<Intervalo> libres = new ArrayList<>();
+            LocalTime desde = regla.getHoraInicio();
+            for (Intervalo ocupado : ocupados) {
+                if (!desde.isBefore(regla.getHoraFin()) || !ocupado.inicio().isBefore(regla.getHoraFin())) {
+                    break;
+                }
+                if (ocupado.inicio().isAfter(desde)) {
+                    libres.add(new Intervalo(null, desde, ocupado.inicio()));
+                }
+                if (ocupado.fin().isAfter(desde)) {
+                    desde = ocupado.fin();
+                }
+            }
+            if (desde.isBefore(regla.getHoraFin())) {
+                libres.add(new Intervalo(null, desde, regla.getHoraFin()));
+            }
+
+            for (Intervalo ventana : libres) {
+                ventanas.add(ventana);
+                dia = dia.conDisponibilidad(ventana);
+            }
+        }
+        return ventanas;
+    }
+
+    private List<ReglaDisponibilidad> reglasVigentes(Long idPsicologo, LocalDate desde, LocalDate hasta) {
+        StringBuilder jpql = new StringBuilder(
+                "SELECT DISTINCT r FROM ReglaDisponibilidad r LEFT JOIN FETCH r.excepciones WHERE r.fechaFin >= :desde");
+        Map<String, Object> params = new HashMap<>();
+        params.put("desde", desde);
+
+        if (idPsicologo != null) {
+            jpql.append(" AND r.idPsicologo = :idPsicologo");
+            params.put("idPsicologo", idPsicologo);
+        }
+
+        if (hasta != null) {
+            jpql.append(" AND r.fechaInicio <= :hasta");
+            params.put("hasta", hasta);
+        }
+
+        TypedQuery<ReglaDisponibilidad> query = entityManager.createQuery(jpql.toString(), ReglaDisponibilidad.class);
+        params.forEach(query::setParameter);
+        return query.getResultList();
+    }
+
+    /**
+     * Reglas del psicólogo que pueden aplicar en el día, de memoria si la versión de sus reglas no cambió.
+     */
+    private List<ReglaDisponibilidad> reglasDelDia(ClaveDia clave, long versionReglas) {
+        ReglasCargadas cargadas = reglasPorPsicologo.getIfPresent(clave.idPsicologo());
+        if (cargadas == null || cargadas.version() != versionReglas) {
+            // La versión se leyó antes que las reglas: si cambian entre medias, la entrada nace vieja
+            List<ReglaDisponibilidad> reglas = lectorPrimaria.leer(
+                    () -> reglasVigentes(clave.idPsicologo(), LocalDate.now(), null));
+            cargadas = new ReglasCargadas(versionReglas, List.copyOf(reglas));
+            reglasPorPsicologo.put(clave.idPsicologo(), cargadas);
+        }
+
+        List<ReglaDisponibilidad> delDia = new ArrayList<>();
+        for (ReglaDisponibilidad regla : cargadas.reglas()) {
+            if (!clave.fecha().isBefore(regla.getFechaInicio()) && !clave.fecha().isAfter(regla.getFechaFin())) {
+                delDia.add(regla);
+            }
+        }
+        return delDia;
+    }
+
+    private boolean estaMaterializado(ClaveDia clave, long versionDia) {
+        Set<ClaveDia> propios = materializadosExistentes();
+        if (propios != null && propios.contains(clave)) {
+            return true;
+        }
+
+        Materializacion conocida = materializaciones.getIfPresent(clave);
+        if (conocida != null && (conocida.hecha() || conocida.versionDia() == versionDia)) {
+            return conocida.hecha();
+        }
+
+        boolean hecha = !lectorPrimaria.leer(() -> entityManager.createQuery(
+                        "SELECT m.id FROM DiaMaterializado m WHERE m.idPsicologo = :idPsicologo AND m.fecha = :fecha",
+                        Long.class
+                )
+                .setParameter("idPsicologo", clave.idPsicologo())
+                .setParameter("fecha", clave.fecha())
+                .setMaxResults(1)
+                .getResultList())
+                .isEmpty();
+        materializaciones.put(clave, new Materializacion(hecha, versionDia));
+        return hecha;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<ClaveDia> materializadosExistentes() {
+        return (Set<ClaveDia>) TransactionSynchronizationManager.getResource(this);
+    }
+
+    /**
+     * Días materializados en la transacción actual; al confirmar quedan marcados en memoria.
+     */
+    private Set<ClaveDia> materializadosTransaccion() {
+        Set<ClaveDia> propios = materializadosExistentes();
+        if (propios == null) {
+            Set<ClaveDia> nuevos = new HashSet<>();
+            TransactionSynchronizationManager.bindResource(this, nuevos);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    nuevos.forEach(clave -> materializaciones.put(clave, new Materializacion(true, 0)));
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(ReglaDisponibilidadService.this);
+                }
+            });
+            propios = nuevos;
+        }
+        return propios;
+    }
+
+    private List<ClaveDia> materializados(Long idPsicologo, LocalDate desde, LocalDate hasta) {
+        StringBuilder jpql = new StringBuilder(
+                "SELECT new com.example.dateservice.agenda.ClaveDia(m.idPsicologo, m.fecha) " +
+                        "FROM DiaMaterializado m WHERE m.fecha >= :desde");
+        Map<String, Object> params = new HashMap<>();
+        params.put("desde", desde);
+
+        if (idPsicologo != null) {
+            jpql.append(" AND m.idPsicologo = :idPsicologo");
+            params.put("idPsicologo", idPsicologo);
+        }
+
+        if (hasta != null) {
+            jpql.append(" AND m.fecha < :hasta");
+            params.put("hasta", hasta);
+        }
+
+        TypedQuery<ClaveDia> query = entityManager.createQuery(jpql.toString(), ClaveDia.class);
+        params.forEach(query::setParameter);
+        return query.getResultList();
+    }
+
+    private void invalidarCacheAlConfirmar(Long idPsicologo) {
+        // La versión de las reglas ya invalida las entradas en todas las instancias; en esta se sacan enseguida
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                cacheAgenda.invalidarPsicologo(idPsicologo);
+            }
+        });
+    }
+
+    private record ReglasCargadas(long version, List<ReglaDisponibilidad> reglas) {
+    }
+
+    private record Materializacion(boolean hecha, long versionDia) {
+    }
+}
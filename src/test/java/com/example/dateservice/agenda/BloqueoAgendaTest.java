@@ -0,0 +1,140 @@
+package com.example.dateservice.agenda;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloqueoAgendaTest {
+
+    private final BloqueoAgenda bloqueoAgenda = new BloqueoAgenda();
+    private final ExecutorService otroHilo = Executors.newSingleThreadExecutor();
+
+    private final ClaveDia lunes = new ClaveDia(1L, LocalDate.of(2025, 11, 10));
+
+    @BeforeEach
+    void setup() {
+        ReflectionTestUtils.setField(bloqueoAgenda, "franjas", 64);
+        ReflectionTestUtils.setField(bloqueoAgenda, "esperaMs", 100L);
+        ReflectionTestUtils.setField(bloqueoAgenda, "advisory", false);
+        bloqueoAgenda.iniciar();
+    }
+
+    @AfterEach
+    void limpiar() {
+        otroHilo.shutdownNow();
+    }
+
+    @Test
+    void testMismoDiaEsperaHastaQueTermineLaTransaccion() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        bloqueoAgenda.bloquear(lunes);
+
+        Throwable error = enOtraTransaccion(lunes).get();
+        assertNotNull(error, "El segundo escritor no debe entrar mientras el primero no termine");
+        assertTrue(error.getMessage().contains("ocupada"));
+
+        terminarTransaccion();
+        assertNull(enOtraTransaccion(lunes).get(), "Al terminar la transacción el cerrojo queda libre");
+    }
+
+    @Test
+    void testOtroPsicologoNoEspera() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        bloqueoAgenda.bloquear(lunes);
+
+        // Con 64 franjas se busca un psicólogo que caiga en otro cerrojo
+        ClaveDia otro = null;
+        for (long id = 2; otro == null; id++) {
+            ClaveDia candidata = new ClaveDia(id, lunes.fecha());
+            if (!mismaFranja(candidata, lunes)) {
+                otro = candidata;
+            }
+        }
+        assertNull(enOtraTransaccion(otro).get());
+
+        terminarTransaccion();
+    }
+
+    @Test
+    void testMismaTransaccionPuedeVolverABloquear() {
+        TransactionSynchronizationManager.initSynchronization();
+        bloqueoAgenda.bloquear(lunes);
+        assertDoesNotThrow(() -> bloqueoAgenda.bloquear(lunes, lunes));
+        terminarTransaccion();
+    }
+
+    @Test
+    void testLosAdvisoryLocksSePidenUnaVezPorTransaccionYSeReintentan() {
+        List<List<Object>> sentencias = new ArrayList<>();
+        List<Long> ocupadasEnElPrimerIntento = new ArrayList<>();
+        JdbcTemplate base = new JdbcTemplate() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> List<T> query(String sql, RowMapper<T> mapper, Object... parametros) {
+                // Simula que otra instancia tiene los días indicados solo en el primer intento
+                sentencias.add(List.of(parametros));
+                return sentencias.size() == 1 ? (List<T>) List.copyOf(ocupadasEnElPrimerIntento) : List.of();
+            }
+        };
+        ReflectionTestUtils.setField(bloqueoAgenda, "jdbcTemplate", base);
+        ReflectionTestUtils.setField(bloqueoAgenda, "advisory", true);
+        ReflectionTestUtils.setField(bloqueoAgenda, "postgres", true);
+
+        ClaveDia martes = new ClaveDia(1L, lunes.fecha().plusDays(1));
+        long llaveMartes = (1L << 32) | martes.fecha().toEpochDay();
+        ocupadasEnElPrimerIntento.add(llaveMartes);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            bloqueoAgenda.bloquear(lunes, martes);
+            assertEquals(2, sentencias.size(), "El día que tenía otra instancia se reintenta solo");
+            assertEquals(4, sentencias.get(0).size(), "Los dos días se piden en una sola sentencia");
+            assertEquals(List.of(1, (int) martes.fecha().toEpochDay()), sentencias.get(1));
+
+            bloqueoAgenda.bloquear(lunes, martes, lunes);
+            assertEquals(2, sentencias.size(), "Los días ya bloqueados en la transacción no se vuelven a pedir");
+        } finally {
+            terminarTransaccion();
+        }
+    }
+
+    private CompletableFuture<Throwable> enOtraTransaccion(ClaveDia clave) {
+        return CompletableFuture.supplyAsync(() -> {
+            TransactionSynchronizationManager.initSynchronization();
+            try {
+                bloqueoAgenda.bloquear(clave);
+                return null;
+            } catch (RuntimeException e) {
+                return e;
+            } finally {
+                terminarTransaccion();
+            }
+        }, otroHilo);
+    }
+
+    private boolean mismaFranja(ClaveDia a, ClaveDia b) {
+        return (int) ReflectionTestUtils.invokeMethod(bloqueoAgenda, "posicion", a)
+                == (int) ReflectionTestUtils.invokeMethod(bloqueoAgenda, "posicion", b);
+    }
+
+    private static void terminarTransaccion() {
+        for (TransactionSynchronization sincronizacion : TransactionSynchronizationManager.getSynchronizations()) {
+            sincronizacion.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.dateservice.agenda;
+
+import com.example.dateservice.config.LectorPrimaria;
+import com.example.dateservice.dto.DisponibilidadVista;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheAgendaTest {
+
+    private final IndiceAgenda indiceAgenda = new IndiceAgenda();
+    private final Map<ClaveDia, Long> versiones = new HashMap<>();
+    private final Map<Long, Long> versionesReglas = new HashMap<>();
+    private final VersionesAgenda versionesAgenda = new VersionesAgenda() {
+        @Override
+        public Version leer(ClaveDia clave) {
+            return new Version(versiones.getOrDefault(clave, 0L), versionesReglas.getOrDefault(clave.idPsicologo(), 0L));
+        }
+    };
+    private final LectorPrimaria lectorPrimaria = new LectorPrimaria();
+    private final CacheAgenda cacheAgenda = new CacheAgenda();
+    private final AtomicInteger lecturas = new AtomicInteger();
+
+    private final ClaveDia lunes = new ClaveDia(1L, LocalDate.of(2025, 11, 10));
+    private final Supplier<List<DisponibilidadVista>> carga = () -> {
+        lecturas.incrementAndGet();
+        return List.of(new DisponibilidadVista(1L, 1L, lunes.fecha(), null, null));
+    };
+
+    @BeforeEach
+    void setup() {
+        ReflectionTestUtils.setField(indiceAgenda, "versionesAgenda", versionesAgenda);
+        ReflectionTestUtils.setField(indiceAgenda, "lectorPrimaria", lectorPrimaria);
+        ReflectionTestUtils.setField(indiceAgenda, "maxDias", 100);
+        indiceAgenda.iniciar();
+        ReflectionTestUtils.setField(cacheAgenda, "indiceAgenda", indiceAgenda);
+        ReflectionTestUtils.setField(cacheAgenda, "versionesAgenda", versionesAgenda);
+        ReflectionTestUtils.setField(cacheAgenda, "lectorPrimaria", lectorPrimaria);
+        ReflectionTestUtils.setField(cacheAgenda, "maxDias", 100L);
+        ReflectionTestUtils.setField(cacheAgenda, "expiracionSegundos", 60L);
+        cacheAgenda.iniciar();
+    }
+
+    @Test
+    void testSegundaLecturaSaleDeMemoriaHastaQueCambiaElDia() {
+        cacheAgenda.disponibilidades(lunes, carga);
+        cacheAgenda.disponibilidades(lunes, carga);
+        assertEquals(1, lecturas.get());
+
+        // Un commit sobre el día en cualquier instancia cambia su versión en la base
+        versiones.put(lunes, 7L);
+        cacheAgenda.disponibilidades(lunes, carga);
+        assertEquals(2, lecturas.get());
+
+        // Un descarte en esta instancia saca la entrada de inmediato
+        indiceAgenda.descartar(lunes);
+        cacheAgenda.disponibilidades(lunes, carga);
+        assertEquals(3, lecturas.get());
+
+        // Un cambio de reglas del psicólogo, confirmado en cualquier instancia
+        versionesReglas.put(1L, 3L);
+        cacheAgenda.disponibilidades(lunes, carga);
+        assertEquals(4, lecturas.get());
+
+        cacheAgenda.disponibilidades(new ClaveDia(2L, lunes.fecha()), carga);
+        assertEquals(5, lecturas.get(), "Cada psicólogo y día tiene su propia entrada");
+    }
+
+    @Test
+    void testDentroDeUnaTransaccionNoSeUsaLaCache() {
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            cacheAgenda.disponibilidades(lunes, carga);
+            cacheAgenda.disponibilidades(lunes, carga);
+        } finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+        }
+        assertEquals(2, lecturas.get());
+
+        cacheAgenda.disponibilidades(lunes, carga);
+        assertEquals(3, lecturas.get(), "Lo leído dentro de la transacción no debe quedar guardado");
+    }
+
+    @Test
+    void testLaEtiquetaCambiaConCadaEscrituraYConLasReglas() {
+        ClaveDia futuro = new ClaveDia(1L, LocalDate.now().plusDays(7));
+        String inicial = cacheAgenda.etiqueta(futuro);
+        assertEquals(inicial, cacheAgenda.etiqueta(futuro));
+
+        versiones.put(futuro, 7L);
+        String trasEscritura = cacheAgenda.etiqueta(futuro);
+        assertNotEquals(inicial, trasEscritura);
+
+        versionesReglas.put(1L, 3L);
+        assertNotEquals(trasEscritura, cacheAgenda.etiqueta(futuro));
+
+        CacheAgenda otraInstancia = new CacheAgenda();
+        ReflectionTestUtils.setField(otraInstancia, "versionesAgenda", versionesAgenda);
+        assertEquals(cacheAgenda.etiqueta(futuro), otraInstancia.etiqueta(futuro),
+                "Otra instancia da la misma etiqueta para el mismo contenido");
+        assertNotEquals(cacheAgenda.etiqueta(new ClaveDia(2L, LocalDate.now().plusDays(7))),
+                cacheAgenda.etiqueta(new ClaveDia(2L, LocalDate.now().minusDays(7))),
+                "Un día pasado ya no expande reglas recurrentes");
+    }
+}
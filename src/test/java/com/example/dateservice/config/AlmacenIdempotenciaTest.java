@@ -0,0 +1,113 @@
+package com.example.dateservice.config;
+
+import com.example.dateservice.dto.ErrorRespuesta;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AlmacenIdempotenciaTest {
+
+    private final AlmacenIdempotencia almacen = new AlmacenIdempotencia();
+    private final AtomicInteger ejecuciones = new AtomicInteger();
+
+    @BeforeEach
+    void setup() {
+        ReflectionTestUtils.setField(almacen, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(almacen, "almacen", "memoria");
+        ReflectionTestUtils.setField(almacen, "maxClaves", 100L);
+        ReflectionTestUtils.setField(almacen, "expiracionHoras", 1L);
+        ReflectionTestUtils.setField(almacen, "esperaMs", 1000L);
+        almacen.iniciar();
+    }
+
+    private ResponseEntity<?> agendar(String clave, Object solicitud) {
+        return almacen.ejecutar(clave, "agendar", solicitud, () -> {
+            ejecuciones.incrementAndGet();
+            return ResponseEntity.ok("Cita agendada correctamente");
+        });
+    }
+
+    @Test
+    void testLaRepeticionDevuelveLaRespuestaOriginalSinEjecutar() {
+        Map<String, Object> cita = Map.of("idPsicologo", 1, "idCliente", 100);
+
+        ResponseEntity<?> original = agendar("clave-1", cita);
+        ResponseEntity<?> repetida = agendar("clave-1", cita);
+
+        assertEquals(1, ejecuciones.get());
+        assertEquals(original.getStatusCode(), repetida.getStatusCode());
+        assertEquals("Cita agendada correctamente", repetida.getBody());
+        assertEquals("true", repetida.getHeaders().getFirst(AlmacenIdempotencia.CABECERA_REPETIDA));
+        assertEquals(1, almacen.repeticiones());
+
+        agendar(null, cita);
+        agendar(null, cita);
+        assertEquals(3, ejecuciones.get(), "Sin clave la operación se ejecuta siempre");
+    }
+
+    @Test
+    void testLaRepeticionNoPasaPorLaAdmisionYUnRechazoNoSeGuarda() {
+        Map<String, Object> cita = Map.of("idCliente", 100);
+        AtomicInteger admisiones = new AtomicInteger();
+        Supplier<ResponseEntity<?>> limitada = () -> {
+            admisiones.incrementAndGet();
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        };
+        Supplier<ResponseEntity<?>> accion = () -> {
+            ejecuciones.incrementAndGet();
+            return ResponseEntity.ok("Cita agendada correctamente");
+        };
+
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, almacen.ejecutar("clave-1", "agendar", cita, limitada, accion).getStatusCode());
+        assertEquals(0, ejecuciones.get());
+
+        // El rechazo no quedó guardado: el reintento con la misma clave se ejecuta
+        assertEquals(HttpStatus.OK, almacen.ejecutar("clave-1", "agendar", cita, () -> null, accion).getStatusCode());
+        assertEquals(1, ejecuciones.get());
+
+        ResponseEntity<?> repetida = almacen.ejecutar("clave-1", "agendar", cita, limitada, accion);
+        assertEquals(HttpStatus.OK, repetida.getStatusCode());
+        assertEquals(1, admisiones.get(), "La repetición se contesta sin consultar el límite");
+        assertEquals(1, ejecuciones.get());
+    }
+
+    @Test
+    void testLaMismaClaveConOtraSolicitudSeRechaza() {
+        agendar("clave-1", Map.of("idCliente", 100));
+        ResponseEntity<?> otra = agendar("clave-1", Map.of("idCliente", 200));
+
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, otra.getStatusCode());
+        assertEquals(CodigoError.IDEMPOTENCIA_REUTILIZADA.name(), ((ErrorRespuesta) otra.getBody()).codigo());
+        assertEquals(1, ejecuciones.get());
+
+        ResponseEntity<?> larga = agendar("x".repeat(256), Map.of("idCliente", 100));
+        assertEquals(HttpStatus.BAD_REQUEST, larga.getStatusCode());
+        assertEquals(CodigoError.DATOS_INVALIDOS.name(), ((ErrorRespuesta) larga.getBody()).codigo());
+    }
+
+    @Test
+    void testElRechazoDeAgendaSeGuardaComoRespuestaDeError() {
+        Map<String, Object> cita = Map.of("idCliente", 100);
+        for (int i = 0; i < 2; i++) {
+            ResponseEntity<?> respuesta = almacen.ejecutar("clave-1", "agendar", cita, () -> {
+                ejecuciones.incrementAndGet();
+                throw new AgendaException(CodigoError.CITA_SOLAPADA, "Ya existe una cita agendada en este horario.");
+            });
+
+            assertEquals(HttpStatus.CONFLICT, respuesta.getStatusCode());
+            assertTrue(respuesta.getBody().toString().contains("CITA_SOLAPADA"));
+        }
+        assertEquals(1, ejecuciones.get());
+    }
+}
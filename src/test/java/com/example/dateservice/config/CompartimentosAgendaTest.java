@@ -0,0 +1,89 @@
+package com.example.dateservice.config;
+
+import com.example.dateservice.config.CompartimentosAgenda.Compartimento;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompartimentosAgendaTest {
+
+    private Compartimento clasificar(String metodo, String ruta) {
+        MockHttpServletRequest request = new MockHttpServletRequest(metodo, ruta);
+        return CompartimentosAgenda.clasificar(request);
+    }
+
+    @Test
+    void testClasificaReservasLecturasYMasivas() {
+        assertEquals(Compartimento.RESERVAS, clasificar("POST", "/api/dates/agendar"));
+        assertEquals(Compartimento.RESERVAS, clasificar("DELETE", "/api/dates/cancelar/5"));
+        assertEquals(Compartimento.LECTURAS, clasificar("GET", "/api/dates/citas"));
+        assertEquals(Compartimento.MASIVAS, clasificar("POST", "/api/dates/disponibilidades/masivas/lote"));
+        assertEquals(Compartimento.MASIVAS, clasificar("GET", "/api/dates/todas/stream"));
+        assertEquals(Compartimento.MASIVAS, clasificar("GET", "/api/dates/disponibilidades"),
+                "Sin filtros se listan todas las disponibilidades");
+        assertEquals(Compartimento.MASIVAS, clasificar("GET", "/api/dates/disponibilidades/filtrar"));
+        assertNull(clasificar("GET", "/api/dates/agendar/solicitudes/abc"));
+        assertNull(clasificar("GET", "/actuator/health"));
+    }
+
+    @Test
+    void testLosListadosSinDiaNiAnioSonMasivos() {
+        MockHttpServletRequest dePsicologo = new MockHttpServletRequest("GET", "/api/dates/disponibilidades");
+        dePsicologo.setParameter("idPsicologo", "1");
+        assertEquals(Compartimento.MASIVAS, CompartimentosAgenda.clasificar(dePsicologo));
+        dePsicologo.setParameter("fecha", "2025-11-10");
+        assertEquals(Compartimento.LECTURAS, CompartimentosAgenda.clasificar(dePsicologo));
+
+        MockHttpServletRequest porMes = new MockHttpServletRequest("GET", "/api/dates/disponibilidades/filtrar");
+        porMes.setParameter("idPsicologo", "1");
+        porMes.setParameter("mes", "11");
+        assertEquals(Compartimento.MASIVAS, CompartimentosAgenda.clasificar(porMes), "El mismo mes de todos los años");
+        porMes.setParameter("anio", "2025");
+        assertEquals(Compartimento.LECTURAS, CompartimentosAgenda.clasificar(porMes));
+    }
+
+    @Test
+    void testElLimiteRechazaAlLlenarseYBajaConLaLatencia() {
+        long milisegundo = TimeUnit.MILLISECONDS.toNanos(1);
+        LimiteAdaptativo limite = new LimiteAdaptativo(1, 4, 2.0, milisegundo);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limite.adquirir());
+        }
+        assertFalse(limite.adquirir());
+        assertEquals(1, limite.rechazos());
+
+        limite.liberar(milisegundo);
+        for (int i = 0; i < 3; i++) {
+            limite.liberar(50 * milisegundo);
+        }
+        assertTrue(limite.limite() < 4, "Las solicitudes lentas bajan el límite");
+        assertEquals(0, limite.enCurso());
+    }
+
+    @Test
+    void testLasRespuestasRapidasSinTrabajoNoBajanLaLatenciaDeReferencia() {
+        long milisegundo = TimeUnit.MILLISECONDS.toNanos(1);
+        LimiteAdaptativo limite = new LimiteAdaptativo(2, 20, 2.0, 20 * milisegundo);
+
+        MockHttpServletResponse rechazada = new MockHttpServletResponse();
+        rechazada.setStatus(400);
+        MockHttpServletResponse repetida = new MockHttpServletResponse();
+        repetida.setHeader(AlmacenIdempotencia.CABECERA_REPETIDA, "true");
+        assertFalse(CompartimentosAgenda.esMuestra(rechazada));
+        assertFalse(CompartimentosAgenda.esMuestra(repetida));
+        assertTrue(CompartimentosAgenda.esMuestra(new MockHttpServletResponse()));
+
+        for (int i = 0; i < 50; i++) {
+            limite.adquirir();
+            limite.liberar(milisegundo, CompartimentosAgenda.esMuestra(i % 2 == 0 ? rechazada : repetida));
+            limite.adquirir();
+            limite.liberar(30 * milisegundo, true);
+        }
+        assertEquals(20, limite.limite(), "Las reservas de 30 ms no son lentas frente a otras de 30 ms");
+    }
+}
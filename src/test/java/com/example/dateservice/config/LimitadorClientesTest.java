@@ -0,0 +1,57 @@
+package com.example.dateservice.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LimitadorClientesTest {
+
+    @Test
+    void testCadaClienteTieneSuCubetaPorEndpoint() {
+        LimitadorClientes limitador = new LimitadorClientes();
+        ReflectionTestUtils.setField(limitador, "environment", new MockEnvironment()
+                .withProperty("agenda.limite-clientes.agendar.capacidad", "2")
+                .withProperty("agenda.limite-clientes.agendar.por-minuto", "6"));
+        ReflectionTestUtils.setField(limitador, "habilitado", true);
+        ReflectionTestUtils.setField(limitador, "maxClientes", 100L);
+        ReflectionTestUtils.setField(limitador, "inactividadMinutos", 1L);
+        limitador.iniciar();
+
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "cliente:1"));
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "cliente:1"));
+        long espera = limitador.tomar(LimitadorClientes.AGENDAR, "cliente:1");
+        assertTrue(espera >= 1 && espera <= 10, "Con 6 por minuto la próxima ficha llega en unos 10 segundos");
+        assertEquals(1, limitador.limitadas(LimitadorClientes.AGENDAR));
+
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "cliente:2"), "Otro cliente no se ve afectado");
+        assertEquals(0, limitador.tomar(LimitadorClientes.MODIFICAR, "cliente:1"), "Otro endpoint tiene su propia cubeta");
+    }
+
+    @Test
+    void testCambiarElIdClienteNoEsquivaElLimiteDelOrigen() {
+        LimitadorClientes limitador = new LimitadorClientes();
+        ReflectionTestUtils.setField(limitador, "environment", new MockEnvironment()
+                .withProperty("agenda.limite-clientes.agendar.capacidad", "2")
+                .withProperty("agenda.limite-clientes.agendar.por-minuto", "6")
+                .withProperty("agenda.limite-clientes.agendar.origen.capacidad", "3")
+                .withProperty("agenda.limite-clientes.agendar.origen.por-minuto", "6"));
+        ReflectionTestUtils.setField(limitador, "habilitado", true);
+        ReflectionTestUtils.setField(limitador, "maxClientes", 100L);
+        ReflectionTestUtils.setField(limitador, "inactividadMinutos", 1L);
+        limitador.iniciar();
+
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "ip:10.0.0.1", 1L));
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "ip:10.0.0.1", 2L));
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "ip:10.0.0.1", 3L));
+        assertTrue(limitador.tomar(LimitadorClientes.AGENDAR, "ip:10.0.0.1", 4L) > 0,
+                "Un idCliente nuevo en cada solicitud no da fichas nuevas al mismo origen");
+
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "ip:10.0.0.2", 5L));
+        assertEquals(0, limitador.tomar(LimitadorClientes.AGENDAR, "ip:10.0.0.3", 5L));
+        assertTrue(limitador.tomar(LimitadorClientes.AGENDAR, "ip:10.0.0.4", 5L) > 0,
+                "La cubeta del idCliente sigue valiendo aunque cambie el origen");
+        assertEquals(2, limitador.limitadas(LimitadorClientes.AGENDAR));
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.dateservice.config;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+class RestriccionesSolapamientoTest {
+
+    private RestriccionesSolapamiento restricciones(boolean obligatorias) {
+        JdbcTemplate jdbcTemplate = Mockito.mock(JdbcTemplate.class);
+        Mockito.when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenReturn("PostgreSQL");
+        Mockito.doThrow(new DataAccessResourceFailureException("permission denied to create extension \"btree_gist\""))
+                .when(jdbcTemplate).execute("CREATE EXTENSION IF NOT EXISTS btree_gist");
+
+        RestriccionesSolapamiento restricciones = new RestriccionesSolapamiento();
+        ReflectionTestUtils.setField(restricciones, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(restricciones, "triggerH2", "");
+        ReflectionTestUtils.setField(restricciones, "obligatorias", obligatorias);
+        return restricciones;
+    }
+
+    @Test
+    void testEnPostgresSinRestriccionesNoArranca() {
+        RestriccionesSolapamiento restricciones = restricciones(true);
+
+        IllegalStateException ex = assertThrows(IllegalStateException.class, restricciones::instalar);
+        assertTrue(ex.getCause().getMessage().contains("btree_gist"));
+        assertEquals(Status.DOWN, restricciones.health().getStatus());
+    }
+
+    @Test
+    void testSiNoSonObligatoriasArrancaPeroLaSaludQuedaCaida() {
+        RestriccionesSolapamiento restricciones = restricciones(false);
+
+        assertDoesNotThrow(restricciones::instalar);
+        assertEquals(Status.DOWN, restricciones.health().getStatus());
+        assertEquals("PostgreSQL", restricciones.health().getDetails().get("motor"));
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.dateservice.config;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RutaDataSourceTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate escritura;
+    private TransactionTemplate lectura;
+    private LectorPrimaria lectorPrimaria;
+
+    // Dos bases H2 en memoria hacen de primaria y réplica
+    private DataSource base(String nombre) {
+        return new DriverManagerDataSource("jdbc:h2:mem:" + nombre + ";DB_CLOSE_DELAY=-1", "sa", "");
+    }
+
+    @BeforeEach
+    void setup() {
+        DataSource dataSource = ReplicaConfig.rutear(base("primaria"), base("replica"));
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        escritura = new TransactionTemplate(transactionManager);
+        lectura = new TransactionTemplate(transactionManager);
+        lectura.setReadOnly(true);
+
+        lectorPrimaria = new LectorPrimaria();
+        ReflectionTestUtils.setField(lectorPrimaria, "transactionManager", transactionManager);
+        ReflectionTestUtils.setField(lectorPrimaria, "replica", true);
+        lectorPrimaria.iniciar();
+    }
+
+    private String baseActual() {
+        return jdbcTemplate.queryForObject("SELECT DATABASE()", String.class);
+    }
+
+    @Test
+    void testLasLecturasVanALaReplicaYLasEscriturasALaPrimaria() {
+        assertEquals("REPLICA", lectura.execute(estado -> baseActual()));
+        assertEquals("PRIMARIA", escritura.execute(estado -> baseActual()));
+        assertEquals("PRIMARIA", baseActual(), "Sin transacción se usa la primaria");
+    }
+
+    @Test
+    void testLaLecturaDeLoPropioUsaLaPrimaria() {
+        LecturaPrimaria.activar();
+        try {
+            assertEquals("PRIMARIA", lectura.execute(estado -> baseActual()));
+        } finally {
+            LecturaPrimaria.desactivar();
+        }
+        assertEquals("PRIMARIA", lectura.execute(estado -> LecturaPrimaria.en(this::baseActual)));
+        assertEquals("REPLICA", lectura.execute(estado -> baseActual()));
+    }
+
+    @Test
+    void testLasLecturasVersionadasVanALaPrimariaAunqueLaTransaccionYaUseLaReplica() {
+        lectura.execute(estado -> {
+            assertEquals("REPLICA", baseActual());
+            assertEquals("REPLICA", LecturaPrimaria.en(this::baseActual), "La conexión ya quedó elegida");
+            assertEquals("PRIMARIA", lectorPrimaria.leer(this::baseActual));
+            assertEquals("REPLICA", baseActual(), "La transacción de fuera sigue con su conexión");
+            return null;
+        });
+        assertEquals("PRIMARIA", escritura.execute(estado -> lectorPrimaria.leer(this::baseActual)));
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.dateservice.config;
+
+import org.h2.api.Trigger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Equivalente en H2 de las restricciones de exclusión de PostgreSQL: tras cada
+ * INSERT o UPDATE comprueba que la fila no se solape con otra del mismo psicólogo y día.
+ */
+public class SolapamientoTriggerH2 implements Trigger {
+
+    private String restriccion;
+    private String consulta;
+    private int columnaId;
+    private int columnaPsicologo;
+    private int columnaFecha;
+    private int columnaInicio;
+    private int columnaFin;
+
+    @Override
+    public void init(Connection conn, String schemaName, String triggerName, String tableName,
+                     boolean before, int type) throws SQLException {
+        this.restriccion = triggerName.toLowerCase();
+        this.consulta = "SELECT COUNT(*) FROM " + schemaName + "." + tableName +
+                " WHERE id_psicologo = ? AND fecha = ? AND hora_inicio < ? AND hora_fin > ? AND id <> ?";
+
+        try (ResultSet columnas = conn.getMetaData().getColumns(null, schemaName, tableName, null)) {
+            while (columnas.next()) {
+                int posicion = columnas.getInt("ORDINAL_POSITION") - 1;
+                switch (columnas.getString("COLUMN_NAME").toLowerCase()) {
+                    case "id" -> columnaId = posicion;
+                    case "id_psicologo" -> columnaPsicologo = posicion;
+                    case "fecha" -> columnaFecha = posicion;
+                    case "hora_inicio" -> columnaInicio = posicion;
+                    case "hora_fin" -> columnaFin = posicion;
+                    default -> {
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        try (PreparedStatement sentencia = conn.prepareStatement(consulta)) {
+            sentencia.setObject(1, newRow[columnaPsicologo]);
+            sentencia.setObject(2, newRow[columnaFecha]);
+            sentencia.setObject(3, newRow[columnaFin]);
+            sentencia.setObject(4, newRow[columnaInicio]);
+            sentencia.setObject(5, newRow[columnaId]);
+            try (ResultSet resultado = sentencia.executeQuery()) {
+                if (resultado.next() && resultado.getLong(1) > 0) {
+                    throw new SQLException("Violación de la restricción " + restriccion, "23P01");
+                }
+            }
+        }
+    }
+}
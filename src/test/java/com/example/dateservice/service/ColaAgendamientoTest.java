@@ -0,0 +1,77 @@
+package com.example.dateservice.service;
+
+import com.example.dateservice.dto.EstadoAgendamiento;
+import com.example.dateservice.entity.Date;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+
+class ColaAgendamientoTest {
+
+    private final DateService dateService = Mockito.mock(DateService.class);
+    private final ColaAgendamiento cola = new ColaAgendamiento();
+
+    private Date cita(long idCliente) {
+        return new Date(1L, idCliente, LocalDate.of(2025, 11, 10), LocalTime.of(9, 0), LocalTime.of(10, 0));
+    }
+
+    private ColaAgendamiento.Solicitud solicitud(String id, Date cita) {
+        return new ColaAgendamiento.Solicitud(id, cita);
+    }
+
+    @Test
+    void testSiElLoteFallaEnteroSeReintentaUnaPorUna() {
+        ReflectionTestUtils.setField(cola, "dateService", dateService);
+        Date primera = cita(100L);
+        Date segunda = cita(101L);
+        Mockito.when(dateService.agendarLote(anyList()))
+                .thenThrow(new AgendaException(CodigoError.CITA_SOLAPADA, "Ya existe una cita agendada en este horario."));
+        Mockito.doAnswer(invocacion -> {
+            ((Date) invocacion.getArgument(0)).setId(7L);
+            return null;
+        }).when(dateService).addDate(primera);
+        Mockito.doThrow(new AgendaException(CodigoError.CITA_SOLAPADA, "Ya existe una cita agendada en este horario."))
+                .when(dateService).addDate(segunda);
+
+        ColaAgendamiento.Solicitud a = solicitud("a", primera);
+        ColaAgendamiento.Solicitud b = solicitud("b", segunda);
+        cola.aplicar(List.of(a, b));
+
+        assertEquals(new EstadoAgendamiento("a", EstadoAgendamiento.AGENDADA, 7L, null, null), a.estado());
+        assertEquals(new EstadoAgendamiento("b", EstadoAgendamiento.RECHAZADA, null, "CITA_SOLAPADA",
+                "Ya existe una cita agendada en este horario."), b.estado());
+    }
+
+    @Test
+    void testLasSolicitudesEncoladasSeAgendanEnLote() throws Exception {
+        ReflectionTestUtils.setField(cola, "dateService", dateService);
+        ReflectionTestUtils.setField(cola, "habilitada", true);
+        ReflectionTestUtils.setField(cola, "escritores", 2);
+        ReflectionTestUtils.setField(cola, "tamanoLote", 20);
+        ReflectionTestUtils.setField(cola, "capacidad", 10);
+        ReflectionTestUtils.setField(cola, "retencionMinutos", 1L);
+        Mockito.when(dateService.agendarLote(anyList()))
+                .thenAnswer(invocacion -> ((List<?>) invocacion.getArgument(0)).stream().map(c -> (AgendaException) null).toList());
+        cola.iniciar();
+        try {
+            EstadoAgendamiento inicial = cola.encolar(cita(100L));
+            assertEquals(EstadoAgendamiento.PENDIENTE, inicial.estado());
+
+            EstadoAgendamiento fin = cola.resultado(inicial.id()).get();
+            assertEquals(EstadoAgendamiento.AGENDADA, fin.estado());
+            assertEquals(fin, cola.consultar(inicial.id()));
+            Mockito.verify(dateService, Mockito.never()).addDate(Mockito.any());
+        } finally {
+            cola.detener();
+        }
+    }
+}
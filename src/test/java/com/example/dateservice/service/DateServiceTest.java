@@ -1,30 +1,78 @@
 package com.example.dateservice.service;
 
+import com.example.dateservice.agenda.ArchivoAgenda;
+import com.example.dateservice.agenda.BloqueoAgenda;
+import com.example.dateservice.agenda.CacheAgenda;
+import com.example.dateservice.agenda.ClaveDia;
+import com.example.dateservice.agenda.CompactacionAgenda;
+import com.example.dateservice.agenda.IndiceAgenda;
+import com.example.dateservice.agenda.Intervalo;
+import com.example.dateservice.agenda.VersionesAgenda;
+import com.example.dateservice.config.LectorPrimaria;
+import com.example.dateservice.config.RestriccionesSolapamiento;
+import com.example.dateservice.dto.CitaExportada;
+import com.example.dateservice.dto.CitaVista;
+import com.example.dateservice.dto.DisponibilidadVista;
+import com.example.dateservice.dto.FranjaLibre;
+import com.example.dateservice.dto.PaginaCursor;
+import com.example.dateservice.dto.ResumenCreacion;
+import com.example.dateservice.dto.ResumenDia;
+import com.example.dateservice.dto.SolicitudDisponibilidadesMasivas;
+import com.example.dateservice.dto.SolicitudReglaDisponibilidad;
 import com.example.dateservice.entity.Date;
 import com.example.dateservice.entity.Disponibilidad;
+import com.example.dateservice.entity.ReglaDisponibilidad;
+import com.example.dateservice.exception.AgendaException;
+import com.example.dateservice.exception.CodigoError;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.PersistenceException;
 import jakarta.transaction.Transactional;
+import org.hibernate.cache.spi.access.EntityDataAccess;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.query.NativeQuery;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.test.context.transaction.TestTransaction;
 
+import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
-@DataJpaTest
-@Import(DateService.class) 
+@DataJpaTest(properties = "agenda.restricciones.trigger-h2=com.example.dateservice.config.SolapamientoTriggerH2")
+@Import({DateService.class, ReglaDisponibilidadService.class, IndiceAgenda.class, VersionesAgenda.class, BloqueoAgenda.class, CacheAgenda.class,
+        CompactacionAgenda.class, ArchivoAgenda.class, LectorPrimaria.class, RestriccionesSolapamiento.class})
 @Transactional
 class DateServiceTest {
 
     @Autowired
     private DateService dateService;
 
+    @Autowired
+    private ReglaDisponibilidadService reglaDisponibilidadService;
+
+    @Autowired
+    private IndiceAgenda indiceAgenda;
+
+    @Autowired
+    private VersionesAgenda versionesAgenda;
+
+    @Autowired
+    private CompactacionAgenda compactacionAgenda;
+
+    @Autowired
+    private ArchivoAgenda archivoAgenda;
+
     @PersistenceContext
     private EntityManager entityManager;
 
@@ -220,6 +268,12 @@ void testActualizarDisponibilidadHorasInvalidasLanzaExcepcion() {
             () -> dateService.actualizarDisponibilidad(idDisp, horasInvertidas));
     assertTrue(ex2.getMessage().contains("La hora de inicio debe ser anterior"),
             "Debe lanzar excepción cuando horaInicio > horaFin");
+
+    // Caso 3: sin hora de inicio se rechaza como dato inválido, no con un error interno
+    Disponibilidad sinInicio = new Disponibilidad(idPsicologo, existente.getFecha(), null, LocalTime.of(13, 0));
+    AgendaException ex3 = assertThrows(AgendaException.class,
+            () -> dateService.actualizarDisponibilidad(idDisp, sinInicio));
+    assertEquals(CodigoError.DATOS_INVALIDOS, ex3.getCodigo());
 }
 
     // Tests para crearDisponibilidad
@@ -305,6 +359,22 @@ void testActualizarDisponibilidadHorasInvalidasLanzaExcepcion() {
                 "Debe lanzar excepción cuando horaInicio == horaFin");
     }
 
+    @Test
+    void testCrearDisponibilidadSobreReglaMaterializaYDetectaElSolapamiento() {
+        LocalDate lunes = LocalDate.now().plusWeeks(2).with(DayOfWeek.MONDAY);
+        reglaDisponibilidadService.crearRegla(new SolicitudReglaDisponibilidad(
+                2L, null, LocalTime.of(9, 0), LocalTime.of(12, 0), lunes, lunes.plusWeeks(1), null));
+
+        AgendaException ex = assertThrows(AgendaException.class, () -> dateService.crearDisponibilidad(
+                new Disponibilidad(2L, lunes, LocalTime.of(11, 0), LocalTime.of(13, 0))));
+        assertEquals(CodigoError.DISPONIBILIDAD_SOLAPADA, ex.getCodigo());
+
+        dateService.crearDisponibilidad(new Disponibilidad(2L, lunes, LocalTime.of(14, 0), LocalTime.of(15, 0)));
+        assertEquals(List.of(LocalTime.of(9, 0), LocalTime.of(14, 0)),
+                dateService.listarDisponibilidades(2L, lunes).stream().map(DisponibilidadVista::horaInicio).toList(),
+                "La franja de la regla queda materializada junto a la nueva");
+    }
+
     // Tests para crearDisponibilidadesMasivas
     @Test
     void testCrearDisponibilidadesMasivasExito() {
@@ -397,4 +467,548 @@ void testActualizarDisponibilidadHorasInvalidasLanzaExcepcion() {
         assertTrue(ex.getMessage().contains("La hora de inicio debe ser anterior"),
                 "Debe lanzar excepción cuando horaInicio == horaFin");
     }
+
+    // Tests para el índice de agenda
+    @Test
+    void testAgendarCitaSolapadaEnMismaTransaccionLanzaExcepcion() {
+        dateService.addDate(new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 0), LocalTime.of(11, 0)));
+
+        Date solapada = new Date(idPsicologo, 101L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 30), LocalTime.of(11, 30));
+
+        RuntimeException ex = assertThrows(RuntimeException.class, () -> dateService.addDate(solapada));
+        assertTrue(ex.getMessage().contains("Ya existe una cita agendada"));
+    }
+
+    @Test
+    void testModificarCitaLiberaHorarioAnteriorYOcupaElNuevo() {
+        Date cita = new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 0), LocalTime.of(11, 0));
+        dateService.addDate(cita);
+
+        Date nuevoHorario = new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(11, 0), LocalTime.of(12, 0));
+        dateService.modificarCita(cita.getId(), nuevoHorario);
+
+        entityManager.flush();
+        entityManager.clear();
+
+        List<Disponibilidad> disponibilidades = entityManager
+                .createQuery("SELECT d FROM Disponibilidad d ORDER BY d.horaInicio", Disponibilidad.class)
+                .getResultList();
+
+        assertEquals(2, disponibilidades.size());
+        assertEquals(LocalTime.of(9, 0), disponibilidades.get(0).getHoraInicio());
+        assertEquals(LocalTime.of(11, 0), disponibilidades.get(0).getHoraFin());
+        assertEquals(LocalTime.of(12, 0), disponibilidades.get(1).getHoraInicio());
+        assertEquals(LocalTime.of(13, 0), disponibilidades.get(1).getHoraFin());
+
+        Date desdeDb = entityManager.find(Date.class, cita.getId());
+        assertEquals(LocalTime.of(11, 0), desdeDb.getHoraInicio());
+        assertEquals(LocalTime.of(12, 0), desdeDb.getHoraFin());
+    }
+
+    @Test
+    void testAgregarDisponibilidadSolapadaLanzaExcepcion() {
+        Disponibilidad solapada = new Disponibilidad(idPsicologo, LocalDate.of(2025, 11, 10),
+                LocalTime.of(12, 0), LocalTime.of(14, 0));
+
+        RuntimeException ex = assertThrows(RuntimeException.class, () -> dateService.addDisponibilidad(solapada));
+        assertTrue(ex.getMessage().contains("Ya existe una disponibilidad que se solapa"));
+    }
+
+    // Tests para listarFranjasLibres
+    @Test
+    void testListarFranjasLibresDescuentaCitas() {
+        dateService.addDate(new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 0), LocalTime.of(11, 0)));
+
+        List<FranjaLibre> franjas = dateService.listarFranjasLibres(idPsicologo, LocalDate.of(2025, 11, 10), 50, null);
+
+        assertEquals(List.of(
+                new FranjaLibre(LocalTime.of(9, 0), LocalTime.of(9, 50)),
+                new FranjaLibre(LocalTime.of(11, 0), LocalTime.of(11, 50)),
+                new FranjaLibre(LocalTime.of(11, 50), LocalTime.of(12, 40))
+        ), franjas);
+    }
+
+    @Test
+    void testListarFranjasLibresConPasoMenorQueDuracion() {
+        List<FranjaLibre> franjas = dateService.listarFranjasLibres(idPsicologo, LocalDate.of(2025, 11, 10), 180, 30);
+
+        assertEquals(3, franjas.size(), "Debe ofrecer inicios a las 9:00, 9:30 y 10:00");
+        assertEquals(LocalTime.of(10, 0), franjas.get(2).horaInicio());
+        assertEquals(LocalTime.of(13, 0), franjas.get(2).horaFin());
+    }
+
+    @Test
+    void testListarFranjasLibresRechazaDuracionOPasoDeMasDeUnDia() {
+        LocalDate fecha = LocalDate.of(2025, 11, 10);
+
+        AgendaException porDuracion = assertThrows(AgendaException.class,
+                () -> dateService.listarFranjasLibres(idPsicologo, fecha, Integer.MAX_VALUE, null));
+        assertEquals(CodigoError.DATOS_INVALIDOS, porDuracion.getCodigo());
+
+        AgendaException porPaso = assertThrows(AgendaException.class,
+                () -> dateService.listarFranjasLibres(idPsicologo, fecha, 50, Integer.MAX_VALUE));
+        assertEquals(CodigoError.DATOS_INVALIDOS, porPaso.getCodigo());
+
+        assertDoesNotThrow(() -> dateService.listarFranjasLibres(idPsicologo, fecha, 50, 1440));
+    }
+
+    @Test
+    void testGenerarDisponibilidadesMasivasVariosPsicologosYFranjas() {
+        SolicitudDisponibilidadesMasivas solicitud = new SolicitudDisponibilidadesMasivas(
+                List.of(6L, 7L),
+                LocalDate.of(2025, 12, 1),
+                LocalDate.of(2025, 12, 7),
+                List.of(
+                        new SolicitudDisponibilidadesMasivas.Franja(LocalTime.of(8, 0), LocalTime.of(12, 0)),
+                        new SolicitudDisponibilidadesMasivas.Franja(LocalTime.of(14, 0), LocalTime.of(18, 0))
+                ),
+                Set.of(DayOfWeek.MONDAY, DayOfWeek.WEDNESDAY, DayOfWeek.SATURDAY)
+        );
+
+        ResumenCreacion resumen = dateService.generarDisponibilidadesMasivas(solicitud);
+
+        assertEquals(12, resumen.creadas(), "2 psicólogos x 3 días x 2 franjas");
+        Long total = entityManager
+                .createQuery("SELECT COUNT(d) FROM Disponibilidad d WHERE d.idPsicologo IN (6, 7)", Long.class)
+                .getSingleResult();
+        assertEquals(12L, total);
+    }
+
+    @Test
+    void testGenerarDisponibilidadesMasivasConFranjasSolapadasLanzaExcepcion() {
+        SolicitudDisponibilidadesMasivas solicitud = new SolicitudDisponibilidadesMasivas(
+                List.of(6L),
+                LocalDate.of(2025, 12, 1),
+                LocalDate.of(2025, 12, 5),
+                List.of(
+                        new SolicitudDisponibilidadesMasivas.Franja(LocalTime.of(8, 0), LocalTime.of(12, 0)),
+                        new SolicitudDisponibilidadesMasivas.Franja(LocalTime.of(11, 0), LocalTime.of(13, 0))
+                ),
+                null
+        );
+
+        RuntimeException ex = assertThrows(RuntimeException.class,
+                () -> dateService.generarDisponibilidadesMasivas(solicitud));
+        assertTrue(ex.getMessage().contains("no pueden solaparse"));
+    }
+
+    // Tests para la paginación por cursor y el recorrido completo
+    @Test
+    void testPaginarDisponibilidadesRecorreTodasSinRepetir() {
+        entityManager.persist(new Disponibilidad(2L, LocalDate.of(2025, 11, 10), LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Disponibilidad(2L, LocalDate.of(2025, 11, 11), LocalTime.of(8, 0), LocalTime.of(9, 0)));
+
+        PaginaCursor<DisponibilidadVista> primera = dateService.paginarDisponibilidades(null, 2);
+        assertEquals(2, primera.elementos().size());
+        assertNotNull(primera.siguienteCursor());
+
+        PaginaCursor<DisponibilidadVista> segunda = dateService.paginarDisponibilidades(primera.siguienteCursor(), 2);
+        assertEquals(1, segunda.elementos().size());
+        assertNull(segunda.siguienteCursor(), "No debe haber más páginas");
+        assertEquals(LocalDate.of(2025, 11, 11), segunda.elementos().get(0).fecha());
+
+        List<DisponibilidadVista> recorridas = new ArrayList<>();
+        dateService.recorrerDisponibilidades(recorridas::add);
+        assertEquals(3, recorridas.size());
+    }
+
+    @Test
+    void testPaginarConCursorInvalidoLanzaExcepcion() {
+        RuntimeException ex = assertThrows(RuntimeException.class,
+                () -> dateService.paginarCitas("no-es-un-cursor", 10));
+        assertTrue(ex.getMessage().contains("El cursor no es válido"));
+    }
+
+    // Tests para las restricciones de solapamiento en la base
+    @Test
+    void testBaseRechazaCitasSolapadasInsertadasDirectamente() {
+        entityManager.persist(new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 0), LocalTime.of(11, 0)));
+
+        Date solapada = new Date(idPsicologo, 101L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 30), LocalTime.of(11, 30));
+
+        PersistenceException ex = assertThrows(PersistenceException.class, () -> entityManager.persist(solapada));
+        assertTrue(RestriccionesSolapamiento.esViolacion(ex, RestriccionesSolapamiento.CITAS));
+    }
+
+    @Test
+    void testAgendarCitaConIndiceDesactualizadoLoRechazaLaBase() {
+        // El índice carga el día antes de que aparezca una cita que no pasó por el servicio
+        indiceAgenda.obtener(new ClaveDia(idPsicologo, LocalDate.of(2025, 11, 10)));
+        entityManager.persist(new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 0), LocalTime.of(11, 0)));
+
+        Date cita = new Date(idPsicologo, 101L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 0), LocalTime.of(11, 0));
+
+        RuntimeException ex = assertThrows(RuntimeException.class, () -> dateService.addDate(cita));
+        assertEquals("Ya existe una cita agendada en este horario.", ex.getMessage());
+    }
+
+    @Test
+    void testCambiarLaVersionDelDiaLaGuardaEnLaBase() {
+        ClaveDia clave = new ClaveDia(idPsicologo, LocalDate.of(2025, 11, 10));
+        assertEquals(new VersionesAgenda.Version(0L, 0L), versionesAgenda.leer(clave), "Un día que nunca se escribió no tiene fila");
+
+        long primera = versionesAgenda.cambiar(List.of(clave)).get(clave);
+        long segunda = versionesAgenda.cambiar(List.of(clave)).get(clave);
+        assertNotEquals(primera, segunda);
+        assertEquals(segunda, versionesAgenda.leer(clave).dia());
+
+        // El segundo cambio actualiza la fila en lugar de insertar otra
+        Number guardada = (Number) entityManager.createNativeQuery(
+                "SELECT version FROM agenda_day_versions WHERE id_psicologo = 1").getSingleResult();
+        assertEquals(segunda, guardada.longValue());
+
+        // Un cambio de reglas cambia la versión de todos los días del psicólogo, no la del día
+        versionesAgenda.cambiarReglas(idPsicologo);
+        VersionesAgenda.Version trasReglas = versionesAgenda.leer(clave);
+        assertEquals(segunda, trasReglas.dia());
+        assertNotEquals(0L, trasReglas.reglas());
+        assertEquals(trasReglas.reglas(), versionesAgenda.leer(new ClaveDia(idPsicologo, LocalDate.of(2025, 11, 11))).reglas());
+    }
+
+    // Tests para el filtro por mes y el resumen diario
+    @Test
+    void testFiltrarDisponibilidadesPorMesYAnioRespetaLosLimitesDelMes() {
+        entityManager.persist(new Disponibilidad(idPsicologo, LocalDate.of(2025, 10, 31), LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Disponibilidad(idPsicologo, LocalDate.of(2025, 11, 30), LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Disponibilidad(idPsicologo, LocalDate.of(2025, 12, 1), LocalTime.of(9, 0), LocalTime.of(10, 0)));
+
+        List<DisponibilidadVista> noviembre = dateService.filtrarDisponibilidades(idPsicologo, null, 11, 2025);
+
+        assertEquals(List.of(LocalDate.of(2025, 11, 10), LocalDate.of(2025, 11, 30)),
+                noviembre.stream().map(DisponibilidadVista::fecha).toList());
+        assertEquals(4, dateService.filtrarDisponibilidades(idPsicologo, null, null, 2025).size(),
+                "Sin mes se filtra el año completo");
+    }
+
+    @Test
+    void testResumirDisponibilidadesDelMesAgrupaPorDia() {
+        dateService.addDate(new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10),
+                LocalTime.of(10, 0), LocalTime.of(11, 0)));
+        entityManager.persist(new Disponibilidad(idPsicologo, LocalDate.of(2025, 11, 12), LocalTime.of(8, 30), LocalTime.of(9, 15)));
+        entityManager.persist(new Disponibilidad(2L, LocalDate.of(2025, 11, 12), LocalTime.of(8, 0), LocalTime.of(18, 0)));
+
+        List<ResumenDia> resumen = dateService.resumirDisponibilidadesDelMes(idPsicologo, 11, 2025);
+
+        assertEquals(List.of(
+                new ResumenDia(LocalDate.of(2025, 11, 10), 180L, 2L),
+                new ResumenDia(LocalDate.of(2025, 11, 12), 45L, 1L)
+        ), resumen);
+    }
+
+    // Tests para cancelarCita
+    @Test
+    void testCancelarCitaDevuelveLaFranjaYLaUneConLasVecinas() {
+        Date cita = new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10), LocalTime.of(10, 0), LocalTime.of(11, 0));
+        dateService.addDate(cita);
+
+        dateService.cancelarCita(cita.getId());
+        entityManager.flush();
+        entityManager.clear();
+
+        List<Disponibilidad> disponibilidades = entityManager.createQuery(
+                "SELECT d FROM Disponibilidad d WHERE d.idPsicologo = :id", Disponibilidad.class)
+                .setParameter("id", idPsicologo)
+                .getResultList();
+        assertEquals(1, disponibilidades.size(), "Las tres franjas deben quedar unidas en una sola");
+        assertEquals(LocalTime.of(9, 0), disponibilidades.get(0).getHoraInicio());
+        assertEquals(LocalTime.of(13, 0), disponibilidades.get(0).getHoraFin());
+        assertNull(entityManager.find(Date.class, cita.getId()));
+
+        // La franja liberada se puede volver a agendar de inmediato
+        dateService.addDate(new Date(idPsicologo, 101L, LocalDate.of(2025, 11, 10), LocalTime.of(10, 0), LocalTime.of(11, 0)));
+    }
+
+    @Test
+    void testCancelarCitaDosVecesLanzaExcepcion() {
+        Date cita = new Date(idPsicologo, 100L, LocalDate.of(2025, 11, 10), LocalTime.of(9, 0), LocalTime.of(10, 0));
+        dateService.addDate(cita);
+        dateService.cancelarCita(cita.getId());
+
+        RuntimeException ex = assertThrows(RuntimeException.class, () -> dateService.cancelarCita(cita.getId()));
+        assertEquals("La cita no existe", ex.getMessage());
+    }
+
+    @Test
+    void testCancelarCitaSoloSacaDeLaCacheLasFilasQueEscribe() {
+        // Filas insertadas por SQL: Hibernate no guarda en la caché lo que la misma transacción insertó como entidad.
+        // Con un espacio de consulta propio, para que el INSERT no vacíe todas las regiones al terminar
+        entityManager.createNativeQuery("INSERT INTO dates (id_psicologo, id_cliente, fecha, hora_inicio, hora_fin) VALUES " +
+                        "(1, 100, DATE '2025-11-20', TIME '10:00:00', TIME '11:00:00'), " +
+                        "(2, 200, DATE '2025-11-12', TIME '09:00:00', TIME '10:00:00')")
+                .unwrap(NativeQuery.class)
+                .addSynchronizedQuerySpace("test_citas_cacheadas")
+                .executeUpdate();
+        Long idCita = entityManager.createQuery("SELECT c.id FROM Date c WHERE c.idCliente = 100", Long.class).getSingleResult();
+        Long idOtra = entityManager.createQuery("SELECT c.id FROM Date c WHERE c.idCliente = 200", Long.class).getSingleResult();
+
+        entityManager.find(Date.class, idCita);
+        entityManager.find(Date.class, idOtra);
+        entityManager.clear();
+
+        dateService.cancelarCita(idCita);
+        assertNull(leidaDeLaCache(Date.class, idCita), "La cita cancelada no se sirve de la caché");
+
+        // Hibernate vacía las regiones de un DELETE en lote al terminar la transacción
+        TestTransaction.end();
+        TestTransaction.start();
+        assertNull(leidaDeLaCache(Date.class, idCita));
+        assertNotNull(leidaDeLaCache(Date.class, idOtra), "Cancelar una cita no vacía la región entera");
+    }
+
+    private Object leidaDeLaCache(Class<?> entidad, Long id) {
+        SessionImplementor sesion = entityManager.unwrap(SessionImplementor.class);
+        EntityPersister persister = sesion.getFactory().getMappingMetamodel().getEntityDescriptor(entidad);
+        EntityDataAccess cache = persister.getCacheAccessStrategy();
+        return cache.get(sesion, cache.generateCacheKey(id, persister, sesion.getFactory(), null));
+    }
+
+    // Tests para la compactación de disponibilidades
+    @Test
+    void testCompactarUneFranjasContiguasYBorraDiasPasados() {
+        LocalDate futuro = LocalDate.now().plusDays(30);
+        entityManager.persist(new Disponibilidad(idPsicologo, futuro, LocalTime.of(8, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Disponibilidad(idPsicologo, futuro, LocalTime.of(10, 0), LocalTime.of(12, 0)));
+        entityManager.persist(new Disponibilidad(idPsicologo, futuro, LocalTime.of(12, 0), LocalTime.of(13, 0)));
+        entityManager.persist(new Disponibilidad(idPsicologo, futuro, LocalTime.of(15, 0), LocalTime.of(16, 0)));
+        entityManager.persist(new Date(idPsicologo, 100L, futuro, LocalTime.of(13, 0), LocalTime.of(15, 0)));
+        entityManager.flush();
+
+        long eliminadas = compactacionAgenda.compactar();
+        entityManager.clear();
+
+        List<DisponibilidadVista> restantes = dateService.filtrarDisponibilidades(idPsicologo, null, null, null);
+        assertEquals(List.of(
+                new DisponibilidadVista(restantes.get(0).id(), idPsicologo, futuro, LocalTime.of(8, 0), LocalTime.of(13, 0)),
+                new DisponibilidadVista(restantes.get(1).id(), idPsicologo, futuro, LocalTime.of(15, 0), LocalTime.of(16, 0))
+        ), restantes, "Las franjas contiguas se unen, la cita sigue separando las demás y el día pasado desaparece");
+        assertEquals(3, eliminadas);
+
+        // El índice se recarga: la franja unida se puede ocupar entera
+        dateService.addDate(new Date(idPsicologo, 101L, futuro, LocalTime.of(9, 0), LocalTime.of(12, 30)));
+    }
+
+    // Tests para el agendamiento por lotes
+    @Test
+    void testAgendarLoteRechazaLasQueChocanSinDeshacerLasDemas() {
+        LocalDate fecha = LocalDate.of(2025, 11, 10);
+        Date primera = new Date(idPsicologo, 100L, fecha, LocalTime.of(9, 0), LocalTime.of(10, 0));
+        Date repetida = new Date(idPsicologo, 101L, fecha, LocalTime.of(9, 30), LocalTime.of(10, 30));
+        Date segunda = new Date(idPsicologo, 102L, fecha, LocalTime.of(11, 0), LocalTime.of(12, 0));
+        Date sinCliente = new Date(idPsicologo, null, fecha, LocalTime.of(12, 0), LocalTime.of(13, 0));
+
+        List<AgendaException> resultados = dateService.agendarLote(List.of(primera, repetida, segunda, sinCliente));
+
+        assertEquals(Arrays.asList(null, "Ya existe una cita agendada en este horario.", null,
+                "El ID del cliente es requerido."),
+                resultados.stream().map(r -> r == null ? null : r.getMessage()).toList());
+        assertEquals(CodigoError.CITA_SOLAPADA, resultados.get(1).getCodigo());
+        assertEquals(CodigoError.DATOS_INVALIDOS, resultados.get(3).getCodigo());
+        assertNotNull(primera.getId());
+        assertNotNull(segunda.getId());
+        assertNull(repetida.getId());
+        entityManager.flush();
+        entityManager.clear();
+        assertEquals(2, dateService.listarCitasPorPsicologo(idPsicologo, fecha).size());
+    }
+
+    // Tests para la exportación de citas
+    @Test
+    void testExportarCitasDelRangoConLaDisponibilidadRestante() {
+        LocalDate fecha = LocalDate.of(2025, 11, 10);
+        dateService.addDate(new Date(idPsicologo, 100L, fecha, LocalTime.of(10, 0), LocalTime.of(11, 0)));
+        entityManager.persist(new Date(2L, 101L, fecha, LocalTime.of(8, 0), LocalTime.of(9, 0)));
+        entityManager.persist(new Date(idPsicologo, 102L, fecha.plusDays(1), LocalTime.of(8, 0), LocalTime.of(9, 0)));
+        entityManager.flush();
+
+        List<CitaExportada> filas = new ArrayList<>();
+        dateService.exportarCitas(idPsicologo, fecha, fecha, true, filas::add);
+        assertEquals(1, filas.size(), "Solo las citas del psicólogo dentro del rango");
+        assertEquals(180L, filas.get(0).minutosDisponibles(), "Quedan 09:00-10:00 y 11:00-13:00");
+        assertTrue(filas.get(0).comoCsv().endsWith(",2025-11-10,10:00,11:00,180"));
+
+        filas.clear();
+        dateService.exportarCitas(null, fecha, fecha.plusDays(1), false, filas::add);
+        assertEquals(List.of(101L, 100L, 102L), filas.stream().map(CitaExportada::idCliente).toList());
+        assertNull(filas.get(0).minutosDisponibles());
+    }
+
+    // Tests para el archivo de citas pasadas
+    @Test
+    void testArchivarMueveLasCitasPasadasYElHistorialLasIncluye() {
+        LocalDate antigua = LocalDate.now().minusYears(1);
+        LocalDate futura = LocalDate.now().plusDays(10);
+        entityManager.persist(new Date(idPsicologo, 300L, antigua, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Date(idPsicologo, 300L, futura, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.flush();
+
+        assertEquals(1, archivoAgenda.archivar());
+        entityManager.clear();
+
+        assertEquals(List.of(futura), dateService.listarCitasPorCliente(300L).stream().map(CitaVista::fecha).toList(),
+                "Sin historial solo se consulta la tabla de citas");
+        assertEquals(List.of(futura, antigua), dateService.listarCitasPorCliente(300L, true).stream().map(CitaVista::fecha).toList());
+    }
+
+    @Test
+    void testLosListadosCompletosIncluyenElArchivoSoloConHistorial() {
+        LocalDate antigua = LocalDate.now().minusYears(1);
+        LocalDate futura = LocalDate.now().plusDays(10);
+        entityManager.persist(new Date(idPsicologo, 305L, antigua, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Date(idPsicologo, 306L, antigua.plusDays(1), LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Date(idPsicologo, 307L, futura, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.flush();
+        assertEquals(2, archivoAgenda.archivar());
+        entityManager.clear();
+
+        assertEquals(List.of(307L), dateService.listarTodasLasCitas().stream().map(CitaVista::idCliente).toList());
+        List<Long> todas = List.of(305L, 306L, 307L);
+        assertEquals(todas, dateService.listarTodasLasCitas(true).stream().map(CitaVista::idCliente).toList());
+
+        List<CitaVista> recorridas = new ArrayList<>();
+        dateService.recorrerCitas(true, recorridas::add);
+        assertEquals(todas, recorridas.stream().map(CitaVista::idCliente).toList());
+
+        PaginaCursor<CitaVista> primera = dateService.paginarCitas(null, 2, true);
+        PaginaCursor<CitaVista> segunda = dateService.paginarCitas(primera.siguienteCursor(), 2, true);
+        assertEquals(List.of(305L, 306L), primera.elementos().stream().map(CitaVista::idCliente).toList());
+        assertEquals(List.of(307L), segunda.elementos().stream().map(CitaVista::idCliente).toList());
+        assertNull(segunda.siguienteCursor());
+    }
+
+    @Test
+    void testExportarCitasIncluyeLasArchivadasEnOrden() {
+        LocalDate antigua = LocalDate.now().minusYears(1);
+        LocalDate reciente = LocalDate.now().minusDays(1);
+        entityManager.persist(new Date(idPsicologo, 301L, antigua, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Date(idPsicologo, 302L, antigua.plusDays(2), LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.persist(new Date(idPsicologo, 303L, reciente, LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.flush();
+        assertEquals(2, archivoAgenda.archivar());
+        entityManager.persist(new Date(idPsicologo, 304L, antigua.plusDays(1), LocalTime.of(9, 0), LocalTime.of(10, 0)));
+        entityManager.flush();
+        entityManager.clear();
+
+        List<CitaExportada> filas = new ArrayList<>();
+        dateService.exportarCitas(idPsicologo, antigua, reciente, false, filas::add);
+        assertEquals(List.of(301L, 304L, 302L, 303L), filas.stream().map(CitaExportada::idCliente).toList(),
+                "Las archivadas y las vigentes se intercalan por fecha");
+    }
+
+    // Tests para las reglas de disponibilidad recurrentes
+    @Test
+    void testReglaDeMasDeDosAniosSeRechazaYLasViejasSeExpandenHastaElHorizonte() {
+        LocalDate hoy = LocalDate.now();
+        AgendaException ex = assertThrows(AgendaException.class, () -> reglaDisponibilidadService.crearRegla(
+                new SolicitudReglaDisponibilidad(2L, null, LocalTime.of(9, 0), LocalTime.of(12, 0),
+                        hoy, hoy.plusYears(3), null)));
+        assertEquals(CodigoError.DATOS_INVALIDOS, ex.getCodigo());
+
+        // Una regla guardada antes del límite, sin fin práctico
+        entityManager.persist(new ReglaDisponibilidad(2L, Set.of(DayOfWeek.MONDAY), LocalTime.of(9, 0), LocalTime.of(12, 0),
+                hoy, LocalDate.of(9999, 12, 31), Set.of()));
+        int lunes = dateService.filtrarDisponibilidades(2L, null, null, null).size();
+        assertTrue(lunes >= 104 && lunes <= 105, "Sin fecha de fin se expanden solo dos años: " + lunes);
+    }
+
+    @Test
+    void testReglaRecurrenteSeListaSinCrearFilas() {
+        LocalDate lunes = LocalDate.now().plusWeeks(2).with(DayOfWeek.MONDAY);
+        reglaDisponibilidadService.crearRegla(new SolicitudReglaDisponibilidad(
+                2L, Set.of(DayOfWeek.MONDAY, DayOfWeek.WEDNESDAY), LocalTime.of(9, 0), LocalTime.of(12, 0),
+                lunes, lunes.plusWeeks(4), Set.of(lunes.plusDays(2))));
+
+        assertEquals(0L, entityManager.createQuery("SELECT COUNT(d) FROM Disponibilidad d WHERE d.idPsicologo = 2", Long.class)
+                .getSingleResult(), "La regla no debe crear filas de disponibilidad");
+        assertEquals(List.of(new DisponibilidadVista(null, 2L, lunes, LocalTime.of(9, 0), LocalTime.of(12, 0))),
+                dateService.listarDisponibilidades(2L, lunes));
+        assertTrue(dateService.listarDisponibilidades(2L, lunes.plusDays(1)).isEmpty(), "El martes no está en la regla");
+        assertTrue(dateService.listarDisponibilidades(2L, lunes.plusDays(2)).isEmpty(), "La fecha de excepción se salta");
+
+        List<DisponibilidadVista> rango = dateService.filtrarDisponibilidades(2L, null, null, null);
+        assertEquals(8, rango.size(), "Cinco lunes y cuatro miércoles, menos la excepción");
+    }
+
+    @Test
+    void testAgendarSobreReglaMaterializaElDia() {
+        LocalDate lunes = LocalDate.now().plusWeeks(2).with(DayOfWeek.MONDAY);
+        reglaDisponibilidadService.crearRegla(new SolicitudReglaDisponibilidad(
+                2L, null, LocalTime.of(9, 0), LocalTime.of(12, 0), lunes, lunes.plusWeeks(1), null));
+
+        dateService.addDate(new Date(2L, 100L, lunes, LocalTime.of(10, 0), LocalTime.of(11, 0)));
+        entityManager.flush();
+        entityManager.clear();
+
+        List<DisponibilidadVista> disponibilidades = dateService.listarDisponibilidades(2L, lunes);
+        assertEquals(2, disponibilidades.size());
+        assertTrue(disponibilidades.stream().allMatch(d -> d.id() != null), "El día agendado ya se lee de la tabla");
+        assertEquals(List.of(LocalTime.of(9, 0), LocalTime.of(11, 0)),
+                disponibilidades.stream().map(DisponibilidadVista::horaInicio).sorted().toList());
+
+        // Los demás días de la regla siguen siendo virtuales
+        assertNull(dateService.listarDisponibilidades(2L, lunes.plusDays(1)).get(0).id());
+    }
+
+    @Test
+    void testMaterializarDosVecesEnLaMismaTransaccionNoDuplicaLasFranjas() {
+        LocalDate lunes = LocalDate.now().plusWeeks(2).with(DayOfWeek.MONDAY);
+        reglaDisponibilidadService.crearRegla(new SolicitudReglaDisponibilidad(
+                2L, null, LocalTime.of(9, 0), LocalTime.of(12, 0), lunes, lunes.plusWeeks(1), null));
+        ClaveDia clave = new ClaveDia(2L, lunes);
+
+        // La primera lectura deja en memoria las reglas y que el día no está materializado
+        assertEquals(1, reglaDisponibilidadService.ventanasVirtuales(clave).size());
+        reglaDisponibilidadService.materializar(clave);
+        reglaDisponibilidadService.materializar(clave);
+        entityManager.flush();
+
+        assertEquals(1L, entityManager.createQuery(
+                "SELECT COUNT(d) FROM Disponibilidad d WHERE d.idPsicologo = 2 AND d.fecha = :fecha", Long.class)
+                .setParameter("fecha", lunes).getSingleResult());
+        assertTrue(reglaDisponibilidadService.ventanasVirtuales(clave).isEmpty(),
+                "El día materializado en la transacción ya no tiene franjas virtuales");
+    }
+
+    @Test
+    void testLaReglaSoloCedeLosTramosOcupadosDelDia() {
+        LocalDate lunes = LocalDate.now().plusWeeks(2).with(DayOfWeek.MONDAY);
+        entityManager.persist(new Date(2L, 100L, lunes, LocalTime.of(10, 0), LocalTime.of(10, 30)));
+        entityManager.persist(new Disponibilidad(2L, lunes, LocalTime.of(14, 0), LocalTime.of(15, 0)));
+        reglaDisponibilidadService.crearRegla(new SolicitudReglaDisponibilidad(
+                2L, null, LocalTime.of(9, 0), LocalTime.of(17, 0), lunes, lunes, null));
+        ClaveDia clave = new ClaveDia(2L, lunes);
+
+        List<Intervalo> esperadas = List.of(
+                new Intervalo(null, LocalTime.of(9, 0), LocalTime.of(10, 0)),
+                new Intervalo(null, LocalTime.of(10, 30), LocalTime.of(14, 0)),
+                new Intervalo(null, LocalTime.of(15, 0), LocalTime.of(17, 0)));
+        assertEquals(esperadas, reglaDisponibilidadService.ventanasVirtuales(clave));
+
+        reglaDisponibilidadService.materializar(clave);
+        entityManager.flush();
+        assertEquals(List.of(LocalTime.of(9, 0), LocalTime.of(10, 30), LocalTime.of(14, 0), LocalTime.of(15, 0)),
+                entityManager.createQuery("SELECT d.horaInicio FROM Disponibilidad d WHERE d.idPsicologo = 2 " +
+                                "AND d.fecha = :fecha ORDER BY d.horaInicio", LocalTime.class)
+                        .setParameter("fecha", lunes).getResultList());
+    }
+
+    @Test
+    void testResumenDelMesIncluyeLasReglasRecurrentes() {
+        LocalDate primero = LocalDate.now().plusMonths(2).withDayOfMonth(1);
+        reglaDisponibilidadService.crearRegla(new SolicitudReglaDisponibilidad(
+                2L, Set.of(primero.getDayOfWeek()), LocalTime.of(9, 0), LocalTime.of(11, 0), primero, primero, null));
+        entityManager.persist(new Disponibilidad(2L, primero, LocalTime.of(14, 0), LocalTime.of(15, 0)));
+        entityManager.flush();
+
+        List<ResumenDia> resumen = dateService.resumirDisponibilidadesDelMes(2L, primero.getMonthValue(), primero.getYear());
+        assertEquals(List.of(new ResumenDia(primero, 180L, 2L)), resumen);
+    }
 }